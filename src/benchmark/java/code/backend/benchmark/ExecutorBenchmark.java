@@ -0,0 +1,422 @@
+package code.backend.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpServer;
+
+import code.backend.Database;
+import code.backend.Main;
+import code.backend.CORS.CORSWrapper;
+import code.backend.handlers.MemeDirectoryHandler;
+import code.backend.handlers.MemeHandler;
+import code.backend.handlers.MemeSearchHandler;
+import code.backend.image.ImageWorkQueue;
+import code.backend.image.SimilarityIndex;
+import code.backend.router.Route;
+import code.backend.router.Router;
+import code.backend.server.NioHttpsServer;
+import code.backend.session.ServerSessionStore;
+import code.backend.session.SessionStore;
+import code.backend.storage.ImageStore;
+import code.backend.upload.UploadAdmission;
+
+
+
+/**
+ * Compares the executor modes of the server under mixed load of searches,
+ * image downloads and uploads.
+ *
+ *   mvn -Pbenchmark package
+ *   java -cp target/benchmarks.jar code.backend.benchmark.ExecutorBenchmark [platform|virtual|both] [seconds] [clients]
+ *
+ * Every mode runs in its own JVM on a new database and image directory, so
+ * the memes added by one run don't slow down the next. The server is plain
+ * HTTP on the loopback address, TLS isn't part of the comparison. Output of
+ * the handlers is discarded while the load runs. Properties memes.* are
+ * passed on to the runs (for example -Dmemes.databaseConcurrency=2, or
+ * -Dmemes.server=nio to run on the selector-based server).
+ */
+public class ExecutorBenchmark {
+
+
+    private static final int SEED_MEMES = 50;
+    private static final int IMAGES = 16;
+    private static final int TAGS = 10;
+
+    // Share of the requests (out of 100)
+    private static final int SEARCH_SHARE = 60;
+    private static final int IMAGE_SHARE = 30;
+
+    private static final String BOUNDARY = "benchmarkBoundary";
+
+    private static final String[] KINDS = {"search", "image", "upload"};
+
+    // Session of the default user
+    private static String sessionId;
+
+
+
+    public static void main(String[] args) throws Exception {
+        String mode = (args.length > 0) ? args[0] : "both";
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int clients = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+
+        if (!mode.equals("both")) {
+            run(mode, seconds, clients);
+            System.exit(0);
+        }
+
+        // Every mode gets a fresh JVM
+        for (String runMode: new String[] {"platform", "virtual"}) {
+            List<String> command = new ArrayList<>();
+            command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+            System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith("memes."))
+                .forEach(name -> command.add("-D" + name + "=" + System.getProperty(name)));
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), ExecutorBenchmark.class.getName(), runMode, String.valueOf(seconds), String.valueOf(clients)));
+
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("[ERROR] - BENCHMARK: Run of mode " + runMode + " failed");
+            }
+        }
+    }
+
+
+
+
+// ▛               ▜
+//    Run methods
+// ▙               ▟
+
+
+
+    /**
+     * Starts the server in the given mode, loads it from the clients and prints the results
+     *
+     * @param mode Executor mode of the server
+     * @param seconds Length of the measured load
+     * @param clients Count of the clients sending requests one after another
+     */
+    private static void run(String mode, int seconds, int clients) throws Exception {
+        PrintStream console = System.out;
+
+        // New database and image store
+        File directory = Files.createTempDirectory("memes-benchmark").toFile();
+        Database database = Database.open(new File(directory, "memes.db").getPath());
+        ImageStore imageStore = ImageStore.create("file", new File(directory, "memes"));
+
+        ImageWorkQueue imageWorkQueue = new ImageWorkQueue(database, imageStore, new SimilarityIndex(), Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1024);
+        imageWorkQueue.start();
+
+        // Default user "u" is logged in
+        SessionStore sessions = new ServerSessionStore();
+        sessionId = sessions.create("u");
+
+        // Server with the same handlers as the real one (memes.server = jdk or nio)
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        HttpServer server = "nio".equals(System.getProperty("memes.server")) ? NioHttpsServer.create(address, 0) : HttpServer.create(address, 0);
+        Router router = new Router(List.of((route, next) -> new CORSWrapper(route.getAllow(), next)))
+            .add(new Route("/api/meme", new MemeHandler(database, sessions, imageStore, imageWorkQueue, new UploadAdmission()), "POST", "PUT", "DELETE"))
+            .add(new Route("/api/meme/dir/{file}", new MemeDirectoryHandler(imageStore), "GET"))
+            .add(new Route("/api/meme/search", new MemeSearchHandler(database, imageStore), "GET"))
+        ;
+        server.createContext("/", router);
+
+        ExecutorService executor = Main.createExecutor(mode);
+        server.setExecutor(executor);
+        server.start();
+
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        // Images of the uploads, and the names they are stored with
+        byte[][] images = new byte[IMAGES][];
+        String[] fileNames = new String[IMAGES];
+        for (int i = 0; i < IMAGES; i++) {
+            images[i] = createImage(i);
+            fileNames[i] = ImageStore.fileName(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(images[i])), "png");
+        }
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // Seed the memes the searches and downloads find
+        AtomicInteger titles = new AtomicInteger();
+        for (int i = 0; i < SEED_MEMES; i++) {
+            upload(client, url, titles.getAndIncrement(), images[i % IMAGES]);
+        }
+
+        // Warm up, then measure
+        load(client, url, clients, 3_000, images, fileNames, titles);
+        long[][][] latencies = new long[clients][][];
+        int[][] statuses = new int[clients][];
+
+        // Follow the threads queued on the database connection
+        AtomicInteger maxWaiting = new AtomicInteger();
+        Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                maxWaiting.accumulateAndGet(database.getWaitingThreads(), Math::max);
+                try {
+                    Thread.sleep(10);
+                }
+
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        long elapsed = load(client, url, clients, seconds * 1000L, images, fileNames, titles, latencies, statuses);
+        sampler.interrupt();
+
+        System.setOut(console);
+        printResults(mode, clients, elapsed, latencies, statuses, ManagementFactory.getThreadMXBean().getPeakThreadCount(), maxWaiting.get());
+
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    private static long load(HttpClient client, String address, int clients, long millis, byte[][] images, String[] fileNames, AtomicInteger titles) throws InterruptedException {
+        return load(client, address, clients, millis, images, fileNames, titles, new long[clients][][], new int[clients][]);
+    }
+
+
+    /**
+     * Sends requests from every client until the time is up
+     *
+     * @param  latencies Filled with the latencies (nanoseconds) of every kind for every client
+     * @param  statuses Filled with the counts of the statuses (success, refused, failed) for every client
+     * @return Length of the load in nanoseconds
+     */
+    private static long load(HttpClient client, String address, int clients, long millis, byte[][] images, String[] fileNames, AtomicInteger titles, long[][][] latencies, int[][] statuses) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + millis * 1_000_000L;
+
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            int clientIndex = c;
+
+            threads[c] = Thread.ofPlatform().name("benchmark-client-" + c).start(() -> {
+                Random random = new Random(clientIndex);
+                LatencyList[] kinds = {new LatencyList(), new LatencyList(), new LatencyList()};
+                int[] counts = new int[3];
+
+                while (System.nanoTime() < end) {
+                    int roll = random.nextInt(100);
+                    int kind = (roll < SEARCH_SHARE) ? 0 : (roll < SEARCH_SHARE + IMAGE_SHARE) ? 1 : 2;
+                    long sent = System.nanoTime();
+
+                    try {
+                        int status = switch (kind) {
+                            case 0 -> get(client, address + "/api/meme/search?search_query=tag" + random.nextInt(TAGS));
+                            case 1 -> get(client, address + "/api/meme/dir/" + fileNames[random.nextInt(IMAGES)]);
+                            default -> upload(client, address, titles.getAndIncrement(), images[random.nextInt(IMAGES)]);
+                        };
+
+                        counts[(status < 300) ? 0 : (status == 503) ? 1 : 2]++;
+                    }
+
+                    catch (IOException e) {
+                        counts[2]++;
+                    }
+
+                    catch (InterruptedException e) {
+                        return;
+                    }
+
+                    kinds[kind].add(System.nanoTime() - sent);
+                }
+
+                latencies[clientIndex] = new long[][] {kinds[0].toArray(), kinds[1].toArray(), kinds[2].toArray()};
+                statuses[clientIndex] = counts;
+            });
+        }
+
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        return System.nanoTime() - start;
+    }
+
+
+
+
+// ▛                   ▜
+//    Request methods
+// ▙                   ▟
+
+
+
+    private static int get(HttpClient client, String url) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+            .header("Cookie", "sessionId=" + sessionId)
+            .GET()
+            .build()
+        ;
+
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+
+    private static int upload(HttpClient client, String address, int titleIndex, byte[] image) throws IOException, InterruptedException {
+        JSONObject meme = new JSONObject()
+            .put("title", "benchmark meme " + titleIndex)
+            .put("tags", new JSONArray().put(new JSONObject().put("title", "tag" + (titleIndex % TAGS)).put("count", 0)))
+        ;
+
+        // Meme information first, then the image
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"meme\"\r\n\r\n" + meme + "\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"image\"; filename=\"upload.png\"\r\nContent-Type: image/png\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(image);
+        body.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(address + "/api/meme"))
+            .header("Cookie", "sessionId=" + sessionId)
+            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+            .build()
+        ;
+
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+
+    /**
+     * Creates a PNG image of random blocks with noise on top. The blocks keep
+     * the images of different seeds from being taken as reposts of each other.
+     *
+     * @param  seed Seed of the pixels
+     * @return Bytes of the PNG file
+     */
+    private static byte[] createImage(int seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+
+        int[] blocks = new int[64];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = random.nextInt(224);
+        }
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int gray = blocks[(y / 32) * 8 + x / 32] + random.nextInt(32);
+                image.setRGB(x, y, (gray << 16) | (gray << 8) | gray);
+            }
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", output);
+        return output.toByteArray();
+    }
+
+
+
+
+// ▛                  ▜
+//    Result methods
+// ▙                  ▟
+
+
+
+    private static void printResults(String mode, int clients, long elapsed, long[][][] latencies, int[][] statuses, int peakThreads, int maxWaiting) {
+        double seconds = elapsed / 1e9;
+        int[] totals = new int[3];
+        for (int[] counts: statuses) {
+            for (int i = 0; i < totals.length; i++) totals[i] += counts[i];
+        }
+
+        System.out.printf("%nMode %s, %d clients, %.1f s%n", mode, clients, seconds);
+        System.out.printf("  %-8s %10s %10s %10s %10s %10s%n", "kind", "requests", "req/s", "p50 ms", "p99 ms", "max ms");
+
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            long[] all = merge(latencies, kind);
+            Arrays.sort(all);
+
+            System.out.printf("  %-8s %10d %10.1f %10.2f %10.2f %10.2f%n",
+                KINDS[kind], all.length, all.length / seconds,
+                percentile(all, 0.50), percentile(all, 0.99), (all.length == 0) ? 0.0 : all[all.length - 1] / 1e6
+            );
+        }
+
+        System.out.printf("  succeeded %d, refused %d, failed %d, peak platform threads %d, most waiting for database %d%n",
+            totals[0], totals[1], totals[2], peakThreads, maxWaiting
+        );
+    }
+
+
+    private static long[] merge(long[][][] latencies, int kind) {
+        int length = 0;
+        for (long[][] client: latencies) length += client[kind].length;
+
+        long[] all = new long[length];
+        int position = 0;
+        for (long[][] client: latencies) {
+            System.arraycopy(client[kind], 0, all, position, client[kind].length);
+            position += client[kind].length;
+        }
+
+        return all;
+    }
+
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(fraction * (sorted.length - 1)))] / 1e6;
+    }
+
+
+
+
+    /**
+     * Growing list of latencies without boxing
+     */
+    private static final class LatencyList {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package code.backend.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import code.backend.request.RequestParser;
+
+
+
+/**
+ * Compares the cookie and query parsing of RequestParser to splitting the
+ * strings, as the handlers did before. The allocation per parse is shown
+ * with the GC profiler:
+ *
+ *   mvn -Pbenchmark package
+ *   java -jar target/benchmarks.jar RequestParserBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+
+    // Fields rather than constants, so the parsing can't be folded away
+    private List<String> cookies = List.of("theme=dark; consent=yes; sessionId=2f0c7a52-2b4e-4f0f-9a5e-1d6f4c3b8e71; lang=fi");
+    private String query = "page=2&search_query=cat+memes&sorting_type=likes&size=20";
+    private String encodedQuery = "page=2&search_query=caf%C3%A9%20memes%26more&sorting_type=likes&size=20";
+
+
+
+
+    @Benchmark
+    public String cookieSplit() {
+        return splitCookie(cookies, "sessionId");
+    }
+
+
+    @Benchmark
+    public String cookieParser() {
+        return RequestParser.findCookie(cookies, "sessionId", sessionId -> sessionId);
+    }
+
+
+    @Benchmark
+    public String querySplit() {
+        return splitQuery(query, "sorting_type");
+    }
+
+
+    @Benchmark
+    public String queryParser() {
+        return RequestParser.getParameter(query, "sorting_type");
+    }
+
+
+    @Benchmark
+    public int numberSplit() {
+        return Integer.parseInt(splitQuery(query, "size"));
+    }
+
+
+    @Benchmark
+    public int numberParser() {
+        return RequestParser.getInt(query, "size", 0);
+    }
+
+
+    @Benchmark
+    public String encodedParser() {
+        return RequestParser.getParameter(encodedQuery, "search_query");
+    }
+
+
+
+
+    private static String splitCookie(List<String> headers, String name) {
+        for (String header: headers) {
+            for (String cookie: header.split(";")) {
+                String[] cookiePair = cookie.trim().split("=");
+
+                if (cookiePair.length == 2 && cookiePair[0].equals(name)) {
+                    return cookiePair[1];
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    private static String splitQuery(String query, String name) {
+        for (String variable: query.split("&")) {
+            String[] keyValue = variable.split("=");
+
+            if (keyValue.length == 2 && keyValue[0].equals(name)) {
+                return keyValue[1];
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,176 @@
+package code.backend;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongBinaryOperator;
+
+
+
+/**
+ * Set of the names that can only tell that a name is surely not in it. A
+ * name that was added is always found; one that wasn't is found by chance
+ * about once in a hundred checks, so a found name has to be looked up in the
+ * database to be sure. Names can't be removed, a removed name just stays a
+ * false positive.
+ *
+ * The filter grows by layers: when a layer is full, a new one of twice its
+ * size takes the new names, so the names never have to be read again. Adding
+ * and checking take no locks.
+ */
+final class BloomFilter {
+
+
+    private volatile Layer[] layers;
+
+    // 10 bits and 7 hashes per name give about 1 % false positives per layer
+    private static final int BITS_PER_NAME = 10;
+    private static final int HASHES = 7;
+    private static final int MIN_CAPACITY = 1024;
+    private static final LongBinaryOperator OR = (word, bit) -> word | bit;
+
+
+
+    /**
+     * Creates empty filter
+     *
+     * @param expectedNames Count of the names expected, the filter grows past it
+     */
+    BloomFilter(int expectedNames) {
+        this.layers = new Layer[] {new Layer(Math.max(MIN_CAPACITY, expectedNames))};
+    }
+
+
+
+
+    /**
+     * Adds the name to the filter
+     *
+     * @param name Name to be added
+     */
+    void add(String name) {
+        long hash = hash(name);
+        Layer[] current = layers;
+        Layer last = current[current.length - 1];
+
+        last.add(hash);
+
+        if (last.count.incrementAndGet() == last.capacity) {
+            grow(last);
+        }
+    }
+
+
+    /**
+     * Checks if the name may have been added
+     *
+     * @param  name Name to be checked
+     * @return False if the name surely wasn't added
+     */
+    boolean mightContain(String name) {
+        long hash = hash(name);
+
+        for (Layer layer: layers) {
+            if (layer.mightContain(hash)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+
+
+    private synchronized void grow(Layer full) {
+        Layer[] current = layers;
+
+        // Another thread may have grown it already
+        if (current[current.length - 1] != full) {
+            return;
+        }
+
+        Layer[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = new Layer(full.capacity * 2);
+        layers = grown;
+    }
+
+
+    /**
+     * Hashes the name to 64 bits (FNV-1a mixed by the finalizer of MurmurHash3)
+     */
+    private static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+
+
+
+    /**
+     * Bits of one size of the filter
+     */
+    private static final class Layer {
+
+
+        final int capacity;
+        final AtomicInteger count = new AtomicInteger();
+        private final AtomicLongArray words;
+        private final int mask;
+
+
+
+        Layer(int capacity) {
+            this.capacity = capacity;
+
+            // Power of two bits, so the index is a mask
+            int bits = Integer.highestOneBit(Math.max(64, capacity * BITS_PER_NAME - 1)) << 1;
+            this.words = new AtomicLongArray(bits >>> 6);
+            this.mask = bits - 1;
+        }
+
+
+
+        void add(long hash) {
+            int first = (int) hash;
+            int step = (int) (hash >>> 32) | 1;
+
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (first + i * step) & mask;
+                long word = 1L << bit;
+
+                // Skip the write if the bit is set, so the cache line isn't taken
+                if ((words.get(bit >>> 6) & word) == 0) {
+                    words.accumulateAndGet(bit >>> 6, word, OR);
+                }
+            }
+        }
+
+
+        boolean mightContain(long hash) {
+            int first = (int) hash;
+            int step = (int) (hash >>> 32) | 1;
+
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (first + i * step) & mask;
+
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -1,25 +1,54 @@
 package code.backend.CORS;
 
 import java.io.IOException;
+import java.util.List;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 
+
+
+/**
+ * Cross-Origin headers. Their values are built once and shared by all the
+ * responses. Browsers cache a preflight for Access-Control-Max-Age seconds,
+ * set by memes.corsMaxAge (default 86400, browsers may cap it lower).
+ */
 public class CORSHelper {
 
 
+    static final String ALL_METHODS = "GET, POST, PUT, DELETE, OPTIONS";
+
+    private static final List<String> ALLOW_ORIGIN = List.of("*");
+    private static final List<String> ALLOW_HEADERS = List.of("Content-Type");
+    private static final List<String> MAX_AGE = List.of(String.valueOf(Long.getLong("memes.corsMaxAge", 86400)));
+
+
+
+    /**
+     * Adds the headers every Cross-Origin response needs
+     *
+     * @param exchange HTTP request handler
+     */
     public static void applyCORSHeaders(HttpExchange exchange) {
-        Headers headers = exchange.getResponseHeaders();
-        
-        headers.set("Access-Control-Allow-Origin", "*");
-        headers.set("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        headers.set("Access-Control-Allow-Headers", "Content-Type");
+        exchange.getResponseHeaders().put("Access-Control-Allow-Origin", ALLOW_ORIGIN);
     }
 
 
-    public static boolean handlePreflight(HttpExchange exchange) throws IOException {
+    /**
+     * Answers the preflight of the given methods
+     *
+     * @param  exchange HTTP request handler
+     * @param  allowMethods Value of the Access-Control-Allow-Methods header
+     * @return True if the request was a preflight and got answered
+     */
+    public static boolean handlePreflight(HttpExchange exchange, List<String> allowMethods) throws IOException {
         if (exchange.getRequestMethod().equals("OPTIONS")) {
-            applyCORSHeaders(exchange);
+            Headers headers = exchange.getResponseHeaders();
+
+            headers.put("Access-Control-Allow-Origin", ALLOW_ORIGIN);
+            headers.put("Access-Control-Allow-Methods", allowMethods);
+            headers.put("Access-Control-Allow-Headers", ALLOW_HEADERS);
+            headers.put("Access-Control-Max-Age", MAX_AGE);
             exchange.sendResponseHeaders(204, -1);
             return true;
         }
@@ -1,6 +1,7 @@
 package code.backend.CORS;
 
 import java.io.IOException;
+import java.util.List;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -8,12 +9,14 @@ import com.sun.net.httpserver.HttpHandler;
 
 
 /**
- * Handless Cross-Origin requests
+ * Handless Cross-Origin requests. Preflights are answered here, the wrapped
+ * handler never sees them.
  */
 public class CORSWrapper implements HttpHandler {
 
     
     private final HttpHandler nextHandler;
+    private final List<String> allowMethods;
 
 
 
@@ -23,7 +26,19 @@ public class CORSWrapper implements HttpHandler {
      * @param nextHandler HTTP handler to be wrapped
      */
     public CORSWrapper(HttpHandler nextHandler) {
+        this(CORSHelper.ALL_METHODS, nextHandler);
+    }
+
+
+    /**
+     * Creates Cross-Origin wrapper allowing only the given methods
+     *
+     * @param allowMethods Comma separated methods of the handler, empty for all
+     * @param nextHandler HTTP handler to be wrapped
+     */
+    public CORSWrapper(String allowMethods, HttpHandler nextHandler) {
         this.nextHandler = nextHandler;
+        this.allowMethods = List.of(allowMethods.isEmpty() ? CORSHelper.ALL_METHODS : allowMethods);
     }
 
 
@@ -32,7 +47,11 @@ public class CORSWrapper implements HttpHandler {
     public void handle(HttpExchange exchange) throws IOException {
         CORSHelper.applyCORSHeaders(exchange);
 
-        if (CORSHelper.handlePreflight(exchange)) return;
+        if (CORSHelper.handlePreflight(exchange, allowMethods)) {
+            exchange.close();
+            return;
+        }
+
         nextHandler.handle(exchange);
     }
 }
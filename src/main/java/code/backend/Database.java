@@ -1,6 +1,5 @@
 package code.backend;
 
-import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -8,21 +7,29 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 
-import org.apache.commons.codec.digest.Crypt;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import code.backend.image.ImageJob;
+import code.backend.log.Log;
+import code.backend.session.SessionRecord;
+import code.backend.user.PasswordHasher;
+
 
 public class Database {
 
 
     private Connection connection = null;
+    private final DatabaseAccessLimiter accessLimiter;
     private static Database instance = null;
 
+    // Names surely not taken skip the uniqueness queries
+    private final BloomFilter userNames;
+    private final BloomFilter memeTitles;
+
     private static final String ERROR_MESSAGE = " - DATABASE: ";
 
 
@@ -36,7 +43,10 @@ public class Database {
 
         // Create connection session for SQLite database
         String database = "jdbc:sqlite:"+databaseName;
-        this.connection = DriverManager.getConnection(database);
+
+        // Limit the threads waiting on the shared connection (memes.databaseConcurrency)
+        this.accessLimiter = new DatabaseAccessLimiter(Integer.getInteger("memes.databaseConcurrency", 1));
+        this.connection = accessLimiter.wrap(DriverManager.getConnection(database));
 
         // Create users table
         String userTable =  "CREATE TABLE IF NOT EXISTS User (" +
@@ -57,9 +67,40 @@ public class Database {
                                 "likes INTEGER NOT NULL, " +
                                 "username VARCHAR(20) NOT NULL, " +
                                 "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                                "FOREIGN KEY (username) REFERENCES User(name)" +
+                                "imageHash CHAR(64), " +
+                                "perceptualHash INTEGER, " +
+                                "imageStatus VARCHAR(10), " +
+                                "FOREIGN KEY (username) REFERENCES User(name), " +
+                                "FOREIGN KEY (imageHash) REFERENCES Image(hash)" +
                              ")";
 
+        // Create images table (content-addressed image files referenced by memes)
+        String imagesTable = "CREATE TABLE IF NOT EXISTS Image (" +
+                                "hash CHAR(64) PRIMARY KEY, " +
+                                "type VARCHAR(5) NOT NULL, " +
+                                "refCount INTEGER NOT NULL, " +
+                                "width INTEGER, " +
+                                "height INTEGER, " +
+                                "frames INTEGER" +
+                             ")";
+
+        // Create image jobs table (pending background work of the memes)
+        String imageJobsTable = "CREATE TABLE IF NOT EXISTS ImageJob (" +
+                                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                    "memeId INTEGER NOT NULL, " +
+                                    "kind VARCHAR(20) NOT NULL, " +
+                                    "priority INTEGER NOT NULL, " +
+                                    "createdAt INTEGER NOT NULL" +
+                                ")";
+
+        // Create sessions table (sessions of the logged users, kept over restarts)
+        String sessionsTable = "CREATE TABLE IF NOT EXISTS Session (" +
+                                   "id VARCHAR(64) PRIMARY KEY, " +
+                                   "username VARCHAR(20) NOT NULL, " +
+                                   "createdAt INTEGER NOT NULL, " +
+                                   "lastAccess INTEGER NOT NULL" +
+                               ")";
+
         // Create hasTag table
         String hasTag = "CREATE TABLE IF NOT EXISTS HasTag (" +
                             "tagId INTEGER NOT NULL, " +
@@ -74,13 +115,28 @@ public class Database {
             statement.executeUpdate(userTable);
             statement.executeUpdate(tagsTable);
             statement.executeUpdate(memesTable);
+            statement.executeUpdate(imagesTable);
+            statement.executeUpdate(imageJobsTable);
+            statement.executeUpdate(sessionsTable);
             statement.executeUpdate(hasTag);
         }
 
+        // Upgrade tables created by older versions
+        addColumnIfMissing("Meme", "imageHash", "CHAR(64) REFERENCES Image(hash)");
+        addColumnIfMissing("Meme", "perceptualHash", "INTEGER");
+        addColumnIfMissing("Meme", "imageStatus", "VARCHAR(10)");
+        addColumnIfMissing("Image", "width", "INTEGER");
+        addColumnIfMissing("Image", "height", "INTEGER");
+        addColumnIfMissing("Image", "frames", "INTEGER");
+
+        // Fill the filters of the unique names
+        userNames = loadFilter("User", "name");
+        memeTitles = loadFilter("Meme", "title");
+
         // Add default user to the table
         createDefaultUser("u");
 
-        System.out.println("\nDatabase created");
+        Log.info("Database created");
     }
 
 
@@ -91,7 +147,7 @@ public class Database {
      */
     private void createDefaultUser(String username) throws JSONException, SQLException {
         if (!isRegistered(username)) {
-            addUser(username, "p");
+            addUser(username, PasswordHasher.hashNow("p"));
         }
     }
 
@@ -115,6 +171,61 @@ public class Database {
 
 
 
+    /**
+     * Adds the column to the existing table, if the table was created without it
+     * 
+     * @param  table Name of the table
+     * @param  column Name of the column
+     * @param  definition SQL definition of the column
+     */
+    private void addColumnIfMissing(String table, String column, String definition) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+
+            // Check the current columns of the table
+            try (ResultSet columns = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+                while (columns.next()) {
+                    if (columns.getString("name").equalsIgnoreCase(column)) {
+                        return;
+                    }
+                }
+            }
+
+            // Add the missing column
+            statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+
+
+
+
+    /**
+     * Creates filter holding all values of the unique column
+     * 
+     * @param  table Name of the table
+     * @param  column Name of the unique column
+     * @return Filter of the column
+     */
+    private BloomFilter loadFilter(String table, String column) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            BloomFilter filter;
+
+            try (ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                filter = new BloomFilter(count.next() ? count.getInt(1) * 2 : 0);
+            }
+
+            try (ResultSet values = statement.executeQuery("SELECT " + column + " FROM " + table)) {
+                while (values.next()) {
+                    filter.add(values.getString(1));
+                }
+            }
+
+            return filter;
+        }
+    }
+
+
+
+
     /**
     * Close the connection to the database
     *
@@ -125,12 +236,78 @@ public class Database {
         }
 
         connection.close();
-        System.out.println("Database closed\n\n");
+        Log.info("Database closed");
         connection = null;
     }
 
 
 
+    /**
+     * Gets the count of the threads waiting for the database connection
+     *
+     * @return Count of the waiting threads
+     */
+    public int getWaitingThreads() {
+        return accessLimiter.getWaiting();
+    }
+
+
+
+    /**
+     * Work run inside a single transaction
+     */
+    @FunctionalInterface
+    public interface Transaction<T> {
+        T run() throws SQLException;
+    }
+
+
+    /**
+     * Runs the work inside a single transaction. The work is committed if it
+     * returns and rolled back if it throws. Statements that fail on their own
+     * (for example on a unique constraint) don't end the transaction.
+     * The transaction takes every permit of the access limiter, so other
+     * threads don't get to the connection until it ends.
+     *
+     * @param  work Database calls to be run together
+     * @return Result of the work
+     */
+    public synchronized <T> T transaction(Transaction<T> work) throws SQLException {
+        accessLimiter.enterExclusive();
+
+        try {
+            connection.setAutoCommit(false);
+        }
+
+        catch (SQLException e) {
+            accessLimiter.exit();
+            throw e;
+        }
+
+        try {
+            T result = work.run();
+            connection.commit();
+            return result;
+        }
+
+        catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        }
+
+        finally {
+            try {
+                connection.setAutoCommit(true);
+            }
+
+            finally {
+                accessLimiter.exit();
+            }
+        }
+    }
+
+
+
 
 
 // ▛               ▜
@@ -147,16 +324,21 @@ public class Database {
     */
     private boolean isRegistered(String username) throws SQLException {
 
+        // New names aren't looked up
+        if (!userNames.mightContain(username)) {
+            return false;
+        }
+
         // Set the SQL command
-        String command = "SELECT COUNT(*) FROM User WHERE name = ?";
+        String command = "SELECT 1 FROM User WHERE name = ?";
         
-        // Get the count of given users in the table
+        // Find the user by the index of the unique name
         try (PreparedStatement statement = connection.prepareStatement(command)) {
             statement.setString(1, username);
             try (ResultSet users = statement.executeQuery()) {
 
                 // Check is the user already registered
-                return users.next() && users.getInt(1) > 0; // User is registered, if the count > 0
+                return users.next();
             }
         }
     }
@@ -167,77 +349,42 @@ public class Database {
     * Adds user to the database.
     *
     * @param  username User's username
-    * @param  password User's password
+    * @param  passwordHash User's password hashed by PasswordHasher
     * @throws IllegalArgumentException If user is already added to the database
     */
-    public void addUser(String username, String password) throws SQLException, IllegalArgumentException {
+    public void addUser(String username, String passwordHash) throws SQLException, IllegalArgumentException {
 
         // Check is the user registered already
         if (isRegistered(username)) {
             throw new IllegalArgumentException(ERROR_MESSAGE + "User already registered\n");
         }
 
-        // Set the SQL command
-        String command = "INSERT INTO User(name, password) VALUES(?, ?)";
+        // Set the SQL command, a user registered at the same time inserts nothing
+        String command = "INSERT INTO User(name, password) VALUES(?, ?) ON CONFLICT(name) DO NOTHING";
 
         // Send user's credentials to database
         try (PreparedStatement statement = connection.prepareStatement(command)) {
             statement.setString(1, username);
-            statement.setString(2, encryptPassword(password));
+            statement.setString(2, passwordHash);
 
-            statement.executeUpdate();
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException(ERROR_MESSAGE + "User already registered\n");
+            }
         }
-    }
-
 
-
-
-    /**
-     * Encrypt the password with random salt.
-     * 
-     * @param  password Password to be encrypt
-     * @return Encrypted user JSON object string
-     */
-    private String encryptPassword(String password) {
-
-        // Create salt
-        byte[] bytes = new byte[13];
-        SecureRandom secure = new SecureRandom();
-        secure.nextBytes(bytes);
-        String saltBytes = Base64.getEncoder().encodeToString(bytes);
-        String salt = ("$6$" + saltBytes).replace("+", "a");
-
-        // Ecrypt the password
-        return Crypt.crypt(password, salt);
+        userNames.add(username);
     }
 
 
 
     /**
-     * Checks is the given username-password combination valid.
-     * 
-     * @param  username User's username
-     * @param  password Checkable password
-     * @return Validity of the user
-     */
-    public boolean isValidUser(String username, String password) throws SQLException {
-
-        // Get user's valid password
-        String validPassword = getPassword(username);
-
-        // Check the validity of the given password
-        return validPassword.equals(Crypt.crypt(password, validPassword));
-    }
-    
-    
-    /**
-    * Gets user's crypted password.
+    * Gets user's hashed password.
     *
     * @param  username User's username
-    * @return User's crypted password
+    * @return User's hashed password
     * @throws IllegalArgumentException If user is not found
     */
-    private String getPassword(String username) throws SQLException, IllegalArgumentException {
+    public String getPasswordHash(String username) throws SQLException, IllegalArgumentException {
 
         // Set the SQL command
         String command = "SELECT password FROM User WHERE name = ?";
@@ -261,6 +408,26 @@ public class Database {
     }
 
 
+    /**
+    * Replaces user's hashed password, used when the hash is upgraded
+    *
+    * @param  username User's username
+    * @param  passwordHash New hash of the same password
+    */
+    public void setPasswordHash(String username, String passwordHash) throws SQLException {
+
+        // Set the SQL command
+        String command = "UPDATE User SET password = ? WHERE name = ?";
+
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setString(1, passwordHash);
+            statement.setString(2, username);
+
+            statement.executeUpdate();
+        }
+    }
+
+
 
 
 
@@ -307,7 +474,7 @@ public class Database {
         JSONArray tagArray = new JSONArray();
 
         // Set SQL command
-        String command = "SELECT title FROM tags";
+        String command = "SELECT title FROM Tag";
 
         // Seek all tags
         try (PreparedStatement statement = connection.prepareStatement(command)) {
@@ -367,14 +534,21 @@ public class Database {
      * Also handles the tags of the meme to the database correclty 
      * 
      * @param meme Meme to be added
+     * @return ID of the added meme
      * @throws IllegalArgumentException Meme don't have unique title
      */
-    public void addMeme(Meme meme, String username) throws SQLException, IllegalArgumentException {
+    public int addMeme(Meme meme, String username) throws SQLException, IllegalArgumentException {
 
-        // Set SQL command
+        // Check the title, only the titles possibly taken are looked up
+        if (memeTitles.mightContain(meme.getTitle()) && isMemeAdded(meme.getTitle())) {
+            throw duplicateMeme(meme);
+        }
+
+        // Set SQL command, a meme added at the same time inserts nothing
         String command = 
-            "INSERT INTO Meme(title, likes, username) " +
-            "VALUES(?, ?, ?)"
+            "INSERT INTO Meme(title, likes, username, imageHash, perceptualHash, imageStatus) " +
+            "VALUES(?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT(title) DO NOTHING"
         ;
 
         // Send the meme to the database
@@ -382,16 +556,20 @@ public class Database {
             statement.setString(1, meme.getTitle());
             statement.setInt(2, meme.getLikes());
             statement.setString(3, username);
+            statement.setString(4, meme.getImageHash());
+            statement.setObject(5, meme.getPerceptualHash());
+            statement.setString(6, meme.getImageStatus());
 
-            statement.executeUpdate();
+            if (statement.executeUpdate() == 0) {
+                throw duplicateMeme(meme);
+            }
         }
 
-        // Edit possibly unique SQL error to be IllegalArgumentException
-        catch (SQLException e) {
-            if (e.getMessage().contains("UNIQUE constraint failed")) {
-                throw new IllegalArgumentException(": Meme \"" + meme.getTitle() + "\" is already added. Title of the meme must be unique one.");
-            }
-            throw e;
+        memeTitles.add(meme.getTitle());
+
+        // Reference the image file of the meme
+        if (meme.getImageHash() != null) {
+            referenceImage(meme);
         }
 
         // Iterate all tags
@@ -402,6 +580,60 @@ public class Database {
             // Link the meme and the tag
             addTagOfTheMeme(meme, tag);
         }
+
+        return getMemeId(meme.getTitle());
+    }
+
+
+    /**
+     * Checks is the meme with the given title added
+     * 
+     * @param  memeTitle Title of the meme
+     * @return Is the title taken
+     */
+    private boolean isMemeAdded(String memeTitle) throws SQLException {
+
+        // Set SQL command
+        String command = "SELECT 1 FROM Meme WHERE title = ?";
+
+        // Find the meme by the index of the unique title
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setString(1, memeTitle);
+            try (ResultSet meme = statement.executeQuery()) {
+                return meme.next();
+            }
+        }
+    }
+
+
+    private IllegalArgumentException duplicateMeme(Meme meme) {
+        return new IllegalArgumentException(": Meme \"" + meme.getTitle() + "\" is already added. Title of the meme must be unique one.");
+    }
+
+
+    /**
+     * Gets the ID of the meme with the given title
+     * 
+     * @param  memeTitle Title of the meme
+     * @return ID of the meme
+     * @throws IllegalArgumentException If the meme is not found
+     */
+    private int getMemeId(String memeTitle) throws SQLException {
+
+        // Set SQL command
+        String command = "SELECT id FROM Meme WHERE title = ?";
+
+        // Seek the meme
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setString(1, memeTitle);
+            try (ResultSet meme = statement.executeQuery()) {
+                if (meme.next()) {
+                    return meme.getInt("id");
+                }
+            }
+        }
+
+        throw new IllegalArgumentException(ERROR_MESSAGE + "Meme not found\n");
     }
 
     
@@ -414,7 +646,11 @@ public class Database {
         List<Meme> memeList = new ArrayList<>();
 
         // Set SQL command
-        String command = "SELECT title, likes, id FROM Meme";
+        String command =
+            "SELECT Meme.title, Meme.likes, Meme.id, Meme.imageHash, Meme.perceptualHash, Meme.imageStatus, Image.type AS imageType, Image.width AS imageWidth, Image.height AS imageHeight, Image.frames AS imageFrames " +
+            "FROM Meme " +
+            "LEFT JOIN Image ON Image.hash = Meme.imageHash"
+        ;
 
         // Seek all memes
         try (PreparedStatement statement = connection.prepareStatement(command)) {
@@ -428,7 +664,7 @@ public class Database {
                     int id = memes.getInt("id");
                     int likes = memes.getInt("likes");
                     JSONArray tags = getMemeTags(id);
-                    Meme meme = new Meme(title, tags, id, likes);
+                    Meme meme = linkImage(new Meme(title, tags, id, likes), memes);
 
                     // Add the meme to the Map
                     memeList.add(meme);
@@ -451,7 +687,12 @@ public class Database {
         List<Meme> memeList = new ArrayList<>();
 
         // Set SQL command
-        String command = "SELECT title, likes FROM Meme WHERE id = ?";
+        String command =
+            "SELECT Meme.title, Meme.likes, Meme.imageHash, Meme.perceptualHash, Meme.imageStatus, Image.type AS imageType, Image.width AS imageWidth, Image.height AS imageHeight, Image.frames AS imageFrames " +
+            "FROM Meme " +
+            "LEFT JOIN Image ON Image.hash = Meme.imageHash " +
+            "WHERE Meme.id = ?"
+        ;
 
         // Seek all memes
         try (PreparedStatement statement = connection.prepareStatement(command)) {
@@ -465,7 +706,7 @@ public class Database {
                     String title = memes.getString("title");
                     JSONArray tags = getMemeTags(id);
                     int likes = memes.getInt("likes");
-                    memeList.add(new Meme(title, tags, id, likes));
+                    memeList.add(linkImage(new Meme(title, tags, id, likes), memes));
                 }
             }
         }
@@ -487,8 +728,10 @@ public class Database {
 
         // Set SQL command
         String command = 
-            "SELECT title, likes, id FROM Meme " +
-            "WHERE title LIKE ?"
+            "SELECT Meme.title, Meme.likes, Meme.id, Meme.imageHash, Meme.perceptualHash, Meme.imageStatus, Image.type AS imageType, Image.width AS imageWidth, Image.height AS imageHeight, Image.frames AS imageFrames " +
+            "FROM Meme " +
+            "LEFT JOIN Image ON Image.hash = Meme.imageHash " +
+            "WHERE Meme.title LIKE ?"
         ;
 
         // Seek all memes
@@ -507,7 +750,7 @@ public class Database {
                     int likes = memes.getInt("likes");
                     int id = memes.getInt("id");
                     JSONArray tags = getMemeTags(id);
-                    memeList.add(new Meme(title, tags, id, likes));
+                    memeList.add(linkImage(new Meme(title, tags, id, likes), memes));
                 }
             }
         }
@@ -536,8 +779,9 @@ public class Database {
 
         // Set SQL command
         String command = 
-            "SELECT m.title, m.likes, m.id " +
+            "SELECT m.title, m.likes, m.id, m.imageHash, m.perceptualHash, m.imageStatus, i.type AS imageType, i.width AS imageWidth, i.height AS imageHeight, i.frames AS imageFrames " +
             "FROM Meme AS m " +
+            "LEFT JOIN Image AS i ON i.hash = m.imageHash " +
             "JOIN HasTag AS ht ON m.id = ht.memeId " +
             "JOIN Tag AS t ON ht.tagId = t.id " +
             "WHERE t.title IN (" + placeHolders + ") " +
@@ -550,7 +794,7 @@ public class Database {
             // Bind every tag
             int index = 0;
             for (Tag tag: tagSet) {
-                statement.setString(index++, tag.getTitle());
+                statement.setString(++index, tag.getTitle());
             }
 
             try (ResultSet memes = statement.executeQuery()) {
@@ -563,7 +807,7 @@ public class Database {
                     int likes = memes.getInt("likes");
                     int id = memes.getInt("id");
                     JSONArray tags = getMemeTags(id);
-                    Meme meme = new Meme(title, tags, id, likes);
+                    Meme meme = linkImage(new Meme(title, tags, id, likes), memes);
 
                     // Add the meme to the
                     memeSet.add(meme);
@@ -658,7 +902,9 @@ public class Database {
                 statement.setString(2, meme.getTitle());
                 statement.setString(3, username);
 
-                statement.executeUpdate();
+                if (statement.executeUpdate() > 0) {
+                    memeTitles.add(newTitle);
+                }
             }
         }
 
@@ -670,27 +916,554 @@ public class Database {
 
     /**
      * Delete the given meme from the database. The given user must be the uploader of the meme.
+     * The meme and the reference to its image are removed in a single transaction.
      * 
      * @param  memeTitle Meme to be deleted
      * @param  username Uploader's name
+     * @return Name of the image file that is no longer referenced by any meme, NULL if the file is still in use
      */
-    public void deleteMeme(String memeTitle, String username) throws SQLException {
+    public String deleteMeme(String memeTitle, String username) throws SQLException {
+        return transaction(() -> {
+
+            // Get the image of the meme before it is deleted
+            String imageHash = null;
+            String query = "SELECT imageHash FROM Meme WHERE title = ? AND username = ?";
+            try (PreparedStatement statement = connection.prepareStatement(query)) {
+                statement.setString(1, memeTitle);
+                statement.setString(2, username);
+                try (ResultSet meme = statement.executeQuery()) {
+                    if (meme.next()) {
+                        imageHash = meme.getString("imageHash");
+                    }
+                }
+            }
+
+            // Set SQL command
+            String command =
+                "DELETE FROM Meme " +
+                "WHERE title = ? AND username = ?"
+            ;
+
+            try (PreparedStatement statement = connection.prepareStatement(command)) {
+                statement.setString(1, memeTitle);
+                statement.setString(2, username);
+
+                // Nothing was deleted
+                if (statement.executeUpdate() == 0 || imageHash == null) {
+                    return null;
+                }
+            }
+
+            return releaseImage(imageHash);
+        });
+    }
+
+
+
+
+
+// ▛                 ▜
+//    Image methdos 
+// ▙                 ▟
+
+
+
+    /**
+     * Adds one reference to the image file. New images are added with a single reference.
+     * 
+     * @param  hash SHA-256 hash of the image file
+     * @param  type Type of the image file
+     */
+    private void referenceImage(String hash, String type) throws SQLException {
+        referenceImage(hash, type, null, null, null);
+    }
+
+
+    /**
+     * Adds one reference to the image file of the meme, along with the size read from its headers
+     * 
+     * @param  meme Meme holding the image
+     */
+    private void referenceImage(Meme meme) throws SQLException {
+        referenceImage(meme.getImageHash(), meme.getImageType(), meme.getWidth(), meme.getHeight(), meme.getFrameCount());
+    }
+
+
+    /**
+     * Adds one reference to the image file. New images are added with a single reference.
+     * Known size fills in the missing size of the image.
+     * 
+     * @param  hash SHA-256 hash of the image file
+     * @param  type Type of the image file
+     * @param  width Width of the image, NULL if unknown
+     * @param  height Height of the image, NULL if unknown
+     * @param  frames Frame count of the image, NULL if unknown
+     */
+    private void referenceImage(String hash, String type, Integer width, Integer height, Integer frames) throws SQLException {
 
         // Set SQL command
         String command =
-            "DELETE FROM Meme " +
-            "WHERE title = ? AND username = ?"
+            "INSERT INTO Image(hash, type, refCount, width, height, frames) " +
+            "VALUES(?, ?, 1, ?, ?, ?) " +
+            "ON CONFLICT(hash) DO UPDATE SET " +
+                "refCount = refCount + 1, " +
+                "width = COALESCE(width, excluded.width), " +
+                "height = COALESCE(height, excluded.height), " +
+                "frames = COALESCE(frames, excluded.frames)"
         ;
 
+        // Add the reference
         try (PreparedStatement statement = connection.prepareStatement(command)) {
-            statement.setString(1, memeTitle);
-            statement.setString(2, username);
+            statement.setString(1, hash);
+            statement.setString(2, type);
+            statement.setObject(3, width);
+            statement.setObject(4, height);
+            statement.setObject(5, frames);
+
+            statement.executeUpdate();
+        }
+    }
+
+
+    /**
+     * Removes one reference from the image file. The image is removed when it has no references left.
+     * Must be called inside a transaction.
+     * 
+     * @param  hash SHA-256 hash of the image file
+     * @return Name of the image file, if it has no references left. Otherwise NULL.
+     */
+    private String releaseImage(String hash) throws SQLException {
+
+        // Set SQL commands
+        String release = "UPDATE Image SET refCount = refCount - 1 WHERE hash = ?";
+        String unreferenced = "DELETE FROM Image WHERE hash = ? AND refCount <= 0 RETURNING type";
+
+        // Remove the reference
+        try (PreparedStatement statement = connection.prepareStatement(release)) {
+            statement.setString(1, hash);
+            statement.executeUpdate();
+        }
+
+        // Remove the image only if no references are left, checked by the same statement
+        try (PreparedStatement statement = connection.prepareStatement(unreferenced)) {
+            statement.setString(1, hash);
+            try (ResultSet image = statement.executeQuery()) {
+                if (!image.next()) {
+                    return null;
+                }
+                return hash + "." + image.getString("type");
+            }
+        }
+    }
+
+
+    /**
+     * Checks is the image file referenced by any meme
+     * 
+     * @param  hash SHA-256 hash of the image file
+     * @return Is the image referenced
+     */
+    public boolean isImageReferenced(String hash) throws SQLException {
+
+        // Set SQL command
+        String command = "SELECT refCount FROM Image WHERE hash = ?";
+
+        // Get the reference count
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setString(1, hash);
+            try (ResultSet image = statement.executeQuery()) {
+                return image.next() && image.getInt("refCount") > 0;
+            }
+        }
+    }
+
+
+    /**
+     * Gets titles of the memes that aren't yet linked to a stored image file
+     * 
+     * @return Titles of the memes
+     */
+    public List<String> getMemesWithoutImage() throws SQLException {
+        List<String> titles = new ArrayList<>();
+
+        // Set SQL command
+        String command = "SELECT title FROM Meme WHERE imageHash IS NULL";
+
+        // Seek all memes
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            try (ResultSet memes = statement.executeQuery()) {
+                while (memes.next()) {
+                    titles.add(memes.getString("title"));
+                }
+            }
+        }
+
+        return titles;
+    }
+
+
+    /**
+     * Links the meme to the stored image file
+     * 
+     * @param  memeTitle Title of the meme
+     * @param  hash SHA-256 hash of the image file
+     * @param  type Type of the image file
+     */
+    public void setMemeImage(String memeTitle, String hash, String type) throws SQLException {
+
+        // Set SQL command
+        String command = "UPDATE Meme SET imageHash = ? WHERE title = ? AND imageHash IS NULL";
+
+        // Link the image
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setString(1, hash);
+            statement.setString(2, memeTitle);
+
+            // Reference the image only if the meme was linked
+            if (statement.executeUpdate() > 0) {
+                referenceImage(hash, type);
+            }
+        }
+    }
+
+
+    /**
+     * Sets the perceptual hash of the meme
+     * 
+     * @param  memeId ID of the meme
+     * @param  perceptualHash 64-bit perceptual hash of the meme image
+     */
+    public void setPerceptualHash(int memeId, long perceptualHash) throws SQLException {
+
+        // Set SQL command
+        String command = "UPDATE Meme SET perceptualHash = ? WHERE id = ?";
+
+        // Store the hash
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setLong(1, perceptualHash);
+            statement.setInt(2, memeId);
 
             statement.executeUpdate();
         }
     }
 
 
+    /**
+     * Sets the processing status of the meme image
+     * 
+     * @param  memeId ID of the meme
+     * @param  status Processing status (pending, ready, failed or duplicate)
+     */
+    public void setImageStatus(int memeId, String status) throws SQLException {
+
+        // Set SQL command
+        String command = "UPDATE Meme SET imageStatus = ? WHERE id = ?";
+
+        // Store the status
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setString(1, status);
+            statement.setInt(2, memeId);
+
+            statement.executeUpdate();
+        }
+    }
+
+
+    /**
+     * Sets the dimensions and the frame count of the image
+     * 
+     * @param  hash SHA-256 hash of the image file
+     * @param  width Width of the image in pixels
+     * @param  height Height of the image in pixels
+     * @param  frames Count of the frames
+     */
+    public void setImageSize(String hash, int width, int height, int frames) throws SQLException {
+
+        // Set SQL command
+        String command = "UPDATE Image SET width = ?, height = ?, frames = ? WHERE hash = ?";
+
+        // Store the size
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setInt(1, width);
+            statement.setInt(2, height);
+            statement.setInt(3, frames);
+            statement.setString(4, hash);
+
+            statement.executeUpdate();
+        }
+    }
+
+
+    /**
+     * Links the image columns of the result row to the meme
+     * 
+     * @param  meme Meme created from the result row
+     * @param  memes Result row holding imageHash, perceptualHash, imageStatus, imageType, imageWidth, imageHeight and imageFrames columns
+     * @return The given meme
+     */
+    private Meme linkImage(Meme meme, ResultSet memes) throws SQLException {
+        meme.setImage(memes.getString("imageHash"), memes.getString("imageType"));
+
+        // Perceptual hash is NULL for memes that haven't been hashed yet
+        long perceptualHash = memes.getLong("perceptualHash");
+        meme.setPerceptualHash(memes.wasNull() ? null : perceptualHash);
+
+        // Size is NULL for images of older versions until they are processed
+        int width = memes.getInt("imageWidth");
+        int height = memes.getInt("imageHeight");
+        if (!memes.wasNull()) {
+            meme.setImageSize(width, height);
+        }
+
+        // Frame count is NULL for images of older versions
+        int frames = memes.getInt("imageFrames");
+        if (!memes.wasNull()) {
+            meme.setFrameCount(frames);
+        }
+        meme.setImageStatus(memes.getString("imageStatus"));
+
+        return meme;
+    }
+
+
+
+
+
+// ▛                    ▜
+//    ImageJob methdos 
+// ▙                    ▟
+
+
+
+    /**
+     * Adds pending background job of the meme image
+     * 
+     * @param  memeId ID of the meme
+     * @param  kind Kind of the job
+     * @param  priority Priority of the job (smaller runs first)
+     * @param  createdAt Creation time of the job in milliseconds
+     * @return ID of the job
+     */
+    public long addImageJob(int memeId, String kind, int priority, long createdAt) throws SQLException {
+
+        // Set SQL command
+        String command = "INSERT INTO ImageJob(memeId, kind, priority, createdAt) VALUES(?, ?, ?, ?)";
+
+        // Store the job and get its ID
+        try (PreparedStatement statement = connection.prepareStatement(command, Statement.RETURN_GENERATED_KEYS)) {
+            statement.setInt(1, memeId);
+            statement.setString(2, kind);
+            statement.setInt(3, priority);
+            statement.setLong(4, createdAt);
+
+            statement.executeUpdate();
+            try (ResultSet job = statement.getGeneratedKeys()) {
+                job.next();
+                return job.getLong(1);
+            }
+        }
+    }
+
+
+    /**
+     * Gets pending jobs in the order they should be run
+     * 
+     * @param  limit Maximum count of the jobs
+     * @return Pending jobs
+     */
+    public List<ImageJob> getImageJobs(int limit) throws SQLException {
+        List<ImageJob> jobs = new ArrayList<>();
+
+        // Set SQL command
+        String command = 
+            "SELECT id, memeId, kind, priority, createdAt FROM ImageJob " +
+            "ORDER BY priority, id " +
+            "LIMIT ?"
+        ;
+
+        // Seek the jobs
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setInt(1, limit);
+            try (ResultSet job = statement.executeQuery()) {
+                while (job.next()) {
+                    jobs.add(new ImageJob(
+                        job.getLong("id"),
+                        job.getInt("memeId"),
+                        job.getString("kind"),
+                        job.getInt("priority"),
+                        job.getLong("createdAt")
+                    ));
+                }
+            }
+        }
+
+        return jobs;
+    }
+
+
+    /**
+     * Deletes the finished job
+     * 
+     * @param  jobId ID of the job
+     */
+    public void deleteImageJob(long jobId) throws SQLException {
+
+        // Set SQL command
+        String command = "DELETE FROM ImageJob WHERE id = ?";
+
+        // Delete the job
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setLong(1, jobId);
+
+            statement.executeUpdate();
+        }
+    }
+
+
+    /**
+     * Gets IDs of the memes whose image hasn't been processed and has no pending job
+     * 
+     * @return IDs of the memes
+     */
+    public List<Integer> getUnprocessedMemeIds() throws SQLException {
+        List<Integer> memeIds = new ArrayList<>();
+
+        // Set SQL command
+        String command = 
+            "SELECT id FROM Meme " +
+            "WHERE imageHash IS NOT NULL " +
+            "AND (imageStatus IS NULL OR imageStatus = 'pending') " +
+            "AND id NOT IN (SELECT memeId FROM ImageJob)"
+        ;
+
+        // Seek the memes
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            try (ResultSet memes = statement.executeQuery()) {
+                while (memes.next()) {
+                    memeIds.add(memes.getInt("id"));
+                }
+            }
+        }
+
+        return memeIds;
+    }
+
+
+
+
+
+// ▛                   ▜
+//    Session methdos 
+// ▙                   ▟
+
+
+
+    /**
+     * Gets the stored session
+     * 
+     * @param  sessionId ID of the session
+     * @return Stored session, NULL if there's no such session
+     */
+    public SessionRecord getSession(String sessionId) throws SQLException {
+
+        // Set SQL command
+        String command = "SELECT id, username, createdAt, lastAccess FROM Session WHERE id = ?";
+
+        // Seek the session
+        try (PreparedStatement statement = connection.prepareStatement(command)) {
+            statement.setString(1, sessionId);
+            try (ResultSet session = statement.executeQuery()) {
+                if (!session.next()) {
+                    return null;
+                }
+
+                return new SessionRecord(
+                    session.getString("id"),
+                    session.getString("username"),
+                    session.getLong("createdAt"),
+                    session.getLong("lastAccess")
+                );
+            }
+        }
+    }
+
+
+    /**
+     * Stores the new and used sessions and deletes the ended ones in one transaction
+     * 
+     * @param  sessions Sessions to store or update
+     * @param  endedIds IDs of the ended sessions
+     */
+    public void saveSessions(List<SessionRecord> sessions, List<String> endedIds) throws SQLException {
+
+        // Set SQL commands
+        String store = 
+            "INSERT INTO Session(id, username, createdAt, lastAccess) VALUES(?, ?, ?, ?) " +
+            "ON CONFLICT(id) DO UPDATE SET lastAccess = MAX(lastAccess, excluded.lastAccess)"
+        ;
+        String delete = "DELETE FROM Session WHERE id = ?";
+
+        // One commit for the whole batch
+        transaction(() -> {
+            try (PreparedStatement statement = connection.prepareStatement(store)) {
+                for (SessionRecord session: sessions) {
+                    statement.setString(1, session.id());
+                    statement.setString(2, session.username());
+                    statement.setLong(3, session.createdAt());
+                    statement.setLong(4, session.lastAccess());
+                    statement.addBatch();
+                }
+
+                statement.executeBatch();
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(delete)) {
+                for (String sessionId: endedIds) {
+                    statement.setString(1, sessionId);
+                    statement.addBatch();
+                }
+
+                statement.executeBatch();
+            }
+
+            return null;
+        });
+    }
+
+
+    /**
+     * Deletes the stored sessions which have expired
+     * 
+     * @param  now Current time in milliseconds
+     * @param  idleMillis Session ends after this long unused
+     * @param  maxAgeMillis Session ends this long after the login
+     * @return Time the last stored session expires, 0 if none is left
+     */
+    public long deleteExpiredSessions(long now, long idleMillis, long maxAgeMillis) throws SQLException {
+
+        // Set SQL commands
+        String delete = "DELETE FROM Session WHERE lastAccess <= ? OR createdAt <= ?";
+        String lastExpiry = "SELECT MAX(MIN(lastAccess + ?, createdAt + ?)) FROM Session";
+
+        // Delete the expired sessions
+        try (PreparedStatement statement = connection.prepareStatement(delete)) {
+            statement.setLong(1, now - idleMillis);
+            statement.setLong(2, now - maxAgeMillis);
+
+            statement.executeUpdate();
+        }
+
+        // Seek the expiry of the rest
+        try (PreparedStatement statement = connection.prepareStatement(lastExpiry)) {
+            statement.setLong(1, idleMillis);
+            statement.setLong(2, maxAgeMillis);
+            try (ResultSet expiry = statement.executeQuery()) {
+                return expiry.next() ? expiry.getLong(1) : 0;
+            }
+        }
+    }
+
+
 
 
 
@@ -0,0 +1,277 @@
+package code.backend;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import code.backend.metrics.Metrics;
+import code.backend.trace.Tracer;
+
+
+/**
+ * Limits the threads using the database connection at once.
+ *
+ * The connection is shared by every request, and the driver serializes the
+ * calls on it by blocking inside the driver. With a thread per request this
+ * lets every waiting thread pile up on the connection; here they wait in a
+ * fair queue instead, which parks virtual threads without holding their
+ * carrier threads.
+ *
+ * Access is held from preparing a statement until closing it, so the result
+ * sets are read under the same access. Access is reentrant, a thread that
+ * prepares more statements while reading results doesn't wait on itself.
+ * A transaction takes every permit, so no other thread's statement runs
+ * inside it.
+ *
+ * Every database call passes here, so the outermost access of a thread is
+ * also where the calls are measured: the time from waiting for the permit
+ * to releasing it goes to the metrics and to the trace of the request,
+ * named by the Database method that started the access. The method of a
+ * statement is looked up from the stack once and then kept by the text of
+ * the statement, as walking the stack costs more than a short query.
+ */
+final class DatabaseAccessLimiter {
+
+
+    private final Semaphore permits;
+    private final int concurrency;
+
+    private final ThreadLocal<Access> access = ThreadLocal.withInitial(Access::new);
+
+    // Database method preparing each statement text
+    private static final Map<String, String> METHODS = new ConcurrentHashMap<>();
+    private static final int MAX_METHODS = 1024;
+    private static final StackWalker STACK = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    private static final String ERROR_MESSAGE = " - DATABASE: ";
+
+
+
+    /**
+     * Access of a thread
+     */
+    private static final class Access {
+
+        // Depth of the access and the permits held
+        private int depth = 0;
+        private int permits = 0;
+
+        // Measured call of the outermost access
+        private String method = null;
+        private long start = 0;
+    }
+
+
+
+    /**
+     * Creates limiter
+     *
+     * @param concurrency Threads allowed to use the connection at once
+     */
+    DatabaseAccessLimiter(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        this.permits = new Semaphore(this.concurrency, true);
+    }
+
+
+
+
+    /**
+     * Enters the database, waits until a permit is free unless the thread already holds one
+     *
+     * @param  sql Text of the statement, NULL if it has none
+     * @throws SQLException If the thread was interrupted while waiting
+     */
+    void enter(String sql) throws SQLException {
+        Access held = access.get();
+
+        if (held.depth == 0) {
+            acquire(held, 1, methodOf(sql));
+        }
+
+        held.depth++;
+    }
+
+
+    /**
+     * Enters the database alone, waits until every permit is free unless the thread already holds them
+     *
+     * @throws SQLException If the thread was interrupted while waiting, or holds only a shared access
+     */
+    void enterExclusive() throws SQLException {
+        Access held = access.get();
+
+        if (held.depth == 0) {
+            acquire(held, concurrency, "transaction");
+        }
+
+        // Waiting for the rest of the permits would wait on itself
+        else if (held.permits < concurrency) {
+            throw new SQLException(ERROR_MESSAGE + "Transaction started while a statement is open");
+        }
+
+        held.depth++;
+    }
+
+
+    /**
+     * Leaves the database, the permits are freed when the outermost access ends
+     */
+    void exit() {
+        Access held = access.get();
+
+        if (--held.depth == 0) {
+            permits.release(held.permits);
+            held.permits = 0;
+
+            Metrics.databaseCall(held.method).recordSince(held.start);
+            Tracer.span("Database." + held.method, held.start);
+        }
+    }
+
+
+    /**
+     * Gets the count of the threads waiting for the database
+     *
+     * @return Count of the waiting threads
+     */
+    int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+
+    private void acquire(Access held, int count, String method) throws SQLException {
+        held.method = method;
+        held.start = System.nanoTime();
+
+        try {
+            permits.acquire(count);
+            held.permits = count;
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(ERROR_MESSAGE + "Interrupted while waiting for the database");
+        }
+    }
+
+
+
+
+    /**
+     * Gets the name of the Database method preparing the statement
+     *
+     * @param  sql Text of the statement, NULL if it has none
+     * @return Name of the method
+     */
+    private static String methodOf(String sql) {
+        if (sql == null) {
+            return callingMethod();
+        }
+
+        String method = METHODS.get(sql);
+        if (method == null) {
+            method = callingMethod();
+            if (METHODS.size() < MAX_METHODS) {
+                METHODS.put(sql, method);
+            }
+        }
+
+        return method;
+    }
+
+
+    /**
+     * Gets the name of the Database method running the access
+     *
+     * @return Name of the nearest Database method on the stack, statements of the constructor are named open
+     */
+    private static String callingMethod() {
+        return STACK.walk(frames -> frames
+            .filter(frame -> frame.getDeclaringClass() == Database.class && !frame.getMethodName().startsWith("lambda$"))
+            .findFirst()
+            .map(frame -> frame.getMethodName().equals("<init>") ? "open" : frame.getMethodName())
+            .orElse("unknown")
+        );
+    }
+
+
+
+
+    /**
+     * Wraps the connection so every statement holds access until it is closed
+     *
+     * @param  connection Connection to the database
+     * @return Limited connection
+     */
+    Connection wrap(Connection connection) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (!Statement.class.isAssignableFrom(method.getReturnType())) {
+                return invoke(connection, method, args);
+            }
+
+            // Statements hold access until they are closed
+            enter((args != null && args.length > 0 && args[0] instanceof String sql) ? sql : null);
+            try {
+                Statement statement = (Statement) invoke(connection, method, args);
+                return wrap(statement, method.getReturnType());
+            }
+
+            catch (Throwable e) {
+                exit();
+                throw e;
+            }
+        };
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+    }
+
+
+    /**
+     * Wraps the statement so closing it releases the access
+     *
+     * @param  statement Opened statement
+     * @param  type Interface of the statement
+     * @return Limited statement
+     */
+    private Object wrap(Statement statement, Class<?> type) {
+        boolean[] closed = {false};
+
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (!method.getName().equals("close") || method.getParameterCount() != 0) {
+                return invoke(statement, method, args);
+            }
+
+            // Statements may be closed more than once
+            try {
+                return invoke(statement, method, args);
+            }
+
+            finally {
+                if (!closed[0]) {
+                    closed[0] = true;
+                    exit();
+                }
+            }
+        };
+
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
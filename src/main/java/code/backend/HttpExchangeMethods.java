@@ -7,7 +7,6 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.invoke.WrongMethodTypeException;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -16,6 +15,13 @@ import org.apache.commons.fileupload.MultipartStream;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 
+import code.backend.log.Log;
+import code.backend.request.RequestParser;
+import code.backend.router.RequestContext;
+import code.backend.session.SessionStore;
+import code.backend.upload.LimitedInputStream;
+import code.backend.upload.UploadTooLargeException;
+
 public class HttpExchangeMethods {
 
 
@@ -65,6 +71,22 @@ public class HttpExchangeMethods {
      * @throws WrongMethodTypeException Request's method type is invalid
      */
     public MultipartStream getMultipartContent(Headers headers) throws IOException {
+        return getMultipartContent(headers, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Gets the content of the request while cheking its validity and size. The
+     * size is checked from the Content-Length header up front, and again while
+     * the content is read, so chunked requests can't exceed it either.
+     *
+     * @param  headers HTTPS request and response headers
+     * @param  maxBytes Maximum size of the request content
+     * @return Request content
+     * @throws WrongMethodTypeException Request's method type is invalid
+     * @throws UploadTooLargeException Request content is larger than the maximum size
+     */
+    public MultipartStream getMultipartContent(Headers headers, long maxBytes) throws IOException {
 
         // Check content type validity
         String contentType = headerContent(headers);
@@ -78,8 +100,14 @@ public class HttpExchangeMethods {
             throw new IOException("Missing boundary in Content-Type");
         }
 
+        // Reject too large requests before reading them
+        String contentLength = headers.getFirst("Content-Length");
+        if (contentLength != null && Long.parseLong(contentLength.trim()) > maxBytes) {
+            throw new UploadTooLargeException(": Request is larger than " + maxBytes + " bytes");
+        }
+
         // Get reader for stream file
-        InputStream inputStream = exchange.getRequestBody();
+        InputStream inputStream = new LimitedInputStream(exchange.getRequestBody(), maxBytes);
 
         // Get content length boundary
         String boundary = contentType.substring(boundaryIndex + "boundary=".length()).trim();
@@ -94,6 +122,27 @@ public class HttpExchangeMethods {
 
 
 
+    /**
+     * Gets the size of the request content from the Content-Length header
+     *
+     * @param  defaultLength Size used if the header is missing or invalid (chunked requests)
+     * @return Size of the content in bytes
+     */
+    public long getContentLength(long defaultLength) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+
+        try {
+            return (contentLength == null) ? defaultLength : Long.parseLong(contentLength.trim());
+        }
+
+        catch (NumberFormatException e) {
+            return defaultLength;
+        }
+    }
+
+
+
+
     /**
     * Gets the content from the header
     *
@@ -118,11 +167,17 @@ public class HttpExchangeMethods {
     /**
     * Gets username from authentication query
     *
-    * @param  sessions Session map holding the usernames
+    * @param  sessions Sessions of the logged users
     * @return User's username string
     * @throws SecurityException If given user is not registered 
     */
-    public String checkUserValidity(Map<String, String> sessions) {
+    public String checkUserValidity(SessionStore sessions) {
+        // User authenticated by the chain of the route
+        String user = RequestContext.current().getUser();
+        if (user != null) {
+            return user;
+        }
+
         if (exchange.getPrincipal() == null) {
             return checkSessiosIdValidity(sessions);
         }
@@ -134,32 +189,17 @@ public class HttpExchangeMethods {
     /**
      * Gets username from the sessions with the given session ID
      * 
-     * @param  sessions Session map holding the usernames
+     * @param  sessions Sessions of the logged users
      * @return User's username string
      * @throws SecurityException If the session ID is invalid
      */
-    private String checkSessiosIdValidity(Map<String, String> sessions) {
-        List<String> cookiesHeader = exchange.getRequestHeaders().get("Cookie");
+    private String checkSessiosIdValidity(SessionStore sessions) {
 
-        if (cookiesHeader == null) {
-            throw new SecurityException("User isn't authenticated\n");
-        }
+        // Check all session ID cookies
+        String username = RequestParser.findCookie(exchange.getRequestHeaders().get("Cookie"), "sessionId", sessions::getUser);
 
-        // Iterate cookie header
-        for (String header: cookiesHeader) {
-            String[] cookies = header.split(";");
-            
-            // Check all cookies
-            for (String cookie: cookies) {
-                String[] cookiePair = cookie.split("=");
-                String key = cookiePair[0];
-                String value = cookiePair[1];
-
-                // Check the session ID alidity
-                if (key.equals("sessionId") && sessions.containsKey(value)) {
-                    return sessions.get(value);
-                }
-            }
+        if (username != null) {
+            return username;
         }
 
         throw new SecurityException("User isn't authenticated\n");
@@ -167,6 +207,17 @@ public class HttpExchangeMethods {
 
 
 
+    /**
+     * Gets the values of the session ID cookies of the request
+     *
+     * @return Session IDs, empty if there are none
+     */
+    public List<String> getSessionIds() {
+        return RequestParser.getCookies(exchange.getRequestHeaders().get("Cookie"), "sessionId");
+    }
+
+
+
 
 
     /**
@@ -180,7 +231,7 @@ public class HttpExchangeMethods {
         // Transform message to bytes
         byte[] responseBytes = (errorMessage + message).getBytes(StandardCharsets.UTF_8);
 
-        System.out.println(errorMessage + message);
+        Log.error("{}{}", errorMessage, message);
     
         try (OutputStream outputStream = exchange.getResponseBody()) {
 
@@ -192,7 +243,7 @@ public class HttpExchangeMethods {
             outputStream.flush();
 
         } catch (IOException e) {
-            System.out.println("Error writing response: "+e.getMessage()+"\n");
+            Log.error("Error writing response: {}", e.getMessage());
         }
     }
     
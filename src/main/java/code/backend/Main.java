@@ -1,11 +1,13 @@
 package code.backend;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.KeyStore;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -23,14 +25,46 @@ import com.sun.net.httpserver.HttpsParameters;
 import com.sun.net.httpserver.HttpsServer;
 
 import code.backend.CORS.CORSWrapper;
+import code.backend.compression.CompressionWrapper;
 import code.backend.handlers.HelpHandler;
+import code.backend.handlers.ImageQueueHandler;
 import code.backend.handlers.LoginHandler;
+import code.backend.handlers.LogoutHandler;
+import code.backend.handlers.MemeBatchHandler;
 import code.backend.handlers.MemeDirectoryHandler;
 import code.backend.handlers.MemeHandler;
 import code.backend.handlers.MemeSearchHandler;
+import code.backend.handlers.MemeSimilarHandler;
+import code.backend.handlers.MemeUploadHandler;
+import code.backend.handlers.MetricsHandler;
 import code.backend.handlers.ServerHandler;
 import code.backend.handlers.TagHandler;
+import code.backend.handlers.TraceHandler;
+import code.backend.handlers.UploadAdmissionHandler;
 import code.backend.handlers.RegistrationHandler;
+import code.backend.image.ImageWorkQueue;
+import code.backend.image.SimilarityIndex;
+import code.backend.log.Log;
+import code.backend.metrics.Metrics;
+import code.backend.metrics.MetricsWrapper;
+import code.backend.ratelimit.RateLimitPolicy;
+import code.backend.ratelimit.RateLimitWrapper;
+import code.backend.ratelimit.RateLimiter;
+import code.backend.router.Route;
+import code.backend.router.Router;
+import code.backend.server.NioHttpsServer;
+import code.backend.session.SessionStore;
+import code.backend.storage.FileImageStore;
+import code.backend.storage.ImageStore;
+import code.backend.storage.ImageStoreMigration;
+import code.backend.storage.TracedImageStore;
+import code.backend.trace.TraceWrapper;
+import code.backend.trace.Tracer;
+import code.backend.upload.UploadAdmission;
+import code.backend.upload.UploadSessionStore;
+import code.backend.user.AdministratorWrapper;
+import code.backend.user.AuthenticationWrapper;
+import code.backend.user.PasswordHasher;
 import code.backend.user.UserAuthenticator;
 
 public class Main {
@@ -46,51 +80,151 @@ public class Main {
     	String keystorePassword = args[1];
 
 		try {
-			// Create the https server to port 8001 with default logger
-			HttpsServer server = HttpsServer.create(new InetSocketAddress(8001), 0);
+			// Create the https server to port 8001 (memes.server = jdk or nio)
+			HttpsServer server = createServer(System.getProperty("memes.server", "jdk"), new InetSocketAddress(8001));
 			SSLContext sslContext = serverSSLContext(keystorePath, keystorePassword);
 			configureServer(server, sslContext);
 
 			// Create database
 			Database database = Database.open("memes.db");
 
+			// Create image store (memes.storage = file or segment) and move images saved by title to it
+			File memeDirectory = new File(System.getProperty("user.dir"), "memes");
+			ImageStore imageStore = ImageStore.create(System.getProperty("memes.storage", "file"), memeDirectory);
+			imageStore.adoptLegacyFiles(database);
+			imageStore.deleteTemporaryFiles();
+
+			// Move files of the flat layout to the sharded layout
+			if (imageStore instanceof FileImageStore fileStore) {
+				ImageStoreMigration.startInBackground(fileStore);
+			}
+
+			// Record the file operations to the sampled traces (memes.traceSampleRate)
+			imageStore = TracedImageStore.wrap(imageStore);
+
+			// Index the perceptual hashes of the memes
+			SimilarityIndex similarityIndex = new SimilarityIndex();
+			similarityIndex.load(database);
+
+			// Start the background image processing
+			ImageWorkQueue imageWorkQueue = new ImageWorkQueue(
+				database, imageStore, similarityIndex,
+				Integer.getInteger("memes.imageWorkers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+				Integer.getInteger("memes.imageQueueSize", 1024)
+			);
+			imageWorkQueue.start();
+
+			// Limit the uploads running at once
+			UploadAdmission uploadAdmission = new UploadAdmission();
+
+			// Keep the partial data of the resumable uploads next to the images
+			UploadSessionStore uploadSessions = new UploadSessionStore(new File(memeDirectory, "uploads"));
+
+			// Hash the passwords on threads of their own, so a burst of logins can't take the whole server
+			PasswordHasher passwordHasher = new PasswordHasher();
+
 			// Configure authenticator
-			UserAuthenticator authenticator = new UserAuthenticator(database);
-			Map<String, String> sessions = new HashMap<>();
-
-			// Create CORS contexts
-            createCORSContext(server, "/api", new ServerHandler());
-			HttpContext help = createCORSContext(server, "/api/help", new HelpHandler());
-			HttpContext registration = createCORSContext(server, "/api/user/registration", new RegistrationHandler(authenticator));
-			HttpContext login = createCORSContext(server, "/api/user/login", new LoginHandler(database, sessions));
-			HttpContext post = createCORSContext(server, "/api/meme", new MemeHandler(database, sessions));
-			HttpContext memeDir = createCORSContext(server, "/api/meme/dir", new MemeDirectoryHandler());
-			HttpContext search = createCORSContext(server, "/api/meme/search", new MemeSearchHandler(database));
-			HttpContext tag = createCORSContext(server, "/api/tag", new TagHandler(database));
-
-			// Set authenticators
-			help.setAuthenticator(null);
-			registration.setAuthenticator(null);
-			login.setAuthenticator(null);
-			post.setAuthenticator(null);
-			memeDir.setAuthenticator(null);
-			search.setAuthenticator(null);
-			tag.setAuthenticator(null);
-
-			// Creates a default executor
-			server.setExecutor(Executors.newCachedThreadPool());
+			UserAuthenticator authenticator = new UserAuthenticator(database, passwordHasher);
+
+			// Server sessions are kept in the database, so restarts don't log the users out;
+			// token sessions are checked by any server holding the key (memes.sessions = server or token)
+			SessionStore sessions = SessionStore.create(System.getProperty("memes.sessions", "server"), database);
+
+			// Operational routes are served to the administrators only (memes.administrators)
+			Set<String> administrators = AdministratorWrapper.readAdministrators();
+
+			// Every request passes the filters of its route, in this order
+			Router router = new Router(List.of(
+				(route, next) -> new MetricsWrapper(route.getPath(), next),
+				(route, next) -> Tracer.isEnabled() ? new TraceWrapper(next) : next,
+				(route, next) -> new CORSWrapper(route.getAllow(), next),
+				(route, next) -> rateLimit(route, sessions, next),
+				(route, next) -> route.isAuthenticated() ? new AuthenticationWrapper(sessions, next) : next,
+				(route, next) -> route.isAdministrative() ? new AdministratorWrapper(administrators, next) : next,
+				(route, next) -> new CompressionWrapper(next)
+			));
+
+			// Routes of the API
+			router
+				.add(new Route("/api", new ServerHandler(), "GET"))
+				.add(new Route("/api/help", new HelpHandler(), "GET"))
+				.add(new Route("/api/user/registration", new RegistrationHandler(authenticator), "POST"))
+				.add(new Route("/api/user/login", new LoginHandler(authenticator, sessions), "POST"))
+				.add(new Route("/api/user/logout", new LogoutHandler(sessions), "POST"))
+				.add(new Route("/api/meme", new MemeHandler(database, sessions, imageStore, imageWorkQueue, uploadAdmission), "POST", "PUT", "DELETE").authenticated())
+				.add(new Route("/api/meme/batch", new MemeBatchHandler(database, sessions, imageStore, imageWorkQueue, uploadAdmission), "POST").authenticated())
+				.add(new Route("/api/meme/dir/{file}", new MemeDirectoryHandler(imageStore), "GET"))
+				.add(new Route("/api/meme/search", new MemeSearchHandler(database, imageStore), "GET"))
+				.add(new Route("/api/meme/similar", new MemeSimilarHandler(database, similarityIndex), "GET"))
+				.add(new Route("/api/meme/queue", new ImageQueueHandler(imageWorkQueue), "GET").administrative())
+				.add(new Route("/api/meme/admission", new UploadAdmissionHandler(uploadAdmission), "GET").administrative())
+				.add(new Route("/api/tag", new TagHandler(database), "GET", "POST", "DELETE"))
+				.add(new Route("/api/metrics", new MetricsHandler(), "GET").administrative())
+				.add(new Route("/api/traces", new TraceHandler(), "GET").administrative())
+			;
+
+			// Resumable uploads, the session id is the last segment of the path
+			MemeUploadHandler uploadHandler = new MemeUploadHandler(database, sessions, imageStore, imageWorkQueue, uploadSessions, uploadAdmission);
+			router
+				.add(new Route("/api/meme/upload", uploadHandler, "POST").authenticated())
+				.add(new Route("/api/meme/upload/{id}", uploadHandler, "POST", "PUT", "GET", "DELETE").authenticated())
+			;
+
+			// One context serves all the paths
+			HttpContext context = server.createContext("/", router);
+			context.setAuthenticator(null);
+
+			// Gauges read when the metrics are scraped
+			Metrics.registerGauge("database_waiting_threads", "Threads waiting for the database connection", database::getWaitingThreads);
+			Metrics.registerGauge("sessions", "Sessions of the logged users", sessions::size);
+			Metrics.registerGauge("password_hash_queued", "Passwords waiting to be hashed", passwordHasher::getQueued);
+			Metrics.registerGauge("password_hash_rejected", "Passwords rejected as too many were waiting", passwordHasher::getRejected);
+
+			// Run the requests on pooled platform threads or a virtual thread each (memes.executor = platform or virtual)
+			server.setExecutor(Metrics.instrument(createExecutor(System.getProperty("memes.executor", "platform"))));
 
 			// Start server
 			server.start();
-			System.out.println("Server started\n");
+			Log.info("Server started");
 		}
 
 		catch (Exception e) {
-			System.out.println(
-				"""
-                [ERROR] - MAIN: Served did not start. 
-                \r"""+e.getMessage()
-			);
+			Log.error("[ERROR] - MAIN: Served did not start.\n{}", e.getMessage());
+		}
+	}
+
+
+
+
+    /**
+     * Creates the server engine
+     *
+     * @param  engine "jdk" for com.sun.net.httpserver, "nio" for the selector-based server
+     * @param  address Address of the server
+     * @return Unstarted server bound to the address
+     */
+	public static HttpsServer createServer(String engine, InetSocketAddress address) throws IOException {
+		switch (engine.toLowerCase()) {
+			case "jdk" -> {return HttpsServer.create(address, 0);}
+			case "nio" -> {return NioHttpsServer.create(address, 0);}
+			default -> throw new IllegalArgumentException("[ERROR] - MAIN: Unknown server engine \"" + engine + "\"");
+		}
+	}
+
+
+
+
+    /**
+     * Creates the executor running the requests
+     *
+     * @param  mode "platform" for a cached pool of platform threads, "virtual" for a virtual thread per request
+     * @return Executor of the server
+     */
+	public static ExecutorService createExecutor(String mode) {
+		switch (mode.toLowerCase()) {
+			case "platform" -> {return Executors.newCachedThreadPool();}
+			case "virtual" -> {return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("request-", 0).factory());}
+			default -> throw new IllegalArgumentException("[ERROR] - MAIN: Unknown executor mode \"" + mode + "\"");
 		}
 	}
 
@@ -148,13 +282,14 @@ public class Main {
 
 
 
-	private static HttpContext createCORSContext(HttpServer server, String path, HttpHandler handler) {
-		CORSWrapper corsWrapper = new CORSWrapper(handler);
+	private static HttpHandler rateLimit(Route route, SessionStore sessions, HttpHandler nextHandler) {
+		RateLimitPolicy policy = RateLimitPolicy.forEndpoint(route.getPath());
 
-		// CORS context
-		return server.createContext(path, corsWrapper);
+		// Requests of each client are limited by the policy of the route
+		if (policy == null) {
+			return nextHandler;
+		}
 
-		// Normal context
-		//return server.createContext(path, handler);
+		return new RateLimitWrapper(new RateLimiter(policy), sessions, nextHandler);
 	}
-}
\ No newline at end of file
+}
@@ -15,6 +15,13 @@ public class Meme implements Comparable<Meme> {
     private Integer tagCount;
     private Integer id;
     private Integer likes;
+    private String imageHash;
+    private String imageType;
+    private Long perceptualHash;
+    private String imageStatus;
+    private Integer width;
+    private Integer height;
+    private Integer frames;
 
     private static final String ERROR_MESSAGE = "-MEME: ";
 
@@ -84,6 +91,60 @@ public class Meme implements Comparable<Meme> {
     }
 
 
+    /**
+     * Links the meme to its stored image file
+     * 
+     * @param imageHash SHA-256 hash of the image file as hex string
+     * @param imageType Type of the image file (png or gif)
+     */
+    public void setImage(String imageHash, String imageType) {
+        this.imageHash = imageHash;
+        this.imageType = imageType;
+    }
+
+
+    /**
+     * Sets the perceptual hash of the meme image, used for finding similar memes
+     * 
+     * @param perceptualHash 64-bit perceptual hash, NULL if not calculated
+     */
+    public void setPerceptualHash(Long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+    }
+
+
+    /**
+     * Sets the processing status of the meme image
+     * 
+     * @param imageStatus Status (pending, ready, failed or duplicate), NULL if the image was never processed
+     */
+    public void setImageStatus(String imageStatus) {
+        this.imageStatus = imageStatus;
+    }
+
+
+    /**
+     * Sets the dimensions of the meme image
+     * 
+     * @param width Width in pixels
+     * @param height Height in pixels
+     */
+    public void setImageSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+     * Sets the frame count of the meme image
+     * 
+     * @param frames Count of the frames (1 for still images)
+     */
+    public void setFrameCount(int frames) {
+        this.frames = frames;
+    }
+
+
 
 
     public String getTitle() {
@@ -128,6 +189,55 @@ public class Meme implements Comparable<Meme> {
     }
 
 
+    public String getImageHash() {
+        return imageHash;
+    }
+
+
+    public String getImageType() {
+        return imageType;
+    }
+
+
+    public Long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+
+    public String getImageStatus() {
+        return imageStatus;
+    }
+
+
+    public Integer getWidth() {
+        return width;
+    }
+
+
+    public Integer getHeight() {
+        return height;
+    }
+
+
+    public Integer getFrameCount() {
+        return frames;
+    }
+
+
+    /**
+     * Gets the name of the stored image file, NULL if the meme has no image linked
+     * 
+     * @return Image file name
+     */
+    public String getImageFileName() {
+        if (imageHash == null || imageType == null) {
+            return null;
+        }
+
+        return imageHash + "." + imageType;
+    }
+
+
 
     public JSONObject toJSONString() { 
         JSONObject memeJson = new JSONObject();
@@ -137,6 +247,7 @@ public class Meme implements Comparable<Meme> {
         memeJson.put("tagCount", tagCount);
         memeJson.put("id", id);
         memeJson.put("likes", likes);
+        memeJson.put("status", imageStatus);
 
         return memeJson;
     }
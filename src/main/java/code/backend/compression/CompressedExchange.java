@@ -0,0 +1,307 @@
+package code.backend.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Locale;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Exchange compressing the response body of the wrapped exchange. The choice
+ * is made when the handler sends the headers: a compressed response goes out
+ * in chunks, because its length isn't known before the body is written.
+ */
+final class CompressedExchange extends HttpExchange {
+
+
+    private final HttpExchange exchange;
+    private final int minimumSize;
+    private final int level;
+    private final ResponseStream responseBody = new ResponseStream();
+    private boolean bypassed = false;
+
+
+
+    /**
+     * Creates compressing exchange
+     *
+     * @param exchange Exchange of the server
+     * @param minimumSize Smallest body length worth compressing
+     * @param level Compression level from 1 to 9
+     */
+    CompressedExchange(HttpExchange exchange, int minimumSize, int level) {
+        this.exchange = exchange;
+        this.minimumSize = minimumSize;
+        this.level = level;
+    }
+
+
+
+
+// ▛                       ▜
+//    Compression methods
+// ▙                       ▟
+
+
+
+    /**
+     * Leaves the response as the handler writes it. Used by the responses
+     * which carry their own precompressed bodies.
+     */
+    void bypass() {
+        bypassed = true;
+    }
+
+
+    @Override
+    public void sendResponseHeaders(int statusCode, long length) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        boolean eligible = !bypassed && isCompressible(statusCode, length, headers);
+
+        ContentEncoding encoding = eligible
+            ? ContentEncoding.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"))
+            : null
+        ;
+
+        // Caches must keep the codings apart
+        if (eligible) {
+            headers.add("Vary", "Accept-Encoding");
+        }
+
+        if (encoding == null) {
+            exchange.sendResponseHeaders(statusCode, length);
+            responseBody.target = exchange.getResponseBody();
+            return;
+        }
+
+        headers.set("Content-Encoding", encoding.getToken());
+        headers.remove("Content-Length");
+        exchange.sendResponseHeaders(statusCode, 0);
+        responseBody.target = encoding.wrap(exchange.getResponseBody(), level);
+    }
+
+
+    /**
+     * Checks if the response is worth compressing
+     *
+     * @param  statusCode Status code of the response
+     * @param  length Body length given by the handler, 0 if unknown and -1 if none
+     * @param  headers Response headers
+     * @return True if the body should be compressed
+     */
+    private boolean isCompressible(int statusCode, long length, Headers headers) {
+        if (length < 0 || (length > 0 && length < minimumSize)) {
+            return false;
+        }
+        if (statusCode < 200 || statusCode == 204 || statusCode == 304) {
+            return false;
+        }
+        if (exchange.getRequestMethod().equalsIgnoreCase("HEAD") || headers.containsKey("Content-Encoding")) {
+            return false;
+        }
+
+        // Images, audio, video and archives are compressed already
+        String contentType = headers.getFirst("Content-Type");
+        if (contentType == null) {
+            return true;
+        }
+
+        contentType = contentType.toLowerCase(Locale.ROOT);
+        if (contentType.startsWith("image/")) {
+            return contentType.startsWith("image/svg");
+        }
+
+        return !contentType.startsWith("audio/")
+            && !contentType.startsWith("video/")
+            && !contentType.startsWith("application/zip")
+            && !contentType.startsWith("application/gzip")
+        ;
+    }
+
+
+    /**
+     * Finishes the compressed body and closes the wrapped exchange
+     */
+    @Override
+    public void close() {
+        try {
+            responseBody.close();
+        }
+
+        catch (IOException e) {
+            Log.error("[ERROR] - COMPRESSION: Response body not finished: {}", e.getMessage());
+        }
+
+        finally {
+            exchange.close();
+        }
+    }
+
+
+
+
+// ▛                    ▜
+//    Exchange methods
+// ▙                    ▟
+
+
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+
+    @Override
+    public Headers getRequestHeaders() {
+        return exchange.getRequestHeaders();
+    }
+
+
+    @Override
+    public Headers getResponseHeaders() {
+        return exchange.getResponseHeaders();
+    }
+
+
+    @Override
+    public URI getRequestURI() {
+        return exchange.getRequestURI();
+    }
+
+
+    @Override
+    public String getRequestMethod() {
+        return exchange.getRequestMethod();
+    }
+
+
+    @Override
+    public HttpContext getHttpContext() {
+        return exchange.getHttpContext();
+    }
+
+
+    @Override
+    public InputStream getRequestBody() {
+        return exchange.getRequestBody();
+    }
+
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return exchange.getRemoteAddress();
+    }
+
+
+    @Override
+    public int getResponseCode() {
+        return exchange.getResponseCode();
+    }
+
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return exchange.getLocalAddress();
+    }
+
+
+    @Override
+    public String getProtocol() {
+        return exchange.getProtocol();
+    }
+
+
+    @Override
+    public Object getAttribute(String name) {
+        return exchange.getAttribute(name);
+    }
+
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        exchange.setAttribute(name, value);
+    }
+
+
+    @Override
+    public void setStreams(InputStream input, OutputStream output) {
+        exchange.setStreams(input, output);
+    }
+
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return exchange.getPrincipal();
+    }
+
+
+
+
+    /**
+     * Response body handed out before the headers are sent. Writes go to the
+     * stream chosen by sendResponseHeaders.
+     */
+    private static final class ResponseStream extends OutputStream {
+
+
+        private OutputStream target = null;
+        private boolean closed = false;
+
+
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            target().write(bytes, offset, length);
+        }
+
+
+        @Override
+        public void flush() throws IOException {
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (target != null) {
+                target.close();
+            }
+        }
+
+
+        private OutputStream target() throws IOException {
+            if (closed) {
+                throw new IOException(": Response body is closed");
+            }
+            if (target == null) {
+                throw new IOException(": Response headers are not sent yet");
+            }
+
+            return target;
+        }
+    }
+}
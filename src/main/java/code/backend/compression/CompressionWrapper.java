@@ -0,0 +1,51 @@
+package code.backend.compression;
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+
+
+/**
+ * Compresses the responses of the wrapped handler with the coding the client
+ * accepts (gzip or deflate). Bodies are compressed while the handler writes
+ * them, small bodies and already compressed types are sent as they are.
+ *
+ * Configured by the system properties:
+ *   memes.compression        - false turns the compression off (default true)
+ *   memes.compressionMinSize - bodies shorter than this are sent as they are (default 1 KB)
+ *   memes.compressionLevel   - level from 1 (fastest) to 9 (smallest) (default 6)
+ */
+public class CompressionWrapper implements HttpHandler {
+
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("memes.compression", "true"));
+    static final int MIN_SIZE = Integer.getInteger("memes.compressionMinSize", 1024);
+    static final int LEVEL = Math.clamp(Integer.getInteger("memes.compressionLevel", 6), 1, 9);
+
+    private final HttpHandler nextHandler;
+
+
+
+    /**
+     * Creates compression wrapper for the given HTTP handler
+     *
+     * @param nextHandler HTTP handler to be wrapped
+     */
+    public CompressionWrapper(HttpHandler nextHandler) {
+        this.nextHandler = nextHandler;
+    }
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!ENABLED) {
+            nextHandler.handle(exchange);
+            return;
+        }
+
+        nextHandler.handle(new CompressedExchange(exchange, MIN_SIZE, LEVEL));
+    }
+}
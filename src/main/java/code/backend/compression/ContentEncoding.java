@@ -0,0 +1,144 @@
+package code.backend.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+
+/**
+ * Content codings the server compresses responses with
+ */
+enum ContentEncoding {
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+
+    private final String token;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+
+
+    ContentEncoding(String token) {
+        this.token = token;
+    }
+
+
+
+
+    /**
+     * Gets the name of the coding as written in Content-Encoding
+     *
+     * @return Coding token
+     */
+    String getToken() {
+        return token;
+    }
+
+
+    /**
+     * Wraps the stream to compress everything written to it. Closing the
+     * compressing stream finishes the coding and closes the wrapped stream.
+     *
+     * @param  output Stream receiving the compressed bytes
+     * @param  level Compression level from 1 (fastest) to 9 (smallest)
+     * @return Compressing stream
+     */
+    OutputStream wrap(OutputStream output, int level) throws IOException {
+        return switch (this) {
+            case GZIP -> new GZIPOutputStream(output, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+
+            // "deflate" of HTTP is the zlib format, so the deflater keeps its header
+            case DEFLATE -> new DeflaterOutputStream(output, new Deflater(level), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+
+                    finally {
+                        def.end();
+                    }
+                }
+            };
+        };
+    }
+
+
+    /**
+     * Picks the coding the client prefers from its Accept-Encoding header.
+     * Quality values are honoured, gzip wins the ties.
+     *
+     * @param  acceptEncoding Value of the Accept-Encoding header, NULL if missing
+     * @return Chosen coding, NULL if the response must not be compressed
+     */
+    static ContentEncoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return null;
+        }
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = 0;
+
+        for (String entry: acceptEncoding.split(",")) {
+            String[] parameters = entry.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            float quality = quality(parameters);
+
+            switch (name) {
+                case "gzip", "x-gzip" -> gzip = Math.max(gzip, quality);
+
+                case "deflate" -> deflate = Math.max(deflate, quality);
+
+                case "*" -> any = quality;
+
+                default -> {}
+            }
+        }
+
+        // Codings not listed take the quality of the wildcard
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+
+        return (gzip >= deflate) ? GZIP : DEFLATE;
+    }
+
+
+    /**
+     * Reads the q parameter of one Accept-Encoding entry
+     *
+     * @param  parameters Entry split at ';'
+     * @return Quality from 0 to 1, 0 if it is malformed
+     */
+    private static float quality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    float quality = Float.parseFloat(parameter.substring(2).trim());
+                    return (quality >= 0 && quality <= 1) ? quality : 0;
+                }
+
+                catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+}
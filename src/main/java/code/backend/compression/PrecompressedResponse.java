@@ -0,0 +1,196 @@
+package code.backend.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+
+
+/**
+ * Response body kept in memory together with its compressed forms. The body
+ * is compressed once at the best level when the response is created, each
+ * request then gets the stored form its Accept-Encoding asks for.
+ *
+ * The values of the headers are built once too and shared by the responses;
+ * the body is tagged by its hash, so revalidating clients get 304 instead.
+ */
+public final class PrecompressedResponse {
+
+
+    private final byte[] identity;
+    private final byte[] gzip;
+    private final byte[] deflate;
+
+    // Immutable header values, NULL to send none
+    private final List<String> contentType;
+    private final List<String> cacheControl;
+    private final List<String> eTag;
+
+    private static final List<String> GZIP = List.of(ContentEncoding.GZIP.getToken());
+    private static final List<String> DEFLATE = List.of(ContentEncoding.DEFLATE.getToken());
+
+
+
+    /**
+     * Creates response and compresses its body
+     *
+     * @param body Uncompressed body
+     * @param contentType Value of the Content-Type header, NULL to send none
+     */
+    public PrecompressedResponse(byte[] body, String contentType) {
+        this(body, contentType, null);
+    }
+
+
+    /**
+     * Creates response which the clients may cache, and compresses its body
+     *
+     * @param body Uncompressed body
+     * @param contentType Value of the Content-Type header, NULL to send none
+     * @param cacheControl Value of the Cache-Control header, NULL to send none
+     */
+    public PrecompressedResponse(byte[] body, String contentType, String cacheControl) {
+        this.identity = body.clone();
+        this.contentType = (contentType == null) ? null : List.of(contentType);
+        this.cacheControl = (cacheControl == null) ? null : List.of(cacheControl);
+
+        // Weak tag, the compressed forms are the same representation
+        this.eTag = List.of("W/\"" + hash(body) + "\"");
+
+        // Compressed forms are only kept if they are worth it
+        boolean compress = CompressionWrapper.ENABLED && body.length >= CompressionWrapper.MIN_SIZE;
+        this.gzip = compress ? compress(body, ContentEncoding.GZIP) : null;
+        this.deflate = compress ? compress(body, ContentEncoding.DEFLATE) : null;
+    }
+
+
+
+
+    /**
+     * Sends the response in the form the client accepts
+     *
+     * @param exchange HTTP request handler
+     * @param statusCode HTTP status code of the response
+     */
+    public void send(HttpExchange exchange, int statusCode) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+
+        if (cacheControl != null) {
+            headers.put("Cache-Control", cacheControl);
+        }
+
+        headers.put("ETag", eTag);
+
+        // Stored forms mustn't be compressed again
+        if (exchange instanceof CompressedExchange compressedExchange) {
+            compressedExchange.bypass();
+        }
+
+        byte[] body = identity;
+        if (gzip != null || deflate != null) {
+            headers.add("Vary", "Accept-Encoding");
+
+            ContentEncoding encoding = ContentEncoding.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            byte[] encoded = (encoding == ContentEncoding.GZIP) ? gzip : (encoding == ContentEncoding.DEFLATE) ? deflate : null;
+
+            if (encoded != null) {
+                headers.put("Content-Encoding", (encoding == ContentEncoding.GZIP) ? GZIP : DEFLATE);
+                body = encoded;
+            }
+        }
+
+        // Client has the body already
+        if (statusCode == 200 && isNotModified(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            headers.remove("Content-Type");
+            headers.remove("Content-Encoding");
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        // HEAD gets the headers only
+        if (exchange.getRequestMethod().equalsIgnoreCase("HEAD")) {
+            exchange.sendResponseHeaders(statusCode, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+
+    /**
+     * Checks the tags of the If-None-Match header, compared weakly
+     *
+     * @param  ifNoneMatch Value of the header, NULL if there's none
+     * @return True if the client's copy is the body
+     */
+    private boolean isNotModified(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        String tag = eTag.get(0).substring(2);
+        for (String candidate: ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+
+            if (candidate.equals("*") || candidate.equals(eTag.get(0)) || candidate.equals(tag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Hashes the body for its tag
+     *
+     * @param  body Uncompressed body
+     * @return First 8 bytes of the SHA-256 of the body in hex
+     */
+    private static String hash(byte[] body) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body), 0, 8);
+        }
+
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Compresses the body at the best level
+     *
+     * @param  body Uncompressed body
+     * @param  encoding Coding to use
+     * @return Compressed body, NULL if it isn't smaller than the body
+     */
+    private static byte[] compress(byte[] body, ContentEncoding encoding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2 + 64);
+
+        try (OutputStream stream = encoding.wrap(compressed, Deflater.BEST_COMPRESSION)) {
+            stream.write(body);
+        }
+
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return (compressed.size() < body.length) ? compressed.toByteArray() : null;
+    }
+}
@@ -1,13 +1,13 @@
 package code.backend.handlers;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import code.backend.HttpExchangeMethods;
+import code.backend.compression.PrecompressedResponse;
 
 
 public class HelpHandler implements HttpHandler {
@@ -22,6 +22,7 @@ public class HelpHandler implements HttpHandler {
             3. Title white spaces will be replaced by '_'
         """
     ;
+    private static final PrecompressedResponse RESPONSE = new PrecompressedResponse(SERVER_MESSAGE.getBytes(StandardCharsets.UTF_8), "text/plain; charset=utf-8", "public, max-age=3600");
 
 
 
@@ -59,15 +60,8 @@ public class HelpHandler implements HttpHandler {
     * @param  exchange HTTP request hadler
     */
 	private void getRequest(HttpExchange exchange) throws IOException {
-        byte[] bytes = SERVER_MESSAGE.getBytes(StandardCharsets.UTF_8);
-
-		// Send response to the server
-		exchange.sendResponseHeaders(200, bytes.length);
-
-        try (OutputStream stream = exchange.getResponseBody()) {
-            stream.write(bytes);
-            stream.flush();
-        }
+		// Send the stored response
+		RESPONSE.send(exchange, 200);
 	}
   
 }
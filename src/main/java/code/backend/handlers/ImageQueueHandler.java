@@ -0,0 +1,75 @@
+package code.backend.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.image.ImageWorkQueue;
+
+
+public class ImageQueueHandler implements HttpHandler {
+
+
+    private final ImageWorkQueue imageWorkQueue;
+
+
+
+    /**
+    * Shows the depth and latency of the image work queue
+    *
+    * @param imageWorkQueue Background queue of the image work
+    */
+    public ImageQueueHandler(ImageWorkQueue imageWorkQueue) {
+        this.imageWorkQueue = imageWorkQueue;
+    }
+
+
+
+    /**
+    * Handles the method of the HTTP request (Available: GET)
+    *
+    * @param  exchange HTTP request hadler
+    */
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - IMAGE_QUEUE");
+
+        try (exchange) {
+            String method = exchange.getRequestMethod().toUpperCase();
+            
+            switch (method) {
+                case "GET" -> getRequest(exchange);
+                
+                // Hande unsupported methods
+                default -> exchangeMethods.errorResponse(405, ": Unsupported method");
+            }
+        }
+
+		catch (Exception e) {
+			exchangeMethods.errorResponse(500, e.getMessage());
+		}
+	}
+
+
+	/**
+    * Handles the GET method
+    *
+    * @param  exchange HTTP request hadler
+    */
+	private void getRequest(HttpExchange exchange) throws IOException {
+        byte[] bytes = imageWorkQueue.getStats().toString().getBytes(StandardCharsets.UTF_8);
+
+		// Send response to the server
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(bytes);
+        }
+	}
+
+}
@@ -1,8 +1,6 @@
 package code.backend.handlers;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.UUID;
 
 import org.json.JSONObject;
 
@@ -10,15 +8,17 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
-import code.backend.Database;
 import code.backend.HttpExchangeMethods;
+import code.backend.log.Log;
+import code.backend.session.SessionStore;
+import code.backend.user.PasswordHashRejectedException;
 import code.backend.user.UserAuthenticator;
 
 public class LoginHandler implements HttpHandler {
     
 
-    private final Database database;
-    private final Map<String, String> sessions;
+    private final UserAuthenticator authenticator;
+    private final SessionStore sessions;
 
 
 
@@ -26,9 +26,10 @@ public class LoginHandler implements HttpHandler {
     * Handles users logins
     *
     * @param  authenticator Users authenticator for checking user's authentication
+    * @param  sessions Sessions of the logged users
     */
-    public LoginHandler(Database database, Map<String, String> sessions) {
-        this.database = database;
+    public LoginHandler(UserAuthenticator authenticator, SessionStore sessions) {
+        this.authenticator = authenticator;
         this.sessions = sessions;
     }
 
@@ -77,20 +78,17 @@ public class LoginHandler implements HttpHandler {
             String password = user.getString("password");
 
             // Check user validity
-            if (!new UserAuthenticator(database).checkCredentials(username, password)) {
+            if (!authenticator.checkCredentials(username, password)) {
                 throw new SecurityException("Invalid credentials");
             }
 
-            // Create credentials cookie
-            String sessionId = UUID.randomUUID().toString();
-
-            // Store the cookie
-            sessions.put(sessionId, username);
+            // Start the session of the credentials cookie
+            String sessionId = sessions.create(username);
             exchange.getResponseHeaders().add("Set-Cookie", "sessionId=" + sessionId + "; Path=/; HttpOnly");
 
             // Send success message
             exchange.sendResponseHeaders(200, -1);
-            System.out.println("User authenticated");
+            Log.info("User authenticated");
         }
 
         // Invalid user
@@ -98,6 +96,12 @@ public class LoginHandler implements HttpHandler {
             exchangeMethods.errorResponse(401, ": " + e.getMessage());
         }
 
+        // Too many logins at once
+        catch (PasswordHashRejectedException e) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(e.getRetryAfter()));
+            exchangeMethods.errorResponse(503, ": " + e.getMessage());
+        }
+
         // Invalid content type
         catch (IOException e) {
             exchangeMethods.errorResponse(400, ": " + e.getMessage());
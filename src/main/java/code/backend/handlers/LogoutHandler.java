@@ -0,0 +1,79 @@
+package code.backend.handlers;
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.log.Log;
+import code.backend.session.SessionStore;
+
+public class LogoutHandler implements HttpHandler {
+
+
+    private final SessionStore sessions;
+
+
+
+    /**
+    * Handles users logouts
+    *
+    * @param  sessions Sessions of the logged users
+    */
+    public LogoutHandler(SessionStore sessions) {
+        this.sessions = sessions;
+    }
+
+
+
+    /**
+    * Handles the method of the HTTP request (Available: POST)
+    *
+    * @param  exchange HTTP request hadler
+    */
+    @Override
+    public void handle(HttpExchange exchange) {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - LOGOUT");
+
+        try (exchange) {
+            String method = exchange.getRequestMethod().toUpperCase();
+
+            switch (method) {
+
+                case "POST" -> postRequest(exchange, exchangeMethods);
+
+                default -> exchangeMethods.errorResponse(405, ": Unsupported user method\n");
+            }
+        }
+
+        // Internal server error
+        catch (Exception e) {
+            exchangeMethods.errorResponse(500, e.getMessage());
+        }
+    }
+
+
+
+	/**
+    * Handles the POST method
+    *
+    * @param  exchange HTTP request hadler
+    */
+	private void postRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods) throws IOException {
+
+        // End every session of the cookies, unknown ones are ignored
+        for (String sessionId: exchangeMethods.getSessionIds()) {
+            sessions.invalidate(sessionId);
+        }
+
+        // Remove the credentials cookie
+        exchange.getResponseHeaders().add("Set-Cookie", "sessionId=; Path=/; HttpOnly; Max-Age=0");
+
+        // Send success message
+        exchange.sendResponseHeaders(200, -1);
+        Log.info("User logged out");
+    }
+
+
+}
@@ -0,0 +1,503 @@
+package code.backend.handlers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.fileupload.MultipartStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.Database;
+import code.backend.HttpExchangeMethods;
+import code.backend.Meme;
+import code.backend.image.ImageInfo;
+import code.backend.image.ImageWorkQueue;
+import code.backend.log.Log;
+import code.backend.session.SessionStore;
+import code.backend.storage.ImagePins;
+import code.backend.storage.ImageStore;
+import code.backend.upload.ImageUploadStream;
+import code.backend.upload.LimitedOutputStream;
+import code.backend.upload.UploadAdmission;
+import code.backend.upload.UploadLimits;
+import code.backend.upload.UploadRejectedException;
+import code.backend.upload.UploadTooLargeException;
+
+
+/**
+ * Uploads many memes in one request. The multipart body holds pairs of parts,
+ * a "meme" part (information json) followed by its "image" part. Every meme
+ * gets its own result, so one invalid meme doesn't fail the others.
+ *
+ * Images are checked from their headers while they are received, committed
+ * to the image store in parallel, and all memes are added in one transaction.
+ */
+public class MemeBatchHandler implements HttpHandler {
+
+    private final Database database;
+    private final SessionStore sessions;
+    private final ImageStore imageStore;
+    private final ImageWorkQueue imageWorkQueue;
+    private final UploadAdmission uploadAdmission;
+    private final ExecutorService commitExecutor;
+
+    private static final Pattern PART_NAME = Pattern.compile("[;\\s]name=\"([^\"]*)\"");
+
+
+
+    /**
+     * Uploaded meme and its result
+     */
+    private static final class BatchItem {
+
+        private final int index;
+        private Meme meme = null;
+        private Path temporary = null;
+        private String fileName = null;
+        private boolean imageReceived = false;
+        private Integer memeId = null;
+        private String error = null;
+
+        private BatchItem(int index) {
+            this.index = index;
+        }
+
+        private boolean isValid() {
+            return error == null;
+        }
+
+        private void fail(String message) {
+            if (error == null) {
+                error = message;
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Handles batch uploads of memes. Images are committed by memes.batchThreads
+     * threads (default count of the processors).
+     *
+     * @param database Database of the server
+     * @param sessions Sessions of the logged users
+     * @param imageStore Storage of the meme image files
+     * @param imageWorkQueue Background queue of the image work
+     * @param uploadAdmission Admission control of the uploads
+     */
+    public MemeBatchHandler(Database database, SessionStore sessions, ImageStore imageStore, ImageWorkQueue imageWorkQueue, UploadAdmission uploadAdmission) {
+        this.database = database;
+        this.sessions = sessions;
+        this.imageStore = imageStore;
+        this.imageWorkQueue = imageWorkQueue;
+        this.uploadAdmission = uploadAdmission;
+
+        // Threads flushing the images to the disk
+        AtomicInteger threadCount = new AtomicInteger();
+        this.commitExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Integer.getInteger("memes.batchThreads", Runtime.getRuntime().availableProcessors())),
+            runnable -> {
+                Thread thread = new Thread(runnable, "batch-commit-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+    }
+
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - BATCH: ");
+
+        try (exchange) {
+            String username = exchangeMethods.checkUserValidity(sessions);
+            String method = exchange.getRequestMethod().toUpperCase();
+
+            switch (method) {
+                case "POST" -> {
+                    UploadAdmission.Permit permit;
+
+                    // Too many uploads running, tell when to retry
+                    try {
+                        permit = uploadAdmission.acquire(exchangeMethods.getContentLength(UploadLimits.MAX_BATCH_SIZE));
+                    }
+
+                    catch (UploadRejectedException e) {
+                        MemeHandler.rejectUpload(exchange, exchangeMethods, e);
+                        return;
+                    }
+
+                    try {
+                        postRequest(exchange, exchangeMethods, username);
+                    }
+
+                    finally {
+                        permit.close();
+                    }
+                }
+
+                default -> exchangeMethods.errorResponse(405, ": Unsupported batch method\n");
+            }
+        }
+
+        catch (SecurityException e) {
+            exchangeMethods.errorResponse(401, e.getMessage());
+        }
+
+        catch (Exception e) {
+            exchangeMethods.errorResponse(500, e.getMessage());
+        }
+    }
+
+
+
+
+// ▛               ▜
+//    POST Request
+// ▙               ▟
+
+
+
+    private void postRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods, String username) {
+        List<BatchItem> items = new ArrayList<>();
+
+        // The committed images are pinned until the memes are added
+        try (ImagePins pins = new ImagePins()) {
+
+            // Receive every meme and check its image
+            MultipartStream multipartStream = exchangeMethods.getMultipartContent(exchange.getRequestHeaders(), UploadLimits.MAX_BATCH_SIZE);
+            parseMultipartStream(multipartStream, items);
+
+            // Flush the images in parallel and add the memes together
+            commitImages(items, pins);
+            addMemes(items, username);
+
+            // Process the images in the background
+            for (BatchItem item: items) {
+                if (item.memeId != null) {
+                    imageWorkQueue.submit(item.memeId, ImageWorkQueue.UPLOAD_PRIORITY);
+                }
+            }
+
+            // Send the result of every meme
+            byte[] responseBytes = getResults(items).toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(202, responseBytes.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(responseBytes);
+            }
+            Log.info("Batch of {} memes handled", items.size());
+        }
+
+        catch (UploadTooLargeException e) {
+            exchangeMethods.errorResponse(413, e.getMessage());
+        }
+
+        catch (IOException | IllegalArgumentException | SQLException e) {
+            exchangeMethods.errorResponse(406, e.getMessage());
+        }
+
+        // Images of the memes not added once their pins are released, and the files that never reached the store
+        finally {
+            deleteUnusedImages(items);
+            deleteTemporaryFiles(items);
+        }
+    }
+
+
+    /**
+     * Reads the meme and image pairs of the stream
+     *
+     * @param  multipartStream Content of the request
+     * @param  items List the read memes are added to
+     * @throws IllegalArgumentException If the stream is malformed
+     */
+    private void parseMultipartStream(MultipartStream multipartStream, List<BatchItem> items) throws IOException {
+        BatchItem item = null;
+        boolean next = true;
+
+        while (next) {
+            String partName = getPartName(multipartStream.readHeaders());
+
+            switch (partName) {
+
+                // Information of the next meme
+                case "meme" -> {
+                    if (items.size() >= UploadLimits.MAX_BATCH_ITEMS) {
+                        throw new UploadTooLargeException(": Batch can hold at most " + UploadLimits.MAX_BATCH_ITEMS + " memes");
+                    }
+                    item = new BatchItem(items.size());
+                    items.add(item);
+                    readMeme(multipartStream, item);
+                }
+
+                // Image of the previous meme
+                case "image" -> {
+                    if (item == null || item.imageReceived) {
+                        throw new IllegalArgumentException(": Every image must follow its meme information json");
+                    }
+                    item.imageReceived = true;
+
+                    if (item.isValid()) {
+                        saveMemeFile(multipartStream, item);
+                    }
+                    else {
+                        multipartStream.discardBodyData();
+                    }
+                }
+
+                // Skip unknown parts
+                default -> multipartStream.discardBodyData();
+            }
+
+            next = multipartStream.readBoundary();
+        }
+
+        // Every meme needs its image
+        for (BatchItem batchItem: items) {
+            if (!batchItem.imageReceived) {
+                batchItem.fail("The meme image file is missing");
+            }
+        }
+    }
+
+
+    private void readMeme(MultipartStream multipartStream, BatchItem item) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            multipartStream.readBodyData(new LimitedOutputStream(output, UploadLimits.MAX_MEME_JSON_SIZE));
+
+            item.meme = new Meme(new JSONObject(new String(output.toByteArray(), StandardCharsets.UTF_8)));
+            item.meme.getTagsSet();
+        }
+
+        // Too large json, skip the rest of it
+        catch (UploadTooLargeException e) {
+            item.fail(e.getMessage());
+            multipartStream.discardBodyData();
+        }
+
+        catch (JSONException | IllegalArgumentException | NullPointerException e) {
+            item.fail(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Streams the image to a temporary file while hashing it and checking its headers
+     *
+     * @param multipartStream Stream positioned at the image
+     * @param item Meme of the image
+     */
+    private void saveMemeFile(MultipartStream multipartStream, BatchItem item) throws IOException {
+        item.temporary = imageStore.createTemporaryFile();
+
+        try {
+            ImageUploadStream upload = new ImageUploadStream(new BufferedOutputStream(Files.newOutputStream(item.temporary), 64 * 1024), UploadLimits.MAX_PART_SIZE);
+            try (upload) {
+                multipartStream.readBodyData(upload);
+            }
+
+            ImageInfo info = upload.getImageInfo();
+            String memeHash = upload.getHash();
+
+            item.fileName = ImageStore.fileName(memeHash, info.type());
+            item.meme.setImage(memeHash, info.type());
+            item.meme.setImageSize(info.width(), info.height());
+            item.meme.setFrameCount(info.frames());
+            item.meme.setImageStatus(ImageWorkQueue.PENDING);
+        }
+
+        // Invalid image fails only its own meme, skip the rest of it
+        catch (UploadTooLargeException | IllegalArgumentException e) {
+            item.fail(e.getMessage());
+            Files.deleteIfExists(item.temporary);
+            multipartStream.discardBodyData();
+        }
+    }
+
+
+
+
+// ▛                 ▜
+//    Store methods
+// ▙                 ▟
+
+
+
+    /**
+     * Moves the images to the store in parallel
+     *
+     * @param items Memes of the batch
+     * @param pins Pins of the committed images
+     */
+    private void commitImages(List<BatchItem> items, ImagePins pins) {
+        List<Future<Boolean>> commits = new ArrayList<>();
+
+        for (BatchItem item: items) {
+            if (item.isValid()) {
+                pins.pin(item.meme.getImageHash());
+            }
+
+            commits.add(item.isValid() ? commitExecutor.submit(() -> imageStore.commit(item.temporary, item.fileName)) : null);
+        }
+
+        // Wait for every image
+        for (int i = 0; i < items.size(); i++) {
+            if (commits.get(i) == null) continue;
+
+            try {
+                commits.get(i).get();
+            }
+
+            catch (ExecutionException e) {
+                items.get(i).fail(e.getCause().getMessage());
+            }
+
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                items.get(i).fail("Upload interrupted");
+            }
+        }
+    }
+
+
+    /**
+     * Adds the valid memes in a single transaction. Memes with a taken title fail on their own.
+     *
+     * @param items Memes of the batch
+     * @param username User adding the memes
+     */
+    private void addMemes(List<BatchItem> items, String username) throws SQLException {
+        try {
+            database.transaction(() -> {
+                for (BatchItem item: items) {
+                    if (!item.isValid()) continue;
+
+                    try {
+                        item.memeId = database.addMeme(item.meme, username);
+                    }
+
+                    catch (IllegalArgumentException e) {
+                        item.fail(e.getMessage());
+                    }
+                }
+
+                return null;
+            });
+        }
+
+        // Nothing was added
+        catch (SQLException e) {
+            for (BatchItem item: items) {
+                item.memeId = null;
+            }
+            throw e;
+        }
+    }
+
+
+    /**
+     * Deletes the stored images of the memes that weren't added, if no other meme uses them
+     *
+     * @param items Memes of the batch
+     */
+    private void deleteUnusedImages(List<BatchItem> items) {
+        for (BatchItem item: items) {
+            if (item.memeId == null) {
+                MemeHandler.deleteUnusedImage(database, imageStore, item.meme);
+            }
+        }
+    }
+
+
+    private void deleteTemporaryFiles(List<BatchItem> items) {
+        for (BatchItem item: items) {
+            if (item.temporary == null) continue;
+
+            try {
+                Files.deleteIfExists(item.temporary);
+            }
+
+            catch (IOException e) {
+                Log.error("[ERROR] - BATCH: Temporary file not deleted: {}", e.getMessage());
+            }
+        }
+    }
+
+
+
+
+// ▛                  ▜
+//    Helper methods
+// ▙                  ▟
+
+
+
+    /**
+     * Gets the name of the part from its Content-Disposition header
+     *
+     * @param  headers Headers of the part
+     * @return Name of the part, empty if it has none
+     */
+    private String getPartName(String headers) {
+        for (String header: headers.split("\r\n")) {
+            if (!header.toLowerCase().startsWith("content-disposition")) continue;
+
+            Matcher matcher = PART_NAME.matcher(header);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+
+        return "";
+    }
+
+
+    private JSONArray getResults(List<BatchItem> items) {
+        JSONArray results = new JSONArray();
+
+        for (BatchItem item: items) {
+            JSONObject result = new JSONObject().put("index", item.index);
+
+            if (item.meme != null) {
+                result.put("title", item.meme.getTitle());
+            }
+
+            // Added meme or the reason it wasn't added
+            if (item.memeId != null) {
+                result.put("id", item.memeId).put("status", ImageWorkQueue.PENDING);
+            }
+            else {
+                result.put("error", item.error);
+            }
+
+            results.put(result);
+        }
+
+        return results;
+    }
+
+}
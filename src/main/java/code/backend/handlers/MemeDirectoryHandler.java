@@ -1,7 +1,5 @@
 package code.backend.handlers;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -10,16 +8,20 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import code.backend.HttpExchangeMethods;
+import code.backend.log.Log;
+import code.backend.router.RequestContext;
+import code.backend.storage.ImageStore;
+import code.backend.storage.ImageStream;
 
 public class MemeDirectoryHandler implements HttpHandler {
 
 
-    private final File memeDirectory;
+    private final ImageStore imageStore;
 
 
 
-    public MemeDirectoryHandler() {
-        memeDirectory = new File(System.getProperty("user.dir"), "memes");
+    public MemeDirectoryHandler(ImageStore imageStore) {
+        this.imageStore = imageStore;
     }
 
 
@@ -58,9 +60,8 @@ public class MemeDirectoryHandler implements HttpHandler {
     */
 	private void getRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods) throws IOException {
         try {
-            // Find the meme path
-            String requestUrl = exchange.getRequestURI().getPath();
-            String memePath = requestUrl.replaceFirst("^/api/meme/dir/?", "");
+            // Find the meme path, {file} of the route
+            String memePath = RequestContext.current().getParameter("file");
 
             // Get file type
             String memeType = "png";
@@ -68,34 +69,31 @@ public class MemeDirectoryHandler implements HttpHandler {
                 memeType = "gif";
             }
 
-            // Find the meme file
-            File meme = new File(memeDirectory, memePath);
-
-            // Prevent path traversal
-            if (!meme.getCanonicalPath().startsWith(memeDirectory.getCanonicalPath())) {
+            // Prevent path traversal (only content-addressed file names are served)
+            if (!ImageStore.isValidFileName(memePath)) {
                 exchange.sendResponseHeaders(403, -1);
                 return;
             }
 
-            System.out.println(memePath + ", type: " + memeType);
+            Log.debug("{}, type: {}", memePath, memeType);
 
-            // Chech the file existance
-            if (!meme.exists()) {
-                throw new FileNotFoundException("Meme file not found");
-            }
+            // Open the meme file before any headers are sent, a missing file is still answered with 404
+            try (ImageStream image = imageStore.open(memePath)) {
+
+                // Add the file to the input
+                exchange.getResponseHeaders().add("Content-Type", "image/" + memeType);
 
-            // Add the file to the input
-            exchange.getResponseHeaders().add("Content-Type", "image/" + memeType);
-            exchange.sendResponseHeaders(200, meme.length());
+                // Content-addressed files never change
+                exchange.getResponseHeaders().add("Cache-Control", "public, max-age=31536000, immutable");
+                exchange.sendResponseHeaders(200, image.length());
 
-            // Send meme file to the server
-            try (OutputStream stream = exchange.getResponseBody()) {
-                FileInputStream inputStream = new FileInputStream(meme);
-                inputStream.transferTo(stream);
-                inputStream.close();
+                // Send meme file to the server
+                try (OutputStream stream = exchange.getResponseBody()) {
+                    image.transferTo(stream);
+                }
             }
 
-            System.out.println("Meme file send");
+            Log.debug("Meme file send");
 	    }
 
         catch (FileNotFoundException e) {
@@ -1,17 +1,14 @@
 package code.backend.handlers;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.awt.image.BufferedImage;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
-import java.util.Map;
-
-import javax.imageio.ImageIO;
 
 import org.apache.commons.fileupload.MultipartStream;
 import org.json.JSONException;
@@ -24,18 +21,36 @@ import com.sun.net.httpserver.HttpHandler;
 import code.backend.Database;
 import code.backend.HttpExchangeMethods;
 import code.backend.Meme;
+import code.backend.image.ImageInfo;
+import code.backend.image.ImageWorkQueue;
+import code.backend.log.Log;
+import code.backend.session.SessionStore;
+import code.backend.storage.ImagePins;
+import code.backend.storage.ImageStore;
+import code.backend.upload.ImageUploadStream;
+import code.backend.upload.LimitedOutputStream;
+import code.backend.upload.UploadAdmission;
+import code.backend.upload.UploadLimits;
+import code.backend.upload.UploadRejectedException;
+import code.backend.upload.UploadTooLargeException;
 
 
 public class MemeHandler implements HttpHandler {
 
     private final Database database;
-    private final Map<String, String> sessions;
+    private final SessionStore sessions;
+    private final ImageStore imageStore;
+    private final ImageWorkQueue imageWorkQueue;
+    private final UploadAdmission uploadAdmission;
 
 
 
-    public MemeHandler(Database database, Map<String, String> sessions) {
+    public MemeHandler(Database database, SessionStore sessions, ImageStore imageStore, ImageWorkQueue imageWorkQueue, UploadAdmission uploadAdmission) {
         this.database = database;
         this.sessions = sessions;
+        this.imageStore = imageStore;
+        this.imageWorkQueue = imageWorkQueue;
+        this.uploadAdmission = uploadAdmission;
     }
 
 
@@ -50,7 +65,27 @@ public class MemeHandler implements HttpHandler {
             String method = exchange.getRequestMethod().toUpperCase();
 
             switch (method) {
-                case "POST" -> postRequest(exchange, exchangeMethods, username);
+                case "POST" -> {
+                    UploadAdmission.Permit permit;
+
+                    // Too many uploads running, tell when to retry
+                    try {
+                        permit = uploadAdmission.acquire(exchangeMethods.getContentLength(UploadLimits.MAX_REQUEST_SIZE));
+                    }
+
+                    catch (UploadRejectedException e) {
+                        rejectUpload(exchange, exchangeMethods, e);
+                        return;
+                    }
+
+                    try {
+                        postRequest(exchange, exchangeMethods, username);
+                    }
+
+                    finally {
+                        permit.close();
+                    }
+                }
 
                 case "PUT" -> putRequest(exchange, exchangeMethods, username);
 
@@ -80,22 +115,43 @@ public class MemeHandler implements HttpHandler {
 
 
     private void postRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods, String username) {
-        try {
+        Meme meme = null;
+        boolean added = false;
+
+        // The committed image is pinned until the meme is added
+        try (ImagePins pins = new ImagePins()) {
 
             // Content validity check
             Headers headers = exchange.getRequestHeaders();
-            MultipartStream multipartStream = exchangeMethods.getMultipartContent(headers);
+            MultipartStream multipartStream = exchangeMethods.getMultipartContent(headers, UploadLimits.MAX_REQUEST_SIZE);
 
             // Get the meme from the content
-            Meme meme = parseMultipartStream(multipartStream);
+            meme = parseMultipartStream(multipartStream, pins);
 
             // Add meme if its new one
-            database.addMeme(meme, username);
-
-            // Send success message
-            exchange.sendResponseHeaders(200, -1);
-            System.out.println("Meme added succesfully\n");
+            int memeId = database.addMeme(meme, username);
+            added = true;
+
+            // Process the image in the background
+            imageWorkQueue.submit(memeId, ImageWorkQueue.UPLOAD_PRIORITY);
+
+            // Send accepted message, the image is stored but not yet processed
+            byte[] responseBytes = new JSONObject()
+                .put("id", memeId)
+                .put("status", ImageWorkQueue.PENDING)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8)
+            ;
+            exchange.sendResponseHeaders(202, responseBytes.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(responseBytes);
+            }
+            Log.info("Meme added succesfully");
         } 
+
+        catch (UploadTooLargeException e) {
+            exchangeMethods.errorResponse(413, e.getMessage());
+        }
         
         catch (IOException | IllegalArgumentException | SQLException e) {
             exchangeMethods.errorResponse(406, e.getMessage());
@@ -104,29 +160,40 @@ public class MemeHandler implements HttpHandler {
         catch (JSONException e) {
             exchangeMethods.errorResponse(405, ": " + e.getMessage());
         }
+
+        // Image of the meme not added is deleted once its pin is released
+        finally {
+            if (!added) {
+                deleteUnusedImage(meme);
+            }
+        }
     }
 
 
-    private Meme parseMultipartStream(MultipartStream multipartStream) throws IOException {
+    private Meme parseMultipartStream(MultipartStream multipartStream, ImagePins pins) throws IOException {
         Meme meme = null;
         boolean next = true; // multipartStream.skipPreamble();
 
         while (next) {
             
-            // Get the data
+            // Get the headers of the part
             String headers = multipartStream.readHeaders();
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            multipartStream.readBodyData(output);
-            byte[] data = output.toByteArray();
 
             // Get meme information
             if (headers.contains("meme")) {
-                meme = new Meme(getMemeJson(data));
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                multipartStream.readBodyData(new LimitedOutputStream(output, UploadLimits.MAX_MEME_JSON_SIZE));
+                meme = new Meme(getMemeJson(output.toByteArray()));
             }
 
             // Get the meme file and save it
             else if (headers.contains("image")) {
-                saveMemeFile(data, meme);
+                saveMemeFile(multipartStream, meme, pins);
+            }
+
+            // Skip unknown parts
+            else {
+                multipartStream.discardBodyData();
             }
 
             next = multipartStream.readBoundary();
@@ -147,52 +214,98 @@ public class MemeHandler implements HttpHandler {
     }
 
 
-    private void saveMemeFile(byte[] memeFileBytes, Meme meme) throws IOException {
+    private void saveMemeFile(MultipartStream multipartStream, Meme meme, ImagePins pins) throws IOException {
         if (meme == null) {
             throw new IllegalArgumentException("The stream must have the meme information json given first.");
         }
 
-        // Chech image validity and get its
-        String memeType = getMemeFileType(memeFileBytes);
+        // Stream the file to the disk while hashing it and checking its headers, decoding is left for the image work queue
+        Path temporary = imageStore.createTemporaryFile();
+        try {
+            ImageUploadStream upload = new ImageUploadStream(new BufferedOutputStream(Files.newOutputStream(temporary), 64 * 1024), UploadLimits.MAX_PART_SIZE);
+            try (upload) {
+                multipartStream.readBodyData(upload);
+            }
+
+            ImageInfo info = upload.getImageInfo();
+            String memeHash = upload.getHash();
 
-        // Check the memes directory
-        File memesDirectory = new File("memes");
-        if (!memesDirectory.exists()) memesDirectory.mkdirs();
+            // Move the file in place durably (already stored content isn't written again)
+            pins.pin(memeHash);
+            imageStore.commit(temporary, ImageStore.fileName(memeHash, info.type()));
+            meme.setImage(memeHash, info.type());
+            meme.setImageSize(info.width(), info.height());
+            meme.setFrameCount(info.frames());
+            meme.setImageStatus(ImageWorkQueue.PENDING);
+        }
 
-        // Save the meme
-        File memeFile = new File(memesDirectory + "/" + meme.getTitle() + memeType);
-        try (FileOutputStream stream = new FileOutputStream(memeFile)) {
-            stream.write(memeFileBytes);
+        // Failed uploads leave nothing behind
+        finally {
+            Files.deleteIfExists(temporary);
         }
     }
 
 
-    private String getMemeFileType(byte[] file) {
+    /**
+     * Refuses the upload and tells when to retry. Must be sent before the exchange is closed.
+     *
+     * Small bodies are read away first, otherwise the connection is closed
+     * under the client while it is still sending and the response is lost.
+     *
+     * @param exchange HTTPS request handler
+     * @param exchangeMethods Methods of the exchange
+     * @param e Rejection of the upload admission
+     */
+    static void rejectUpload(HttpExchange exchange, HttpExchangeMethods exchangeMethods, UploadRejectedException e) {
+        long contentLength = exchangeMethods.getContentLength(-1);
+
+        if (contentLength >= 0 && contentLength <= UploadLimits.MAX_DRAIN_SIZE) {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
 
-        // Check that the file is image
-        if (!isValidImageFile(file)) {
-            throw new IllegalArgumentException("The given file must be an image file");
+            catch (IOException ignored) {
+                // Client is gone, the response is lost anyway
+            }
         }
 
-        // Get the type (GIF or PNG)
-        if (file[0] == 0x47 && file[1] == 0x49 && file[2] == 0x46 && file[3] == 0x38) {
-            return ".gif";
+        else {
+            exchange.getResponseHeaders().set("Connection", "close");
         }
-        return ".png";
+
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(e.getRetryAfter()));
+        exchangeMethods.errorResponse(503, e.getMessage());
+    }
+
+
+    private void deleteUnusedImage(Meme meme) {
+        deleteUnusedImage(database, imageStore, meme);
     }
 
 
-    private boolean isValidImageFile(byte[] file) {
-        try (InputStream stream = new ByteArrayInputStream(file)) {
-            BufferedImage image = ImageIO.read(stream);
-            return image != null;
-        } catch (IOException e) {
-            return false;
+    /**
+     * Deletes the image file of the meme that failed to be added, if no other meme uses the same image.
+     * The pin of the image must be released first.
+     * 
+     * @param database Database of the server
+     * @param imageStore Storage of the meme image files
+     * @param meme Meme that wasn't added, NULL if the upload failed before the meme was parsed
+     */
+    static void deleteUnusedImage(Database database, ImageStore imageStore, Meme meme) {
+        if (meme == null || meme.getImageFileName() == null) {
+            return;
+        }
+
+        try {
+            ImagePins.deleteIfUnused(imageStore, database, meme.getImageFileName());
+        }
+
+        catch (IOException | SQLException e) {
+            Log.error("[ERROR] - POST: Unused image not deleted: {}", e.getMessage());
         }
     }
 
 
-    
 
 
 // ▛              ▜
@@ -216,7 +329,7 @@ public class MemeHandler implements HttpHandler {
 
             // Send success message
             exchange.sendResponseHeaders(200, -1);
-            System.out.println("Meme added succesfully");
+            Log.info("Meme added succesfully");
         } 
         
         catch (IOException | SQLException e) {
@@ -251,9 +364,14 @@ public class MemeHandler implements HttpHandler {
             JSONObject contentJSON = new JSONObject(content);
             String memeTitle = contentJSON.optString("memeTitle");
 
-            // Delete the meme
-            database.deleteMeme(memeTitle, username);
-            deleteMemeFile(memeTitle);
+            // Delete the meme, and its image if no other meme uses it or is being added with it
+            String unusedImage = database.deleteMeme(memeTitle, username);
+            if (unusedImage != null) {
+                ImagePins.deleteIfUnused(imageStore, database, unusedImage);
+            }
+
+            // Send success message
+            exchange.sendResponseHeaders(200, -1);
        }
 
         catch (IOException | SQLException e) {
@@ -265,20 +383,4 @@ public class MemeHandler implements HttpHandler {
         }
     }
 
-
-    private void deleteMemeFile(String memeTitle) {
-
-        // Delete PNG file
-        try {
-            File memeFile = new File("memes/" + memeTitle + ".png");
-            memeFile.delete();
-        }
-
-        // Delete GIF file
-        catch (Exception e) {
-            File memeFile = new File("memes/" + memeTitle + ".gif");
-            memeFile.delete();
-        }
-    }
-
 }
@@ -1,9 +1,8 @@
 package code.backend.handlers;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -25,15 +24,21 @@ import code.backend.Database;
 import code.backend.HttpExchangeMethods;
 import code.backend.Meme;
 import code.backend.Tag;
+import code.backend.image.ImageWorkQueue;
+import code.backend.log.Log;
 import code.backend.meme_comparators.MemeIdComparator;
 import code.backend.meme_comparators.MemeLikesComparator;
 import code.backend.meme_comparators.MemeTitleComparator;
+import code.backend.request.RequestParser;
+import code.backend.storage.ImageStore;
+import code.backend.trace.Tracer;
 
 
 public class MemeSearchHandler implements HttpHandler {
 
 
     private final Database database;
+    private final ImageStore imageStore;
 
 
 
@@ -42,9 +47,11 @@ public class MemeSearchHandler implements HttpHandler {
     * Handles all request for meme searching
     *
     * @param database Database of the server
+    * @param imageStore Storage of the meme image files
     */
-    public MemeSearchHandler(Database database) {
+    public MemeSearchHandler(Database database, ImageStore imageStore) {
         this.database = database;
+        this.imageStore = imageStore;
     }
 
 
@@ -93,14 +100,20 @@ public class MemeSearchHandler implements HttpHandler {
             }
 
             // Send the meme paths
+            long stage = System.nanoTime();
             byte[] memeBytes = memes.toString().getBytes(StandardCharsets.UTF_8);
+            Tracer.span("search.encode", stage);
+
+            stage = System.nanoTime();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
             exchange.sendResponseHeaders(200, memeBytes.length);
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(memeBytes);
             }
+            Tracer.span("search.send", stage);
 
 
-            System.out.println("Success");
+            Log.debug("Success");
         }
 
         catch (NullPointerException e) {
@@ -129,52 +142,23 @@ public class MemeSearchHandler implements HttpHandler {
      */
     private String[] getQuery(HttpExchange exchange) {
 
-        String[] variableValues = {null, null};
-
-        // Get the query
-        URI uri = exchange.getRequestURI();
-        String query = uri.getQuery();
-
-        // No variables given
-        if (query == null) {
-            return variableValues;
-        }
-
-        // Split all variables
-        String[] variables = query.split("&");
-
-        // Iterate all variables
-        for (String variable: variables) {
-
-            // Split the variable to key and value
-            String[] keyValue = variable.split("=");
+        // Read the variables from the raw query, so encoded '&' and '=' stay in the values
+        String query = exchange.getRequestURI().getRawQuery();
 
-            // Does variable have non NULL key and value
-            if (keyValue.length != 2 || keyValue[1] == null) {
-                continue;
-            }
-
-            // Check what variable it is
-            switch (keyValue[0]) {
-
-                // Search querry
-                case "search_query" -> variableValues[0] = setVariable(keyValue);
-
-                // Sorting type
-                case "sorting_type" -> variableValues[1] = setVariable(keyValue);
-            }
-        }
-        return variableValues;
+        return new String[] {
+            setVariable(RequestParser.getParameter(query, "search_query")),
+            setVariable(RequestParser.getParameter(query, "sorting_type"))
+        };
     }
 
 
-    private String setVariable(String[] keyValue) {
+    private String setVariable(String value) {
 
         // Is value NULL
-        if (keyValue[1].isEmpty()) {
+        if (value == null || value.isEmpty()) {
             return null;
         }
-        return keyValue[1].toLowerCase();
+        return value.toLowerCase();
     }
 
 
@@ -208,6 +192,7 @@ public class MemeSearchHandler implements HttpHandler {
 
     private JSONArray filterMemes(HttpExchange exchange, String sortingQuerry, SORT_TYPE sortingType) throws SQLException, IOException {
         List<Meme> filteredMemes = new ArrayList<>();
+        long stage = System.nanoTime();
 
         // Querry is valid ID
         if (isValidID(sortingQuerry)) {
@@ -226,6 +211,7 @@ public class MemeSearchHandler implements HttpHandler {
         if (sortingQuerry == null) {
             filteredMemes = database.getMemesList();
         }
+        Tracer.span("search.find", stage);
 
         return sortedMemeArray(exchange, filteredMemes, sortingType);
 
@@ -287,6 +273,7 @@ public class MemeSearchHandler implements HttpHandler {
         }
 
         // Sort the memes
+        long stage = System.nanoTime();
         switch (sortingType) {
             case ID -> Collections.sort(filteredMemes, new MemeIdComparator());
             case TITLE -> Collections.sort(filteredMemes, new MemeTitleComparator());
@@ -295,61 +282,71 @@ public class MemeSearchHandler implements HttpHandler {
             case REVERSE_TITLE -> Collections.sort(filteredMemes, new MemeTitleComparator().reversed());
             case REVERSE_LIKES -> Collections.sort(filteredMemes, new MemeLikesComparator().reversed());
         }
-
-        System.out.println("Founded memes {");
+        Tracer.span("search.sort", stage);
 
         // Add all meme paths to the array
+        stage = System.nanoTime();
         JSONArray filteredMemesArray = new JSONArray();
         for (Meme meme: filteredMemes) {
-            String fullPath = getFullPath(exchange, meme.getTitle());
-            int[] memeSize = getMemeSizes(fullPath);
+
+            // Skip reposts and unreadable images
+            String status = meme.getImageStatus();
+            if (ImageWorkQueue.DUPLICATE.equals(status) || ImageWorkQueue.FAILED.equals(status)) {
+                continue;
+            }
+
+            String fullPath = getFullPath(meme);
+            int[] memeSize = getMemeSizes(meme);
 
             JSONObject memeObject = new JSONObject()
                 .put("path", fullPath)
                 .put("width", memeSize[0])
                 .put("height", memeSize[1])
+                .put("frames", meme.getFrameCount())
                 .put("title", meme.getTitle())
+                .put("status", status)
             ;
 
             filteredMemesArray.put(memeObject);
-            System.out.println("    " + meme.getTitle());
+            Log.debug("Founded meme {}", meme.getTitle());
         }
+        Tracer.span("search.build", stage);
 
-        System.out.println("}\n");
         return filteredMemesArray;
     }
 
 
-    private String getFullPath(HttpExchange exchange, String title) {
-        String memeDir = System.getProperty("user.dir") + "/memes/";
-        String memePath = memeDir + title;
-
-        // Is .png file found
-        File png = new File(memePath + ".png");
-        if (png.exists()) {
-            return "/api/meme/dir/" + title + ".png";
-        }
+    private String getFullPath(Meme meme) {
+        String fileName = meme.getImageFileName();
 
-        // Is .gif file found
-        File gif = new File(memePath + ".gif");
-        if (gif.exists()) {
-            return "/api/meme/dir/" + title + ".gif";
+        // No file found
+        if (fileName == null || !imageStore.contains(fileName)) {
+            throw new NullPointerException("Meme file not found");
         }
 
-        // No file found
-        throw new NullPointerException("Meme file not found");
+        return "/api/meme/dir/" + fileName;
     }
 
 
-    private int[] getMemeSizes(String path) throws IOException {
-        String imagePath = path.replace("/api/meme/dir/", System.clearProperty("user.dir") + "/memes/");
+    private int[] getMemeSizes(Meme meme) throws IOException {
+
+        // Size stored by the image work queue
+        if (meme.getWidth() != null && meme.getHeight() != null) {
+            return new int[] {meme.getWidth(), meme.getHeight()};
+        }
+
+        Log.debug("Reading the size of {}", meme.getImageFileName());
 
-        System.out.println(imagePath);
+        BufferedImage image;
+        long start = System.nanoTime();
+        try (InputStream stream = imageStore.open(meme.getImageFileName())) {
+            image = ImageIO.read(stream);
+        }
+        Tracer.span("image.decode", start);
 
-        BufferedImage meme = ImageIO.read(new File(imagePath));
         int[] size = {0, 0};
-        size[0] = meme.getWidth();
-        size[1] = meme.getHeight();
+        size[0] = image.getWidth();
+        size[1] = image.getHeight();
 
         return size;
     }
@@ -0,0 +1,171 @@
+package code.backend.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.Database;
+import code.backend.HttpExchangeMethods;
+import code.backend.Meme;
+import code.backend.image.PerceptualHash;
+import code.backend.image.SimilarityIndex;
+import code.backend.request.RequestParser;
+
+
+public class MemeSimilarHandler implements HttpHandler {
+
+
+    private final Database database;
+    private final SimilarityIndex similarityIndex;
+
+    private static final int DEFAULT_DISTANCE = 10;
+
+
+
+
+    /**
+    * Handles requests for memes that look similar to the given meme
+    *
+    * @param database Database of the server
+    * @param similarityIndex Perceptual hash index of the memes
+    */
+    public MemeSimilarHandler(Database database, SimilarityIndex similarityIndex) {
+        this.database = database;
+        this.similarityIndex = similarityIndex;
+    }
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - SIMILAR: ");
+
+        try (exchange) {
+            String method = exchange.getRequestMethod().toUpperCase();
+
+            switch (method) {
+                case "GET" -> getRequest(exchange, exchangeMethods);
+
+                default -> exchangeMethods.errorResponse(405, ": Unsupported similar method\n");
+            }
+        }
+
+        // Query is invalid
+        catch (IllegalArgumentException e) {
+            exchangeMethods.errorResponse(400, e.getMessage());
+        }
+
+        catch (Exception e) {
+            exchangeMethods.errorResponse(500, e.getMessage());
+        }
+    }
+
+
+
+
+    private void getRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods) {
+        try {
+
+            // Get the meme and the distance from the query
+            int[] query = getQuery(exchange);
+            int memeId = query[0];
+            int maxDistance = query[1];
+
+            // Meme must be indexed
+            Long hash = similarityIndex.getHash(memeId);
+            if (hash == null) {
+                throw new NullPointerException("Meme not found");
+            }
+
+            // Find the similar memes
+            JSONArray memes = new JSONArray();
+            for (int similarId: similarityIndex.search(hash, maxDistance)) {
+                if (similarId == memeId) continue;
+
+                // Removed from the index since the search
+                Long similarHash = similarityIndex.getHash(similarId);
+                if (similarHash == null) continue;
+
+                // Forget deleted memes
+                List<Meme> found = database.getMemeById(similarId);
+                if (found.isEmpty()) {
+                    similarityIndex.remove(similarId);
+                    continue;
+                }
+
+                Meme meme = found.get(0);
+                memes.put(new JSONObject()
+                    .put("id", meme.getID())
+                    .put("title", meme.getTitle())
+                    .put("path", "/api/meme/dir/" + meme.getImageFileName())
+                    .put("distance", PerceptualHash.distance(hash, similarHash))
+                );
+            }
+
+            // Send the similar memes
+            byte[] memeBytes = memes.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, memeBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(memeBytes);
+            }
+        }
+
+        catch (NullPointerException e) {
+            exchangeMethods.errorResponse(404, e.getMessage());
+        }
+
+        catch (IOException | SQLException e) {
+            exchangeMethods.errorResponse(406, e.getMessage());
+        }
+    }
+
+
+
+
+    /**
+     * Gets the meme ID and the maximum distance from the query
+     *
+     * @param  exchange HTTPS reguest handler
+     * @return [memeId, maxDistance]
+     * @throws IllegalArgumentException If the ID is missing or the values aren't integers
+     */
+    private int[] getQuery(HttpExchange exchange) {
+        int[] variableValues = {-1, DEFAULT_DISTANCE};
+
+        // Get the query
+        String query = exchange.getRequestURI().getRawQuery();
+
+        // Read the variables in place
+        try {
+            variableValues[0] = RequestParser.getInt(query, "id", -1);
+        }
+
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(": id must be an integer");
+        }
+
+        try {
+            variableValues[1] = Math.min(Long.SIZE, RequestParser.getInt(query, "distance", DEFAULT_DISTANCE));
+        }
+
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(": distance must be an integer");
+        }
+
+        // Check the ID validity
+        if (variableValues[0] < 0) {
+            throw new IllegalArgumentException(": Meme ID must be given");
+        }
+
+        return variableValues;
+    }
+
+}
@@ -0,0 +1,398 @@
+package code.backend.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Objects;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.Database;
+import code.backend.HttpExchangeMethods;
+import code.backend.Meme;
+import code.backend.image.ImageInfo;
+import code.backend.image.ImageWorkQueue;
+import code.backend.log.Log;
+import code.backend.request.RequestParser;
+import code.backend.router.RequestContext;
+import code.backend.session.SessionStore;
+import code.backend.storage.ImagePins;
+import code.backend.storage.ImageStore;
+import code.backend.upload.ImageUploadStream;
+import code.backend.upload.UploadAdmission;
+import code.backend.upload.UploadLimits;
+import code.backend.upload.UploadRejectedException;
+import code.backend.upload.UploadSession;
+import code.backend.upload.UploadSessionStore;
+import code.backend.upload.UploadTooLargeException;
+
+
+/**
+ * Resumable uploads of meme images:
+ *   POST   /api/meme/upload                {"meme": {...}, "size": bytes} creates a session
+ *   PUT    /api/meme/upload/{id}?offset=n  writes the next chunk of the image
+ *   GET    /api/meme/upload/{id}           shows the received offset
+ *   POST   /api/meme/upload/{id}           adds the meme once every byte is received
+ *   DELETE /api/meme/upload/{id}           cancels the upload
+ *
+ * Finishing ends the session even if the image turns out to be invalid.
+ */
+public class MemeUploadHandler implements HttpHandler {
+
+    private final Database database;
+    private final SessionStore sessions;
+    private final ImageStore imageStore;
+    private final ImageWorkQueue imageWorkQueue;
+    private final UploadSessionStore uploadSessions;
+    private final UploadAdmission uploadAdmission;
+
+
+
+    public MemeUploadHandler(Database database, SessionStore sessions, ImageStore imageStore, ImageWorkQueue imageWorkQueue, UploadSessionStore uploadSessions, UploadAdmission uploadAdmission) {
+        this.database = database;
+        this.sessions = sessions;
+        this.imageStore = imageStore;
+        this.imageWorkQueue = imageWorkQueue;
+        this.uploadSessions = uploadSessions;
+        this.uploadAdmission = uploadAdmission;
+    }
+
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - UPLOAD: ");
+
+        try (exchange) {
+            String username = exchangeMethods.checkUserValidity(sessions);
+            String method = exchange.getRequestMethod().toUpperCase();
+
+            // Get the session ID from the path, {id} of the route
+            String uploadId = Objects.requireNonNullElse(RequestContext.current().getParameter("id"), "");
+
+            switch (method) {
+                case "POST" -> {
+                    if (uploadId.isEmpty()) {
+                        createRequest(exchange, exchangeMethods, username);
+                        return;
+                    }
+
+                    // Finishing reads the whole image
+                    UploadSession session = getSession(uploadId, username);
+                    UploadAdmission.Permit permit;
+
+                    // Too many uploads running, tell when to retry
+                    try {
+                        permit = uploadAdmission.acquire(session.getSize());
+                    }
+
+                    catch (UploadRejectedException e) {
+                        MemeHandler.rejectUpload(exchange, exchangeMethods, e);
+                        return;
+                    }
+
+                    try {
+                        finishRequest(exchange, exchangeMethods, session, username);
+                    }
+
+                    finally {
+                        permit.close();
+                    }
+                }
+
+                case "PUT" -> {
+                    UploadSession session = getSession(uploadId, username);
+                    UploadAdmission.Permit permit;
+
+                    // Too many uploads running, tell when to retry
+                    try {
+                        permit = uploadAdmission.acquire(exchangeMethods.getContentLength(session.getSize() - session.getOffset()));
+                    }
+
+                    catch (UploadRejectedException e) {
+                        MemeHandler.rejectUpload(exchange, exchangeMethods, e);
+                        return;
+                    }
+
+                    try {
+                        chunkRequest(exchange, exchangeMethods, session);
+                    }
+
+                    finally {
+                        permit.close();
+                    }
+                }
+
+                case "GET" -> sendProgress(exchange, 200, getSession(uploadId, username));
+
+                case "DELETE" -> {
+                    uploadSessions.delete(getSession(uploadId, username));
+                    exchange.sendResponseHeaders(200, -1);
+                }
+
+                default -> exchangeMethods.errorResponse(405, ": Unsupported upload method\n");
+            }
+        }
+
+        catch (SecurityException e) {
+            exchangeMethods.errorResponse(401, e.getMessage());
+        }
+
+        // Session not found
+        catch (NullPointerException e) {
+            exchangeMethods.errorResponse(404, e.getMessage());
+        }
+
+        catch (Exception e) {
+            exchangeMethods.errorResponse(500, e.getMessage());
+        }
+    }
+
+
+    /**
+     * Gets the upload session of the user
+     *
+     * @param  uploadId ID of the session
+     * @param  username User of the request
+     * @return Upload session
+     * @throws NullPointerException If the session doesn't exist or has expired
+     */
+    private UploadSession getSession(String uploadId, String username) {
+        UploadSession session = uploadSessions.get(uploadId, username);
+        if (session == null) {
+            throw new NullPointerException(": Upload session not found");
+        }
+
+        return session;
+    }
+
+
+
+
+// ▛                   ▜
+//    Session methods
+// ▙                   ▟
+
+
+
+    private void createRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods, String username) {
+        try {
+
+            // Content validity check
+            String content = exchangeMethods.getContent(exchange.getRequestHeaders());
+            JSONObject contentJson = new JSONObject(content);
+
+            // Check the meme before any bytes are sent
+            JSONObject memeJson = contentJson.getJSONObject("meme");
+            new Meme(memeJson).getTagsSet();
+
+            UploadSession session = uploadSessions.create(username, memeJson, contentJson.getLong("size"));
+            sendProgress(exchange, 201, session);
+        }
+
+        catch (UploadTooLargeException e) {
+            exchangeMethods.errorResponse(413, e.getMessage());
+        }
+
+        // User has too many open uploads
+        catch (IllegalStateException e) {
+            exchangeMethods.errorResponse(429, e.getMessage());
+        }
+
+        // Invalid meme or size
+        catch (IOException | IllegalArgumentException | NullPointerException e) {
+            exchangeMethods.errorResponse(406, e.getMessage());
+        }
+
+        catch (JSONException e) {
+            exchangeMethods.errorResponse(405, ": " + e.getMessage());
+        }
+    }
+
+
+    private void chunkRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods, UploadSession session) {
+        try {
+            long offset = getOffset(exchange);
+
+            // Refuse chunks that are known to go past the size of the upload before writing them
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength != null && offset + Long.parseLong(contentLength.trim()) > session.getSize()) {
+                throw new UploadTooLargeException(": Chunk goes past the size of the upload (" + session.getSize() + " bytes)");
+            }
+
+            // Write the chunk, bytes past the size of the upload are refused
+            uploadSessions.append(session, offset, exchange.getRequestBody());
+            sendProgress(exchange, 200, session);
+        }
+
+        // Wrong offset or concurrent chunk, the message tells where to continue
+        catch (IllegalStateException e) {
+            exchangeMethods.errorResponse(409, e.getMessage());
+        }
+
+        catch (UploadTooLargeException e) {
+            exchangeMethods.errorResponse(413, e.getMessage());
+        }
+
+        catch (IOException | IllegalArgumentException e) {
+            exchangeMethods.errorResponse(406, e.getMessage());
+        }
+    }
+
+
+    private void finishRequest(HttpExchange exchange, HttpExchangeMethods exchangeMethods, UploadSession session, String username) {
+        Meme meme = null;
+        boolean added = false;
+
+        // The committed image is pinned until the meme is added
+        try (ImagePins pins = new ImagePins()) {
+            Meme parsed = new Meme(session.getMemeJson());
+            meme = parsed;
+
+            // Store the image and add the meme, the session keeps the data until the meme is added
+            int memeId = uploadSessions.finish(session, data -> {
+                saveMemeFile(data, parsed, pins);
+                return database.addMeme(parsed, username);
+            });
+            added = true;
+
+            // Process the image in the background
+            imageWorkQueue.submit(memeId, ImageWorkQueue.UPLOAD_PRIORITY);
+
+            // Send accepted message, the image is stored but not yet processed
+            byte[] responseBytes = new JSONObject()
+                .put("id", memeId)
+                .put("status", ImageWorkQueue.PENDING)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8)
+            ;
+            exchange.sendResponseHeaders(202, responseBytes.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(responseBytes);
+            }
+            Log.info("Meme added succesfully");
+        }
+
+        // Upload isn't complete yet
+        catch (IllegalStateException e) {
+            exchangeMethods.errorResponse(409, e.getMessage());
+        }
+
+        catch (IOException | IllegalArgumentException | SQLException e) {
+            exchangeMethods.errorResponse(406, e.getMessage());
+        }
+
+        catch (JSONException e) {
+            exchangeMethods.errorResponse(405, ": " + e.getMessage());
+        }
+
+        // Image of the meme not added is deleted once its pin is released
+        finally {
+            if (!added) {
+                MemeHandler.deleteUnusedImage(database, imageStore, meme);
+            }
+        }
+    }
+
+
+    /**
+     * Checks the received image from its headers and stores it. The data file
+     * is left in place, the store gets a link (or a copy) of it.
+     *
+     * @param data File holding the whole image
+     * @param meme Meme of the image
+     * @param pins Pins of the committed image
+     */
+    private void saveMemeFile(Path data, Meme meme, ImagePins pins) throws IOException {
+
+        // Hash the file and check its headers
+        ImageUploadStream upload = new ImageUploadStream(OutputStream.nullOutputStream(), UploadLimits.MAX_PART_SIZE);
+        try (upload) {
+            Files.copy(data, upload);
+        }
+        ImageInfo info = upload.getImageInfo();
+        String memeHash = upload.getHash();
+
+        // Commit consumes its file, so it gets a link of the data
+        Path temporary = imageStore.createTemporaryFile();
+        try {
+            Files.delete(temporary);
+            try {
+                Files.createLink(temporary, data);
+            }
+
+            // File system without hard links
+            catch (IOException | UnsupportedOperationException e) {
+                Files.copy(data, temporary, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            // Move the file in place durably (already stored content isn't written again)
+            pins.pin(memeHash);
+            imageStore.commit(temporary, ImageStore.fileName(memeHash, info.type()));
+        }
+
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        meme.setImage(memeHash, info.type());
+        meme.setImageSize(info.width(), info.height());
+        meme.setFrameCount(info.frames());
+        meme.setImageStatus(ImageWorkQueue.PENDING);
+    }
+
+
+
+
+// ▛                  ▜
+//    Helper methods
+// ▙                  ▟
+
+
+
+    /**
+     * Gets the offset of the chunk from the query
+     *
+     * @param  exchange HTTPS request handler
+     * @return Offset of the chunk
+     * @throws IllegalArgumentException If the offset is missing or isn't an integer
+     */
+    private long getOffset(HttpExchange exchange) {
+        long offset;
+
+        try {
+            offset = RequestParser.getLong(exchange.getRequestURI().getRawQuery(), "offset", Long.MIN_VALUE);
+        }
+
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(": offset must be an integer");
+        }
+
+        if (offset == Long.MIN_VALUE) {
+            throw new IllegalArgumentException(": Offset of the chunk must be given");
+        }
+
+        return offset;
+    }
+
+
+    private void sendProgress(HttpExchange exchange, int statusCode, UploadSession session) throws IOException {
+        byte[] responseBytes = uploadSessions.getProgress(session).toString().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(responseBytes);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package code.backend.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.metrics.Metrics;
+
+
+public class MetricsHandler implements HttpHandler {
+
+
+    /**
+    * Handles the method of the HTTP request (Available: GET)
+    *
+    * @param  exchange HTTP request hadler
+    */
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - METRICS");
+
+        try (exchange) {
+            String method = exchange.getRequestMethod().toUpperCase();
+
+            switch (method) {
+                case "GET" -> getRequest(exchange);
+
+                // Hande unsupported methods
+                default -> exchangeMethods.errorResponse(405, ": Unsupported method");
+            }
+        }
+
+		catch (Exception e) {
+			exchangeMethods.errorResponse(500, e.getMessage());
+		}
+	}
+
+
+	/**
+    * Handles the GET method, sends the metrics in the Prometheus text format
+    *
+    * @param  exchange HTTP request hadler
+    */
+	private void getRequest(HttpExchange exchange) throws IOException {
+        byte[] bytes = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+
+		// Send response to the server
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(bytes);
+        }
+	}
+
+}
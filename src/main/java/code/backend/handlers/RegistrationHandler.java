@@ -16,6 +16,8 @@ import com.sun.net.httpserver.HttpHandler;
 
 import code.backend.Database;
 import code.backend.HttpExchangeMethods;
+import code.backend.log.Log;
+import code.backend.user.PasswordHashRejectedException;
 import code.backend.user.UserAuthenticator;
 
 public class RegistrationHandler implements HttpHandler {
@@ -88,7 +90,13 @@ public class RegistrationHandler implements HttpHandler {
 
             // Send success message
             exchange.sendResponseHeaders(200, -1);
-            System.out.println("User added successfully");
+            Log.info("User added successfully");
+        }
+
+        // Too many registrations at once
+        catch (PasswordHashRejectedException e) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(e.getRetryAfter()));
+            exchangeMethods.errorResponse(503, ": " + e.getMessage());
         }
 
         // Invalid format for user
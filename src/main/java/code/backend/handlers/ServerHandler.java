@@ -1,13 +1,13 @@
 package code.backend.handlers;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import code.backend.HttpExchangeMethods;
+import code.backend.compression.PrecompressedResponse;
 
 
 public class ServerHandler implements HttpHandler {
@@ -18,6 +18,7 @@ public class ServerHandler implements HttpHandler {
         Hello, Welcome to the Meme Database!
         """
     ;
+    private static final PrecompressedResponse RESPONSE = new PrecompressedResponse(SERVER_MESSAGE.getBytes(StandardCharsets.UTF_8), "text/plain; charset=utf-8", "public, max-age=3600");
 
 
     /**
@@ -54,15 +55,8 @@ public class ServerHandler implements HttpHandler {
     * @param  exchange HTTP request hadler
     */
 	private void getRequest(HttpExchange exchange) throws IOException {
-        byte[] bytes = SERVER_MESSAGE.getBytes(StandardCharsets.UTF_8);
-
-		// Send response to the server
-		exchange.sendResponseHeaders(200, bytes.length);
-
-        try (OutputStream stream = exchange.getResponseBody()) {
-            stream.write(bytes);
-            stream.flush();
-        }
+		// Send the stored response
+		RESPONSE.send(exchange, 200);
 	}
 
 }
@@ -1,6 +1,7 @@
 package code.backend.handlers;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 
@@ -14,6 +15,7 @@ import com.sun.net.httpserver.HttpHandler;
 import code.backend.Database;
 import code.backend.HttpExchangeMethods;
 import code.backend.Tag;
+import code.backend.log.Log;
 
 
 public class TagHandler implements HttpHandler {    
@@ -67,7 +69,11 @@ public class TagHandler implements HttpHandler {
 
             // Send the meme paths
             byte[] memeBytes = tags.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
             exchange.sendResponseHeaders(200, memeBytes.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(memeBytes);
+            }
         }
 
         catch (IOException | SQLException e) {
@@ -110,7 +116,7 @@ public class TagHandler implements HttpHandler {
 
             // Send success message
             exchange.sendResponseHeaders(200, -1);
-            System.out.println("Tags added succesfully\n");
+            Log.info("Tags added succesfully");
         } 
         
         catch (IOException | IllegalArgumentException | SQLException e) {
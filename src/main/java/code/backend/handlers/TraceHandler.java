@@ -0,0 +1,65 @@
+package code.backend.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.request.RequestParser;
+import code.backend.trace.Tracer;
+
+
+public class TraceHandler implements HttpHandler {
+
+
+    /**
+    * Handles the method of the HTTP request (Available: GET)
+    *
+    * @param  exchange HTTP request hadler
+    */
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - TRACE");
+
+        try (exchange) {
+            String method = exchange.getRequestMethod().toUpperCase();
+
+            switch (method) {
+                case "GET" -> getRequest(exchange);
+
+                // Hande unsupported methods
+                default -> exchangeMethods.errorResponse(405, ": Unsupported method");
+            }
+        }
+
+		catch (Exception e) {
+			exchangeMethods.errorResponse(500, e.getMessage());
+		}
+	}
+
+
+	/**
+    * Handles the GET method, sends the kept traces as JSON, the latest first.
+    * The query "min" leaves out the traces shorter than the given milliseconds.
+    *
+    * @param  exchange HTTP request hadler
+    */
+	private void getRequest(HttpExchange exchange) throws IOException {
+        // Only the slow requests
+        long minimumMillis = RequestParser.getLong(exchange.getRequestURI().getRawQuery(), "min", 0);
+
+        byte[] bytes = Tracer.getTraces(minimumMillis).toString().getBytes(StandardCharsets.UTF_8);
+
+		// Send response to the server
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(bytes);
+        }
+	}
+
+}
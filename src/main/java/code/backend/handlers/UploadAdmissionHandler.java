@@ -0,0 +1,75 @@
+package code.backend.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.upload.UploadAdmission;
+
+
+public class UploadAdmissionHandler implements HttpHandler {
+
+
+    private final UploadAdmission uploadAdmission;
+
+
+
+    /**
+    * Shows the limits and the load of the upload admission control
+    *
+    * @param uploadAdmission Admission control of the uploads
+    */
+    public UploadAdmissionHandler(UploadAdmission uploadAdmission) {
+        this.uploadAdmission = uploadAdmission;
+    }
+
+
+
+    /**
+    * Handles the method of the HTTP request (Available: GET)
+    *
+    * @param  exchange HTTP request hadler
+    */
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - UPLOAD_ADMISSION");
+
+        try (exchange) {
+            String method = exchange.getRequestMethod().toUpperCase();
+            
+            switch (method) {
+                case "GET" -> getRequest(exchange);
+                
+                // Hande unsupported methods
+                default -> exchangeMethods.errorResponse(405, ": Unsupported method");
+            }
+        }
+
+		catch (Exception e) {
+			exchangeMethods.errorResponse(500, e.getMessage());
+		}
+	}
+
+
+	/**
+    * Handles the GET method
+    *
+    * @param  exchange HTTP request hadler
+    */
+	private void getRequest(HttpExchange exchange) throws IOException {
+        byte[] bytes = uploadAdmission.getStats().toString().getBytes(StandardCharsets.UTF_8);
+
+		// Send response to the server
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(bytes);
+        }
+	}
+
+}
@@ -0,0 +1,371 @@
+package code.backend.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Streaming parser of the PNG and GIF structure. Reads the PNG signature and
+ * the IHDR and acTL chunks, and the GIF header, logical screen descriptor and
+ * image descriptors, while skipping the compressed image data. Dimensions and
+ * frame count are known in a single pass without decoding any pixels.
+ *
+ * Images exceeding the pixel limits are rejected as soon as their header is
+ * read, before anything decodes them:
+ *   memes.maxPixels      - maximum pixels of a frame (default 50 million)
+ *   memes.maxTotalPixels - maximum pixels of all frames (default 1 billion)
+ */
+public class ImageHeaderParser {
+
+
+    private final long maxPixels;
+    private final long maxTotalPixels;
+
+    // Parsing state
+    private State state = State.SIGNATURE;
+    private final byte[] buffer = new byte[16];
+    private int need = 6;
+    private int filled = 0;
+    private long skip = 0;
+    private boolean complete = false;
+
+    // Parsed information
+    private String type = null;
+    private int width = 0;
+    private int height = 0;
+    private long frames = 0;
+
+    private static final long MAX_PIXELS = Long.getLong("memes.maxPixels", 50_000_000L);
+    private static final long MAX_TOTAL_PIXELS = Long.getLong("memes.maxTotalPixels", 1_000_000_000L);
+    private static final String INVALID_IMAGE = "The given file must be an image file";
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+
+
+    /**
+     * Structure read next
+     */
+    private enum State {
+        SIGNATURE, PNG_SIGNATURE, PNG_CHUNK, PNG_IHDR, PNG_ACTL,
+        GIF_SCREEN, GIF_BLOCK, GIF_EXTENSION, GIF_IMAGE, GIF_CODE_SIZE, GIF_SUB_BLOCK
+    }
+
+
+
+
+    /**
+     * Creates parser using the pixel limits of the system properties
+     */
+    public ImageHeaderParser() {
+        this(MAX_PIXELS, MAX_TOTAL_PIXELS);
+    }
+
+
+    /**
+     * Creates parser with the given pixel limits
+     *
+     * @param maxPixels Maximum pixels of a frame
+     * @param maxTotalPixels Maximum pixels of all frames
+     */
+    public ImageHeaderParser(long maxPixels, long maxTotalPixels) {
+        this.maxPixels = maxPixels;
+        this.maxTotalPixels = maxTotalPixels;
+    }
+
+
+    /**
+     * Parses the whole stream
+     *
+     * @param  input Stream of the image
+     * @return Information of the image
+     * @throws IllegalArgumentException If the image is invalid or exceeds the pixel limits
+     */
+    public static ImageInfo parse(InputStream input) throws IOException {
+        ImageHeaderParser parser = new ImageHeaderParser();
+        byte[] bytes = new byte[8192];
+
+        int read;
+        while ((read = input.read(bytes)) != -1) {
+            parser.update(bytes, 0, read);
+        }
+
+        return parser.finish();
+    }
+
+
+
+
+    /**
+     * Parses the next bytes of the image
+     *
+     * @param  bytes Next bytes
+     * @param  offset Start of the bytes
+     * @param  length Count of the bytes
+     * @throws IllegalArgumentException If the image is invalid or exceeds the pixel limits
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        while (length > 0 && !complete) {
+
+            // Skip the image data in bulk
+            if (skip > 0) {
+                int skipped = (int) Math.min(skip, length);
+                skip -= skipped;
+                offset += skipped;
+                length -= skipped;
+                continue;
+            }
+
+            // Collect the next structure
+            int copied = Math.min(need - filled, length);
+            System.arraycopy(bytes, offset, buffer, filled, copied);
+            filled += copied;
+            offset += copied;
+            length -= copied;
+
+            if (filled == need) {
+                filled = 0;
+                step();
+            }
+        }
+    }
+
+
+    /**
+     * Checks the whole image was read
+     *
+     * @return Information of the image
+     * @throws IllegalArgumentException If the image ended before its end marker
+     */
+    public ImageInfo finish() {
+
+        // GIF trailer is optional in practice, but a frame must exist and its data must end
+        boolean gifDone = "gif".equals(type) && frames > 0 && state == State.GIF_BLOCK && filled == 0 && skip == 0;
+        if (!complete && !gifDone) {
+            throw new IllegalArgumentException(INVALID_IMAGE);
+        }
+
+        return new ImageInfo(type, width, height, (int) frames);
+    }
+
+
+    /**
+     * Gets the type detected from the signature
+     *
+     * @return Type of the image (png or gif), NULL if the signature isn't yet read
+     */
+    public String getType() {
+        return type;
+    }
+
+
+
+
+    /**
+     * Handles the collected structure and sets what's read next
+     */
+    private void step() {
+        switch (state) {
+            case SIGNATURE -> signature();
+
+            case PNG_SIGNATURE -> {
+                if (buffer[0] != PNG_SIGNATURE[6] || buffer[1] != PNG_SIGNATURE[7]) {
+                    throw new IllegalArgumentException(INVALID_IMAGE);
+                }
+                expect(State.PNG_CHUNK, 8);
+            }
+
+            case PNG_CHUNK -> pngChunk();
+
+            case PNG_IHDR -> {
+                width = readInt(0);
+                height = readInt(4);
+                if (width <= 0 || height <= 0) {
+                    throw new IllegalArgumentException(INVALID_IMAGE);
+                }
+                frames = 1;
+                checkPixels(width, height);
+
+                // Skip the CRC
+                skip = 4;
+                expect(State.PNG_CHUNK, 8);
+            }
+
+            case PNG_ACTL -> {
+                frames = readInt(0) & 0xFFFFFFFFL;
+                if (frames == 0) {
+                    throw new IllegalArgumentException(INVALID_IMAGE);
+                }
+                checkPixels(width, height);
+
+                skip = 4;
+                expect(State.PNG_CHUNK, 8);
+            }
+
+            case GIF_SCREEN -> {
+                width = readShort(0);
+                height = readShort(2);
+                checkPixels(width, height);
+
+                // Skip the global color table
+                skip = colorTableSize(buffer[4]);
+                expect(State.GIF_BLOCK, 1);
+            }
+
+            case GIF_BLOCK -> gifBlock();
+
+            case GIF_EXTENSION -> expect(State.GIF_SUB_BLOCK, 1);
+
+            case GIF_IMAGE -> {
+                frames++;
+                checkPixels(readShort(4), readShort(6));
+
+                // Skip the local color table
+                skip = colorTableSize(buffer[8]);
+                expect(State.GIF_CODE_SIZE, 1);
+            }
+
+            case GIF_CODE_SIZE -> expect(State.GIF_SUB_BLOCK, 1);
+
+            case GIF_SUB_BLOCK -> {
+                int size = buffer[0] & 0xFF;
+
+                // Empty sub-block ends the block
+                if (size == 0) {
+                    expect(State.GIF_BLOCK, 1);
+                }
+                else {
+                    skip = size;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Detects the type from the first six bytes
+     */
+    private void signature() {
+
+        // GIF87a or GIF89a
+        if (buffer[0] == 'G' && buffer[1] == 'I' && buffer[2] == 'F' && buffer[3] == '8'
+            && (buffer[4] == '7' || buffer[4] == '9') && buffer[5] == 'a') {
+            type = "gif";
+            expect(State.GIF_SCREEN, 7);
+            return;
+        }
+
+        // PNG, the last two signature bytes are checked next
+        for (int i = 0; i < 6; i++) {
+            if (buffer[i] != PNG_SIGNATURE[i]) {
+                throw new IllegalArgumentException(INVALID_IMAGE);
+            }
+        }
+        type = "png";
+        expect(State.PNG_SIGNATURE, 2);
+    }
+
+
+    /**
+     * Handles the length and type of a PNG chunk
+     */
+    private void pngChunk() {
+        long length = readInt(0) & 0xFFFFFFFFL;
+        String chunkType = new String(buffer, 4, 4, StandardCharsets.US_ASCII);
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(INVALID_IMAGE);
+        }
+
+        // IHDR must be the first chunk
+        if (frames == 0 && !chunkType.equals("IHDR")) {
+            throw new IllegalArgumentException(INVALID_IMAGE);
+        }
+
+        switch (chunkType) {
+            case "IHDR" -> {
+                if (length != 13 || frames != 0) {
+                    throw new IllegalArgumentException(INVALID_IMAGE);
+                }
+                expect(State.PNG_IHDR, 13);
+            }
+
+            case "acTL" -> {
+                if (length != 8) {
+                    throw new IllegalArgumentException(INVALID_IMAGE);
+                }
+                expect(State.PNG_ACTL, 8);
+            }
+
+            case "IEND" -> complete = true;
+
+            // Skip the data and the CRC of other chunks
+            default -> {
+                skip = length + 4;
+                expect(State.PNG_CHUNK, 8);
+            }
+        }
+    }
+
+
+    /**
+     * Handles the introducer of a GIF block
+     */
+    private void gifBlock() {
+        switch (buffer[0]) {
+            case 0x21 -> expect(State.GIF_EXTENSION, 1);
+            case 0x2C -> expect(State.GIF_IMAGE, 9);
+            case 0x3B -> complete = true;
+            default -> throw new IllegalArgumentException(INVALID_IMAGE);
+        }
+    }
+
+
+
+
+    /**
+     * Checks the frame and all frames together stay within the pixel limits
+     *
+     * @param frameWidth Width of the frame
+     * @param frameHeight Height of the frame
+     * @throws ImageTooLargeException If a limit is exceeded
+     */
+    private void checkPixels(long frameWidth, long frameHeight) {
+        long pixels = Math.max(frameWidth * frameHeight, (long) width * height);
+
+        if (pixels > maxPixels) {
+            throw new ImageTooLargeException("Image is too large: " + frameWidth + "x" + frameHeight + " pixels");
+        }
+
+        // Every frame is decoded to the full canvas
+        if (pixels > 0 && frames > maxTotalPixels / pixels) {
+            throw new ImageTooLargeException("Image is too large: " + frames + " frames of " + pixels + " pixels");
+        }
+    }
+
+
+    private void expect(State next, int bytes) {
+        state = next;
+        need = bytes;
+    }
+
+
+    private static int colorTableSize(byte packed) {
+        return ((packed & 0x80) == 0) ? 0 : 3 * (1 << ((packed & 0x07) + 1));
+    }
+
+
+    // Big-endian (PNG)
+    private int readInt(int index) {
+        return ((buffer[index] & 0xFF) << 24) | ((buffer[index + 1] & 0xFF) << 16)
+            | ((buffer[index + 2] & 0xFF) << 8) | (buffer[index + 3] & 0xFF);
+    }
+
+
+    // Little-endian (GIF)
+    private int readShort(int index) {
+        return (buffer[index] & 0xFF) | ((buffer[index + 1] & 0xFF) << 8);
+    }
+}
@@ -0,0 +1,13 @@
+package code.backend.image;
+
+
+
+/**
+ * Type, dimensions and frame count of an image, read from its headers without decoding it
+ *
+ * @param type Type of the image (png or gif)
+ * @param width Width in pixels
+ * @param height Height in pixels
+ * @param frames Count of the frames (1 for still images)
+ */
+public record ImageInfo(String type, int width, int height, int frames) {}
@@ -0,0 +1,24 @@
+package code.backend.image;
+
+
+
+/**
+ * Pending background job of a meme image
+ *
+ * @param id ID of the job
+ * @param memeId ID of the meme
+ * @param kind Kind of the job
+ * @param priority Priority of the job (smaller runs first)
+ * @param createdAt Creation time of the job in milliseconds
+ */
+public record ImageJob(long id, int memeId, String kind, int priority, long createdAt) implements Comparable<ImageJob> {
+
+
+    @Override
+    public int compareTo(ImageJob other) {
+        int priorityComparasion = Integer.compare(priority, other.priority);
+        if (priorityComparasion != 0) return priorityComparasion;
+
+        return Long.compare(id, other.id);
+    }
+}
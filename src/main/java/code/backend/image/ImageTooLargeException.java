@@ -0,0 +1,23 @@
+package code.backend.image;
+
+
+
+/**
+ * Thrown when the headers of an image exceed the pixel limits, before the image is decoded
+ */
+public class ImageTooLargeException extends IllegalArgumentException {
+
+
+    private static final long serialVersionUID = 1L;
+
+
+
+    /**
+     * Creates the exception
+     *
+     * @param message Explanation of the exceeded limit
+     */
+    public ImageTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,360 @@
+package code.backend.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.awt.image.BufferedImage;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONObject;
+
+import code.backend.Database;
+import code.backend.Meme;
+import code.backend.log.Log;
+import code.backend.storage.ImageStore;
+
+
+
+/**
+ * Bounded, prioritized queue of background image work. Uploads only store the
+ * image bytes; decoding, sizing, perceptual hashing and the repost check run
+ * here on a fixed count of worker threads.
+ *
+ * Every job is stored in the ImageJob table before it is queued and deleted
+ * once it's done, so pending work survives restarts. Jobs that don't fit to
+ * the in-memory queue stay only in the table until the workers catch up.
+ */
+public class ImageWorkQueue {
+
+
+    private final Database database;
+    private final ImageStore imageStore;
+    private final SimilarityIndex similarityIndex;
+    private final int workers;
+    private final int capacity;
+
+    private final PriorityBlockingQueue<ImageJob> queue = new PriorityBlockingQueue<>();
+    private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean overflow = new AtomicBoolean(false);
+
+    // Statistics
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final LongAdder totalProcessingNanos = new LongAdder();
+
+    public static final String PROCESS = "process";
+    public static final int UPLOAD_PRIORITY = 0;
+    public static final int BACKFILL_PRIORITY = 10;
+
+    public static final String PENDING = "pending";
+    public static final String READY = "ready";
+    public static final String FAILED = "failed";
+    public static final String DUPLICATE = "duplicate";
+
+    // Maximum perceptual hash distance of a repost (negative disables the check)
+    private static final int DUPLICATE_DISTANCE = Integer.getInteger("memes.duplicateDistance", 4);
+    private static final String ERROR_MESSAGE = " - IMAGE_QUEUE: ";
+
+
+
+    /**
+     * Creates the work queue
+     *
+     * @param database Database of the server
+     * @param imageStore Storage of the meme image files
+     * @param similarityIndex Perceptual hash index of the memes
+     * @param workers Count of the worker threads
+     * @param capacity Maximum count of the jobs kept in memory
+     */
+    public ImageWorkQueue(Database database, ImageStore imageStore, SimilarityIndex similarityIndex, int workers, int capacity) {
+        this.database = database;
+        this.imageStore = imageStore;
+        this.similarityIndex = similarityIndex;
+        this.workers = Math.max(1, workers);
+        this.capacity = Math.max(1, capacity);
+    }
+
+
+
+
+    /**
+     * Queues the jobs left from the previous run and the memes that were never
+     * processed, then starts the workers
+     */
+    public void start() throws SQLException {
+
+        // Memes of older versions
+        for (int memeId: database.getUnprocessedMemeIds()) {
+            database.setImageStatus(memeId, PENDING);
+            database.addImageJob(memeId, PROCESS, BACKFILL_PRIORITY, System.currentTimeMillis());
+        }
+
+        refill();
+
+        // Start the workers
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "image-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+
+    /**
+     * Adds new job for the meme image. The job is stored before this returns.
+     *
+     * @param memeId ID of the meme
+     * @param priority Priority of the job (smaller runs first)
+     */
+    public void submit(int memeId, int priority) throws SQLException {
+        long createdAt = System.currentTimeMillis();
+        long jobId = database.addImageJob(memeId, PROCESS, priority, createdAt);
+
+        enqueue(new ImageJob(jobId, memeId, PROCESS, priority, createdAt));
+    }
+
+
+    /**
+     * Adds the stored job to the in-memory queue, if it fits. Synchronized
+     * with refill, so the capacity check and the add can't interleave.
+     *
+     * @param job Stored job
+     */
+    private synchronized void enqueue(ImageJob job) {
+        if (queued.size() >= capacity) {
+            overflow.set(true);
+            return;
+        }
+
+        if (queued.add(job.id())) {
+            queue.offer(job);
+        }
+    }
+
+
+    /**
+     * Loads the stored jobs that didn't fit to the in-memory queue
+     */
+    private synchronized void refill() throws SQLException {
+        overflow.set(false);
+
+        List<ImageJob> jobs = database.getImageJobs(capacity * 2);
+        for (ImageJob job: jobs) {
+            enqueue(job);
+        }
+
+        // More jobs may be left in the table
+        if (jobs.size() == capacity * 2) {
+            overflow.set(true);
+        }
+    }
+
+
+
+
+    /**
+     * Runs the jobs of the queue until the server stops
+     */
+    private void work() {
+        while (true) {
+            ImageJob job;
+
+            try {
+                job = queue.take();
+            }
+
+            catch (InterruptedException e) {
+                return;
+            }
+
+            inFlight.incrementAndGet();
+            long started = System.nanoTime();
+
+            try {
+                process(job);
+                completed.increment();
+            }
+
+            catch (Exception e) {
+                failed.increment();
+                Log.error(ERROR_MESSAGE + "Job of the meme {} failed: {}", job.memeId(), e.getMessage());
+                setStatus(job.memeId(), FAILED);
+            }
+
+            finally {
+                finish(job, started);
+            }
+        }
+    }
+
+
+    /**
+     * Removes the done job and records its latency
+     *
+     * @param job Done job
+     * @param started Start of the processing in nanoseconds
+     */
+    private void finish(ImageJob job, long started) {
+        try {
+            database.deleteImageJob(job.id());
+        }
+
+        catch (SQLException e) {
+            Log.error(ERROR_MESSAGE + "{}", e.getMessage());
+        }
+
+        queued.remove(job.id());
+        inFlight.decrementAndGet();
+
+        // Record the latency from the upload to the end of the processing
+        long latency = System.currentTimeMillis() - job.createdAt();
+        totalLatency.add(latency);
+        maxLatency.accumulateAndGet(latency, Math::max);
+        totalProcessingNanos.add(System.nanoTime() - started);
+
+        // Load the jobs that didn't fit
+        if (overflow.get() && queue.size() < capacity / 2) {
+            try {
+                refill();
+            }
+
+            catch (SQLException e) {
+                Log.error(ERROR_MESSAGE + "{}", e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Validates and decodes the meme image, stores its size and perceptual hash, and checks is it a repost
+     *
+     * @param job Job of the meme
+     */
+    private void process(ImageJob job) throws SQLException, IOException {
+        List<Meme> memes = database.getMemeById(job.memeId());
+
+        // Meme was deleted
+        if (memes.isEmpty() || memes.get(0).getImageFileName() == null) {
+            return;
+        }
+        Meme meme = memes.get(0);
+
+        // Check the pixel limits before decoding, images of older versions were never validated
+        int frames = 1;
+        try (InputStream stream = imageStore.open(meme.getImageFileName())) {
+            frames = ImageHeaderParser.parse(stream).frames();
+        }
+
+        catch (ImageTooLargeException e) {
+            Log.warn(ERROR_MESSAGE + "Meme {} rejected: {}", meme.getID(), e.getMessage());
+            setStatus(meme.getID(), FAILED);
+            return;
+        }
+
+        catch (IllegalArgumentException e) {
+            // Older versions accepted other formats too, those are left for the decoder
+        }
+
+        // Decode the image
+        BufferedImage image;
+        try (InputStream stream = imageStore.open(meme.getImageFileName())) {
+            image = ImageIO.read(stream);
+        }
+
+        // Not an image after all
+        if (image == null) {
+            setStatus(meme.getID(), FAILED);
+            return;
+        }
+
+        // Store the derived information
+        long perceptualHash = PerceptualHash.of(image);
+        database.setImageSize(meme.getImageHash(), image.getWidth(), image.getHeight(), frames);
+        database.setPerceptualHash(meme.getID(), perceptualHash);
+
+        // Reposts aren't indexed
+        if (isRepost(meme.getID(), perceptualHash)) {
+            setStatus(meme.getID(), DUPLICATE);
+            return;
+        }
+
+        similarityIndex.add(perceptualHash, meme.getID());
+        setStatus(meme.getID(), READY);
+    }
+
+
+    /**
+     * Checks does an other meme look the same as the given meme
+     *
+     * @param  memeId ID of the meme
+     * @param  perceptualHash Perceptual hash of the meme image
+     * @return Is the meme a repost
+     */
+    private boolean isRepost(int memeId, long perceptualHash) throws SQLException {
+        if (DUPLICATE_DISTANCE < 0) {
+            return false;
+        }
+
+        for (int similarId: similarityIndex.search(perceptualHash, DUPLICATE_DISTANCE)) {
+            if (similarId == memeId) continue;
+
+            // Forget deleted memes
+            if (database.getMemeById(similarId).isEmpty()) {
+                similarityIndex.remove(similarId);
+                continue;
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    private void setStatus(int memeId, String status) {
+        try {
+            database.setImageStatus(memeId, status);
+        }
+
+        catch (SQLException e) {
+            Log.error(ERROR_MESSAGE + "{}", e.getMessage());
+        }
+    }
+
+
+
+
+    /**
+     * Gets the depth and latency statistics of the queue
+     *
+     * @return Statistics as JSON object
+     */
+    public JSONObject getStats() {
+        long done = completed.sum() + failed.sum();
+
+        return new JSONObject()
+            .put("workers", workers)
+            .put("capacity", capacity)
+            .put("depth", queue.size())
+            .put("overflow", overflow.get())
+            .put("inFlight", inFlight.get())
+            .put("completed", completed.sum())
+            .put("failed", failed.sum())
+            .put("averageLatencyMs", (done == 0) ? 0 : totalLatency.sum() / done)
+            .put("maxLatencyMs", maxLatency.get())
+            .put("averageProcessingMs", (done == 0) ? 0 : totalProcessingNanos.sum() / done / 1_000_000.0)
+        ;
+    }
+}
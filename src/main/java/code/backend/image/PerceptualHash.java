@@ -0,0 +1,69 @@
+package code.backend.image;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+
+
+/**
+ * 64-bit difference hash (dHash) of an image. Images that look the same have
+ * hashes with small Hamming distance, even if their encoding or size differs.
+ */
+public final class PerceptualHash {
+
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+
+
+    private PerceptualHash() {}
+
+
+
+
+    /**
+     * Calculates the difference hash of the image
+     *
+     * @param  image Decoded image
+     * @return 64-bit perceptual hash
+     */
+    public static long of(BufferedImage image) {
+
+        // Shrink the image to 9x8 grayscale pixels
+        BufferedImage small = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = small.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, WIDTH, HEIGHT, null);
+        graphics.dispose();
+
+        // Compare every pixel to its right neighbour
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                int left = small.getRaster().getSample(x, y, 0);
+                int right = small.getRaster().getSample(x + 1, y, 0);
+
+                hash <<= 1;
+                if (left > right) {
+                    hash |= 1;
+                }
+            }
+        }
+
+        return hash;
+    }
+
+
+    /**
+     * Counts the differing bits of two hashes
+     *
+     * @param  hash First hash
+     * @param  other Second hash
+     * @return Hamming distance (0-64)
+     */
+    public static int distance(long hash, long other) {
+        return Long.bitCount(hash ^ other);
+    }
+}
@@ -0,0 +1,263 @@
+package code.backend.image;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import code.backend.Database;
+import code.backend.Meme;
+
+
+
+/**
+ * BK-tree of the perceptual hashes of the memes. Finds memes within the given
+ * Hamming distance without comparing against every meme.
+ *
+ * Nodes of removed memes stay in the tree, because they route to other nodes.
+ * Memes deleted from the database may still be found; callers check the found
+ * IDs from the database and remove the ones that no longer exist.
+ */
+public class SimilarityIndex {
+
+
+    private Node root = null;
+    private final Map<Integer, Long> hashes = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+
+    /**
+     * Node of the tree holding every meme with the same hash
+     */
+    private static final class Node {
+
+        private final long hash;
+        private final List<Integer> memeIds = new ArrayList<>(1);
+        private Node[] children = null;
+
+        private Node(long hash) {
+            this.hash = hash;
+        }
+    }
+
+
+
+
+    /**
+     * Adds all hashed memes of the database to the index. Memes without hash
+     * are added by the image work queue once their image is processed.
+     *
+     * @param database Database of the server
+     */
+    public void load(Database database) throws SQLException {
+        for (Meme meme: database.getMemesList()) {
+            String status = meme.getImageStatus();
+
+            // Reposts and unreadable images aren't indexed
+            if (ImageWorkQueue.DUPLICATE.equals(status) || ImageWorkQueue.FAILED.equals(status)) {
+                continue;
+            }
+
+            if (meme.getPerceptualHash() != null) {
+                add(meme.getPerceptualHash(), meme.getID());
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Adds the meme to the index
+     *
+     * @param hash Perceptual hash of the meme image
+     * @param memeId ID of the meme
+     */
+    public void add(long hash, int memeId) {
+        lock.writeLock().lock();
+
+        try {
+
+            // Re-hashed meme replaces its old entry
+            if (hashes.containsKey(memeId)) {
+                removeFromNode(hashes.get(memeId), memeId);
+            }
+            hashes.put(memeId, hash);
+
+            // First meme
+            if (root == null) {
+                root = new Node(hash);
+                root.memeIds.add(memeId);
+                return;
+            }
+
+            // Walk down the edges labeled by the distance
+            Node node = root;
+            while (true) {
+                int distance = PerceptualHash.distance(hash, node.hash);
+
+                // Same hash
+                if (distance == 0) {
+                    node.memeIds.add(memeId);
+                    return;
+                }
+
+                if (node.children == null) {
+                    node.children = new Node[Long.SIZE + 1];
+                }
+
+                // Free edge
+                if (node.children[distance] == null) {
+                    Node child = new Node(hash);
+                    child.memeIds.add(memeId);
+                    node.children[distance] = child;
+                    return;
+                }
+
+                node = node.children[distance];
+            }
+        }
+
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes the meme from the index
+     *
+     * @param memeId ID of the meme
+     */
+    public void remove(int memeId) {
+        lock.writeLock().lock();
+
+        try {
+            Long hash = hashes.remove(memeId);
+            if (hash != null) {
+                removeFromNode(hash, memeId);
+            }
+        }
+
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes the meme from the node of its hash. The node itself is kept.
+     *
+     * @param hash Perceptual hash of the meme image
+     * @param memeId ID of the meme
+     */
+    private void removeFromNode(long hash, int memeId) {
+        Node node = root;
+
+        while (node != null) {
+            int distance = PerceptualHash.distance(hash, node.hash);
+
+            // Node of the hash found
+            if (distance == 0) {
+                node.memeIds.remove(Integer.valueOf(memeId));
+                return;
+            }
+
+            node = (node.children == null) ? null : node.children[distance];
+        }
+    }
+
+
+    /**
+     * Gets the perceptual hash of the indexed meme
+     *
+     * @param  memeId ID of the meme
+     * @return Perceptual hash, NULL if the meme isn't indexed
+     */
+    public Long getHash(int memeId) {
+        lock.readLock().lock();
+
+        try {
+            return hashes.get(memeId);
+        }
+
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Finds memes whose hash is within the given distance
+     *
+     * @param  hash Perceptual hash to compare
+     * @param  maxDistance Maximum Hamming distance
+     * @return IDs of the found memes
+     */
+    public List<Integer> search(long hash, int maxDistance) {
+        List<Integer> found = new ArrayList<>();
+
+        lock.readLock().lock();
+
+        try {
+            if (root == null) {
+                return found;
+            }
+
+            Deque<Node> nodes = new ArrayDeque<>();
+            nodes.push(root);
+
+            while (!nodes.isEmpty()) {
+                Node node = nodes.pop();
+                int distance = PerceptualHash.distance(hash, node.hash);
+
+                // Close enough
+                if (distance <= maxDistance) {
+                    found.addAll(node.memeIds);
+                }
+
+                if (node.children == null) {
+                    continue;
+                }
+
+                // Only subtrees within the distance range can hold matches (triangle inequality)
+                int from = Math.max(1, distance - maxDistance);
+                int to = Math.min(Long.SIZE, distance + maxDistance);
+                for (int i = from; i <= to; i++) {
+                    if (node.children[i] != null) {
+                        nodes.push(node.children[i]);
+                    }
+                }
+            }
+        }
+
+        finally {
+            lock.readLock().unlock();
+        }
+
+        return found;
+    }
+
+
+    /**
+     * Gets the count of the memes in the index
+     *
+     * @return Count of the memes
+     */
+    public int size() {
+        lock.readLock().lock();
+
+        try {
+            return hashes.size();
+        }
+
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package code.backend.log;
+
+import java.util.Locale;
+
+
+
+/**
+ * Asynchronous log of the server. Callers only check the level and store the
+ * message template with its arguments to a lock-free ring; a background
+ * thread does the formatting and the writing to System.out. Each {} of the
+ * template is replaced by the next argument when the message is written, so
+ * the arguments mustn't change after the call.
+ *
+ * Warnings and errors repeating the same text are limited per second, the
+ * next logged repeat tells how many were suppressed.
+ *
+ * Configured by the system properties:
+ *   memes.logLevel       - lowest logged level: debug, info, warn or error (default info)
+ *   memes.logBufferSize  - count of the messages waiting for the writer (default 8192)
+ *   memes.logRepeatLimit - same warnings or errors logged each second, 0 for no limit (default 10)
+ */
+public final class Log {
+
+
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("memes.logLevel", "info").toUpperCase(Locale.ROOT));
+    private static final LogRing RING = new LogRing(Integer.getInteger("memes.logBufferSize", 8192));
+    private static final RepeatLimiter LIMITER = new RepeatLimiter(Integer.getInteger("memes.logRepeatLimit", 10));
+
+
+
+    private Log() {}
+
+
+
+
+    /**
+     * Checks if the messages of the level are logged
+     *
+     * @param  level Level of the message
+     * @return True if the level is logged
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+
+
+// ▛                 ▜
+//    Level methods
+// ▙                 ▟
+
+
+
+    public static void debug(String template) {
+        if (LEVEL == Level.DEBUG) log(Level.DEBUG, template, null, null, null, 0);
+    }
+
+    public static void debug(String template, Object first) {
+        if (LEVEL == Level.DEBUG) log(Level.DEBUG, template, first, null, null, 1);
+    }
+
+    public static void debug(String template, Object first, Object second) {
+        if (LEVEL == Level.DEBUG) log(Level.DEBUG, template, first, second, null, 2);
+    }
+
+    public static void debug(String template, Object first, Object second, Object third) {
+        if (LEVEL == Level.DEBUG) log(Level.DEBUG, template, first, second, third, 3);
+    }
+
+
+    public static void info(String template) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, template, null, null, null, 0);
+    }
+
+    public static void info(String template, Object first) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, template, first, null, null, 1);
+    }
+
+    public static void info(String template, Object first, Object second) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, template, first, second, null, 2);
+    }
+
+    public static void info(String template, Object first, Object second, Object third) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, template, first, second, third, 3);
+    }
+
+
+    public static void warn(String template) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, template, null, null, null, 0);
+    }
+
+    public static void warn(String template, Object first) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, template, first, null, null, 1);
+    }
+
+    public static void warn(String template, Object first, Object second) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, template, first, second, null, 2);
+    }
+
+    public static void warn(String template, Object first, Object second, Object third) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, template, first, second, third, 3);
+    }
+
+
+    public static void error(String template) {
+        log(Level.ERROR, template, null, null, null, 0);
+    }
+
+    public static void error(String template, Object first) {
+        log(Level.ERROR, template, first, null, null, 1);
+    }
+
+    public static void error(String template, Object first, Object second) {
+        log(Level.ERROR, template, first, second, null, 2);
+    }
+
+    public static void error(String template, Object first, Object second, Object third) {
+        log(Level.ERROR, template, first, second, third, 3);
+    }
+
+
+
+
+    /**
+     * Stores the message for the writer, warnings and errors pass the repeat limit first
+     *
+     * @param level Level of the message
+     * @param template Message with {} in place of the arguments
+     * @param first First argument
+     * @param second Second argument
+     * @param third Third argument
+     * @param arguments Count of the arguments
+     */
+    private static void log(Level level, String template, Object first, Object second, Object third, int arguments) {
+        int suppressed = 0;
+
+        if (level.compareTo(Level.WARN) >= 0) {
+            int hash = template.hashCode();
+            hash = 31 * hash + hashOf(first);
+            hash = 31 * hash + hashOf(second);
+            hash = 31 * hash + hashOf(third);
+
+            suppressed = LIMITER.acquire(hash, System.currentTimeMillis());
+            if (suppressed < 0) {
+                return;
+            }
+        }
+
+        RING.publish(template, first, second, third, arguments, suppressed);
+    }
+
+
+    /**
+     * Hashes the text arguments, other objects aren't asked for a hash that may be costly
+     *
+     * @param  argument Argument of the message
+     * @return Hash of the argument
+     */
+    private static int hashOf(Object argument) {
+        return (argument instanceof String || argument instanceof Number) ? argument.hashCode() : 0;
+    }
+}
@@ -0,0 +1,271 @@
+package code.backend.log;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/**
+ * Bounded ring of log events written by many threads and drained by one
+ * writer thread. The events are allocated once and reused: a thread claims a
+ * sequence number with a CAS, fills the event and publishes it by writing
+ * its sequence. A full ring drops the event instead of blocking the caller.
+ *
+ * The writer formats a whole batch into one buffer and prints it with a
+ * single write to System.out.
+ */
+final class LogRing {
+
+
+    private final Event[] events;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+
+    private volatile long consumed = 0;
+    private volatile boolean sleeping = false;
+    private volatile boolean closing = false;
+
+    // Writer state, only touched by the writer thread
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE + 1024);
+    private long timestampSecond = -1;
+    private String timestampPrefix = "";
+
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+
+
+    /**
+     * Creates the ring and starts its writer thread
+     *
+     * @param capacity Count of the events, rounded up to a power of two
+     */
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this.events = new Event[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            events[i] = new Event();
+        }
+
+        writer = Thread.ofPlatform().name("log-writer").daemon().unstarted(this::run);
+        writer.start();
+
+        // Print what is left when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-shutdown"));
+    }
+
+
+
+
+// ▛                    ▜
+//    Producer methods
+// ▙                    ▟
+
+
+
+    /**
+     * Stores the event for the writer. Never blocks.
+     *
+     * @param  template Message with {} in place of the arguments
+     * @param  first First argument, NULL if unused
+     * @param  second Second argument, NULL if unused
+     * @param  third Third argument, NULL if unused
+     * @param  arguments Count of the arguments
+     * @param  suppressed Count of the repeats suppressed before this event
+     * @return False if the ring was full and the event was dropped
+     */
+    boolean publish(String template, Object first, Object second, Object third, int arguments, int suppressed) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+
+            // Writer is a whole ring behind
+            if (sequence - consumed >= events.length) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Event event = events[(int) (sequence & mask)];
+        event.time = System.currentTimeMillis();
+        event.template = template;
+        event.first = first;
+        event.second = second;
+        event.third = third;
+        event.arguments = arguments;
+        event.suppressed = suppressed;
+        event.sequence = sequence;
+
+        // Wake the writer only if it sleeps
+        if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(writer);
+        }
+
+        return true;
+    }
+
+
+
+
+// ▛                  ▜
+//    Writer methods
+// ▙                  ▟
+
+
+
+    private void run() {
+        while (true) {
+            if (drain() > 0) {
+                continue;
+            }
+            if (closing) {
+                return;
+            }
+
+            // Sleep until a producer publishes, the flag is checked again to not miss a wake up
+            sleeping = true;
+            if (!isReady(consumed)) {
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+            sleeping = false;
+        }
+    }
+
+
+    /**
+     * Formats the published events to one batch and prints it
+     *
+     * @return Count of the written events
+     */
+    private int drain() {
+        int count = 0;
+        long next = consumed;
+
+        while (batch.length() < BATCH_SIZE && isReady(next)) {
+            Event event = events[(int) (next & mask)];
+            format(event);
+
+            // Let go of the arguments and free the event for the producers
+            event.first = null;
+            event.second = null;
+            event.third = null;
+            consumed = ++next;
+            count++;
+        }
+
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            appendTimestamp(System.currentTimeMillis());
+            batch.append("[WARN] - LOG: ").append(lost).append(" messages dropped, the log buffer was full\n");
+        }
+
+        if (batch.length() > 0) {
+            PrintStream out = System.out;
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+
+        return count;
+    }
+
+
+    private boolean isReady(long sequence) {
+        return events[(int) (sequence & mask)].sequence == sequence;
+    }
+
+
+    /**
+     * Appends the event to the batch, each {} of the template is replaced by the next argument
+     *
+     * @param event Published event
+     */
+    private void format(Event event) {
+        appendTimestamp(event.time);
+
+        String template = event.template;
+        int argument = 0;
+        int start = 0;
+
+        for (int i = template.indexOf("{}"); i >= 0 && argument < event.arguments; i = template.indexOf("{}", start)) {
+            batch.append(template, start, i);
+            batch.append(switch (argument++) {
+                case 0 -> event.first;
+                case 1 -> event.second;
+                default -> event.third;
+            });
+            start = i + 2;
+        }
+        batch.append(template, start, template.length());
+
+        if (event.suppressed > 0) {
+            batch.append(" (").append(event.suppressed).append(" repeats suppressed)");
+        }
+        batch.append('\n');
+    }
+
+
+    /**
+     * Appends date and time, the formatted date is reused while the second doesn't change
+     *
+     * @param time Time of the event in milliseconds
+     */
+    private void appendTimestamp(long time) {
+        long second = Math.floorDiv(time, 1000);
+        if (second != timestampSecond) {
+            timestampSecond = second;
+            timestampPrefix = TIMESTAMP.format(Instant.ofEpochSecond(second));
+        }
+
+        int millis = Math.floorMod(time, 1000);
+        batch.append(timestampPrefix).append('.');
+        if (millis < 100) batch.append('0');
+        if (millis < 10) batch.append('0');
+        batch.append(millis).append(' ');
+    }
+
+
+    /**
+     * Lets the writer print the remaining events and waits for it
+     */
+    private void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+
+
+    /**
+     * Reusable slot of the ring. The plain fields are published by the write of the sequence.
+     */
+    private static final class Event {
+        volatile long sequence = -1;
+        long time;
+        String template;
+        Object first;
+        Object second;
+        Object third;
+        int arguments;
+        int suppressed;
+    }
+}
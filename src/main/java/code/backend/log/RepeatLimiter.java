@@ -0,0 +1,70 @@
+package code.backend.log;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * Limits how often the same message is logged. Messages are counted per
+ * second in a fixed table of slots picked by their hash, so two different
+ * messages may share a slot; the limit is then shared as well.
+ */
+final class RepeatLimiter {
+
+
+    private final int limit;
+    private final int mask;
+    private final AtomicLongArray windows;
+    private final AtomicIntegerArray counts;
+    private final AtomicIntegerArray suppressed;
+
+    private static final int SLOTS = 1024;
+    private static final long WINDOW_MILLIS = 1000;
+
+
+
+    /**
+     * Creates the limiter
+     *
+     * @param limit Count of the repeats logged each second, 0 or less for no limit
+     */
+    RepeatLimiter(int limit) {
+        this.limit = limit;
+        this.mask = SLOTS - 1;
+        this.windows = new AtomicLongArray(SLOTS);
+        this.counts = new AtomicIntegerArray(SLOTS);
+        this.suppressed = new AtomicIntegerArray(SLOTS);
+    }
+
+
+
+
+    /**
+     * Counts the message
+     *
+     * @param  hash Hash of the message
+     * @param  now Current time in milliseconds
+     * @return Count of the repeats suppressed since the message was last logged, -1 if this one must be suppressed
+     */
+    int acquire(int hash, long now) {
+        if (limit <= 0) {
+            return 0;
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        // New second for the slot
+        long window = windows.get(slot);
+        if (now - window >= WINDOW_MILLIS && windows.compareAndSet(slot, window, now)) {
+            counts.set(slot, 0);
+        }
+
+        if (counts.incrementAndGet(slot) > limit) {
+            suppressed.incrementAndGet(slot);
+            return -1;
+        }
+
+        return suppressed.getAndSet(slot, 0);
+    }
+}
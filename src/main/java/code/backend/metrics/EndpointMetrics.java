@@ -0,0 +1,85 @@
+package code.backend.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+/**
+ * Requests, status codes, latency and transferred bytes of one endpoint
+ */
+public final class EndpointMetrics {
+
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(STATUS_CODES);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    // Index 0 counts the requests that got no status
+    private static final int STATUS_CODES = 600;
+
+
+
+    EndpointMetrics() {}
+
+
+
+
+    /**
+     * Records one finished request
+     *
+     * @param statusCode Status code of the response, -1 if none was sent
+     * @param start Value of System.nanoTime() at the start of the request
+     * @param requestBytes Bytes of the request body read by the handler
+     * @param responseBytes Bytes of the response body written by the handler
+     */
+    public void record(int statusCode, long start, long requestBytes, long responseBytes) {
+        latency.recordSince(start);
+
+        // Counters of the status codes are created on their first use
+        int index = (statusCode > 0 && statusCode < STATUS_CODES) ? statusCode : 0;
+        LongAdder counter = statuses.get(index);
+        if (counter == null) {
+            statuses.compareAndSet(index, null, new LongAdder());
+            counter = statuses.get(index);
+        }
+        counter.increment();
+
+        bytesIn.add(requestBytes);
+        bytesOut.add(responseBytes);
+    }
+
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+
+    long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+
+    long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+
+    /**
+     * Writes the request counts of each status code
+     *
+     * @param text Output
+     * @param name Name of the metric
+     * @param labels Labels of the endpoint without braces
+     */
+    void writeStatuses(StringBuilder text, String name, String labels) {
+        for (int i = 0; i < STATUS_CODES; i++) {
+            LongAdder counter = statuses.get(i);
+
+            if (counter != null) {
+                text.append(name).append('{').append(labels).append(",status=\"").append(i).append("\"} ").append(counter.sum()).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package code.backend.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+/**
+ * Lock-free latency histogram. Bucket i counts the latencies up to 2^i
+ * microseconds, from 1 µs to about 34 s, so recording is one shift, one
+ * count of leading zeros and two striped additions.
+ */
+public final class LatencyHistogram {
+
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+    private final LongAdder totalNanos = new LongAdder();
+
+    private static final int BUCKETS = 26;
+    private static final String[] BOUNDS = new String[BUCKETS];
+
+    static {
+        // Upper bounds in seconds for the le label
+        for (int i = 0; i < BUCKETS; i++) {
+            BOUNDS[i] = BigDecimal.valueOf(1L << i).movePointLeft(6).toPlainString();
+        }
+    }
+
+
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+
+
+
+    /**
+     * Records the time passed since the start
+     *
+     * @param start Value of System.nanoTime() at the start
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+
+    /**
+     * Records one latency
+     *
+     * @param nanos Latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = (micros <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+
+        buckets[Math.min(bucket, BUCKETS)].increment();
+        totalNanos.add(nanos);
+    }
+
+
+    /**
+     * Writes the histogram in the Prometheus text format
+     *
+     * @param text Output
+     * @param name Name of the metric
+     * @param labels Labels of the series without braces, empty for none
+     */
+    void write(StringBuilder text, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets[i].sum();
+            text.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(BOUNDS[i]).append("\"} ").append(count).append('\n');
+        }
+
+        count += buckets[BUCKETS].sum();
+        text.append(name).append("_bucket{").append(labels).append(separator).append("le=\"+Inf\"} ").append(count).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        text.append(name).append("_sum").append(braces).append(' ').append(totalNanos.sum() / 1e9).append('\n');
+        text.append(name).append("_count").append(braces).append(' ').append(count).append('\n');
+    }
+}
@@ -0,0 +1,194 @@
+package code.backend.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+
+/**
+ * Registry of the server metrics. Recording only touches striped counters
+ * of series created on their first use, the text for Prometheus is built
+ * when the metrics are scraped.
+ */
+public final class Metrics {
+
+
+    private static final Map<String, EndpointMetrics> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> DATABASE_CALLS = new ConcurrentHashMap<>();
+    private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>();
+
+    // Tasks of the request executor
+    private static final LongAdder QUEUED = new LongAdder();
+    private static final LongAdder RUNNING = new LongAdder();
+
+    private static final String PREFIX = "memes_";
+
+
+
+    private Metrics() {}
+
+
+
+
+// ▛                    ▜
+//    Registry methods
+// ▙                    ▟
+
+
+
+    /**
+     * Gets the metrics of the endpoint, creates them on the first call
+     *
+     * @param  path Path of the endpoint
+     * @return Metrics of the endpoint
+     */
+    public static EndpointMetrics endpoint(String path) {
+        return ENDPOINTS.computeIfAbsent(path, key -> new EndpointMetrics());
+    }
+
+
+    /**
+     * Gets the latency histogram of the database method, creates it on the first call
+     *
+     * @param  method Name of the method
+     * @return Latency histogram of the method
+     */
+    public static LatencyHistogram databaseCall(String method) {
+        return DATABASE_CALLS.computeIfAbsent(method, key -> new LatencyHistogram());
+    }
+
+
+    /**
+     * Adds a value read when the metrics are scraped
+     *
+     * @param name Name of the metric without the prefix
+     * @param help Description of the metric
+     * @param value Reads the current value
+     */
+    public static void registerGauge(String name, String help, LongSupplier value) {
+        GAUGES.add(new Gauge(PREFIX + name, help, value));
+    }
+
+
+    /**
+     * Wraps the executor to count the tasks waiting for a thread and the running tasks
+     *
+     * @param  executor Executor of the requests
+     * @return Counting executor
+     */
+    public static Executor instrument(Executor executor) {
+        return task -> {
+            QUEUED.increment();
+
+            try {
+                executor.execute(() -> {
+                    QUEUED.decrement();
+                    RUNNING.increment();
+
+                    try {
+                        task.run();
+                    }
+
+                    finally {
+                        RUNNING.decrement();
+                    }
+                });
+            }
+
+            catch (RejectedExecutionException e) {
+                QUEUED.decrement();
+                throw e;
+            }
+        };
+    }
+
+
+
+
+// ▛                  ▜
+//    Export methods
+// ▙                  ▟
+
+
+
+    /**
+     * Writes every metric in the Prometheus text format
+     *
+     * @return Text of the metrics
+     */
+    public static String scrape() {
+        StringBuilder text = new StringBuilder(16 * 1024);
+        Map<String, EndpointMetrics> endpoints = new TreeMap<>(ENDPOINTS);
+        Map<String, LatencyHistogram> databaseCalls = new TreeMap<>(DATABASE_CALLS);
+
+        // Requests
+        String name = header(text, "http_requests_total", "counter", "Finished requests by endpoint and status code");
+        endpoints.forEach((path, endpoint) -> endpoint.writeStatuses(text, name, label("endpoint", path)));
+
+        String latency = header(text, "http_request_duration_seconds", "histogram", "Time from the start of the handler to the end of the response");
+        endpoints.forEach((path, endpoint) -> endpoint.getLatency().write(text, latency, label("endpoint", path)));
+
+        String bytesIn = header(text, "http_request_bytes_total", "counter", "Request body bytes read by the handlers");
+        endpoints.forEach((path, endpoint) -> sample(text, bytesIn, label("endpoint", path), endpoint.getBytesIn()));
+
+        String bytesOut = header(text, "http_response_bytes_total", "counter", "Response body bytes written to the clients");
+        endpoints.forEach((path, endpoint) -> sample(text, bytesOut, label("endpoint", path), endpoint.getBytesOut()));
+
+        // Database
+        String database = header(text, "database_call_duration_seconds", "histogram", "Time spent in each Database method");
+        databaseCalls.forEach((method, histogram) -> histogram.write(text, database, label("method", method)));
+
+        // Executor
+        sample(text, header(text, "executor_queued_tasks", "gauge", "Requests waiting for an executor thread"), "", QUEUED.sum());
+        sample(text, header(text, "executor_running_tasks", "gauge", "Requests running on the executor"), "", RUNNING.sum());
+
+        for (Gauge gauge: GAUGES) {
+            text.append("# HELP ").append(gauge.name()).append(' ').append(gauge.help()).append('\n');
+            text.append("# TYPE ").append(gauge.name()).append(" gauge\n");
+            sample(text, gauge.name(), "", gauge.value().getAsLong());
+        }
+
+        return text.toString();
+    }
+
+
+    private static String header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        return PREFIX + name;
+    }
+
+
+    private static void sample(StringBuilder text, String name, String labels, long value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+
+    /**
+     * Formats one label, the value is escaped as the text format requires
+     *
+     * @param  name Name of the label
+     * @param  value Value of the label
+     * @return Label without braces
+     */
+    private static String label(String name, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "=\"" + escaped + "\"";
+    }
+
+
+
+
+    private record Gauge(String name, String help, LongSupplier value) {}
+}
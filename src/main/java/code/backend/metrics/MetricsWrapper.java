@@ -0,0 +1,136 @@
+package code.backend.metrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+
+
+/**
+ * Records the status code, latency and body bytes of every request of the
+ * wrapped handler. The body streams of the exchange are replaced by counting
+ * ones, so the response bytes are counted after compression.
+ */
+public class MetricsWrapper implements HttpHandler {
+
+
+    private final EndpointMetrics metrics;
+    private final HttpHandler nextHandler;
+
+
+
+    /**
+     * Creates metrics wrapper for the given HTTP handler
+     *
+     * @param endpoint Path the requests are recorded under
+     * @param nextHandler HTTP handler to be wrapped
+     */
+    public MetricsWrapper(String endpoint, HttpHandler nextHandler) {
+        this.metrics = Metrics.endpoint(endpoint);
+        this.nextHandler = nextHandler;
+    }
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+
+        CountingInputStream requestBody = new CountingInputStream(exchange.getRequestBody());
+        CountingOutputStream responseBody = new CountingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(requestBody, responseBody);
+
+        try {
+            nextHandler.handle(exchange);
+        }
+
+        finally {
+            metrics.record(exchange.getResponseCode(), start, requestBody.count, responseBody.count);
+        }
+    }
+
+
+
+
+    /**
+     * Request body counting the read bytes. Used by the thread of the request only.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+
+        private long count = 0;
+
+
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = in.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+
+        @Override
+        public long skip(long length) throws IOException {
+            long skipped = in.skip(length);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+
+
+
+    /**
+     * Response body counting the written bytes. Used by the thread of the request only.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+
+        private long count = 0;
+
+
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package code.backend.ratelimit;
+
+import java.util.Map;
+
+
+
+/**
+ * Limit of the requests a client may send to one endpoint. The client may
+ * send a burst of requests at once, after that the requests are let through
+ * at the steady rate.
+ *
+ * The policy of an endpoint may be overridden by the system property
+ * memes.rateLimit.<path> given as <burst>:<requests per second>, or as "off".
+ *
+ * @param burst Requests the client may send at once
+ * @param perSecond Requests per second the client may send after the burst
+ */
+public record RateLimitPolicy(int burst, double perSecond) {
+
+
+    // Endpoints doing heavy work are limited the most
+    private static final Map<String, RateLimitPolicy> DEFAULTS = Map.of(
+        "/api/user/login",        new RateLimitPolicy(5, 0.2),
+        "/api/user/registration", new RateLimitPolicy(3, 0.05),
+        "/api/meme/search",       new RateLimitPolicy(20, 5),
+        "/api/meme/similar",      new RateLimitPolicy(20, 5),
+        "/api/meme/upload",       new RateLimitPolicy(20, 2),
+        "/api/meme/upload/{id}",  new RateLimitPolicy(100, 25)
+    );
+
+    private static final RateLimitPolicy DEFAULT = new RateLimitPolicy(100, 50);
+
+
+
+    /**
+     * Checks the policy
+     */
+    public RateLimitPolicy {
+        if (burst < 1 || !(perSecond > 0)) {
+            throw new IllegalArgumentException("Rate limit needs a burst of at least 1 and a positive rate");
+        }
+    }
+
+
+
+
+    /**
+     * Gets the policy of the endpoint
+     *
+     * @param  path Path or route pattern of the endpoint
+     * @return Policy of the endpoint, NULL if the endpoint isn't limited
+     */
+    public static RateLimitPolicy forEndpoint(String path) {
+        String property = System.getProperty("memes.rateLimit." + path);
+
+        if (property == null) {
+            return DEFAULTS.getOrDefault(path, DEFAULT);
+        }
+
+        if (property.equalsIgnoreCase("off")) {
+            return null;
+        }
+
+        String[] parts = property.split(":", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Rate limit of " + path + " isn't <burst>:<requests per second>: " + property);
+        }
+
+        return new RateLimitPolicy(Integer.parseInt(parts[0].trim()), Double.parseDouble(parts[1].trim()));
+    }
+}
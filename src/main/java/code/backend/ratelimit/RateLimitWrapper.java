@@ -0,0 +1,98 @@
+package code.backend.ratelimit;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.session.SessionStore;
+
+
+
+/**
+ * Limits the requests each client sends to the wrapped handler. Logged in
+ * users are limited by their session, the others by their address; IPv6
+ * addresses are limited by their /64 network, as one host usually owns it
+ * whole. Requests over the limit are answered with 429 and Retry-After.
+ */
+public class RateLimitWrapper implements HttpHandler {
+
+
+    private final RateLimiter limiter;
+    private final SessionStore sessions;
+    private final HttpHandler nextHandler;
+
+
+
+    /**
+     * Creates rate limiting wrapper for the given HTTP handler
+     *
+     * @param limiter Token buckets of the endpoint
+     * @param sessions Session ids of the logged users
+     * @param nextHandler HTTP handler to be wrapped
+     */
+    public RateLimitWrapper(RateLimiter limiter, SessionStore sessions, HttpHandler nextHandler) {
+        this.limiter = limiter;
+        this.sessions = sessions;
+        this.nextHandler = nextHandler;
+    }
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long wait = limiter.tryAcquire(getClientKey(exchange));
+
+        if (wait == 0) {
+            nextHandler.handle(exchange);
+            return;
+        }
+
+        // Whole seconds until the next token is due
+        long retryAfter = Math.max(1, (wait + 999_999_999) / 1_000_000_000);
+
+        try (exchange) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+            new HttpExchangeMethods(exchange, "[ERROR] - RATE_LIMIT").errorResponse(429, ": Too many requests");
+        }
+    }
+
+
+
+
+    private String getClientKey(HttpExchange exchange) {
+        if (exchange.getRequestHeaders().containsKey("Cookie")) {
+            try {
+                return "user:" + new HttpExchangeMethods(exchange, null).checkUserValidity(sessions);
+            }
+
+            catch (RuntimeException e) {
+                // Not logged in, limited by the address
+            }
+        }
+
+        InetSocketAddress remote = exchange.getRemoteAddress();
+        InetAddress address = remote == null ? null : remote.getAddress();
+
+        if (address == null) {
+            return "address:unknown";
+        }
+
+        if (address instanceof Inet6Address) {
+            byte[] bytes = address.getAddress();
+            StringBuilder network = new StringBuilder("network:");
+
+            for (int i = 0; i < 8; i++) {
+                network.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+            }
+
+            return network.toString();
+        }
+
+        return "address:" + address.getHostAddress();
+    }
+}
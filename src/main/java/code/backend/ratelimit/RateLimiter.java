@@ -0,0 +1,129 @@
+package code.backend.ratelimit;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Token buckets of the clients of one endpoint. A bucket is kept as the time
+ * its next token is due (the generic cell rate algorithm), so taking a token
+ * is a single compare-and-set of one long and no lock is held on the way.
+ *
+ * A bucket which has refilled completely holds no state the first request
+ * of a new bucket wouldn't have, so such buckets are evicted in the
+ * background and the table only keeps the clients active lately.
+ *
+ * The buckets are swept every memes.rateLimitSweepSeconds (default 30).
+ */
+public final class RateLimiter {
+
+
+    private final RateLimitPolicy policy;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    private static final List<RateLimiter> LIMITERS = new CopyOnWriteArrayList<>();
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("rate-limit-sweeper").daemon().factory()
+    );
+
+    static {
+        long period = Long.getLong("memes.rateLimitSweepSeconds", 30);
+        SWEEPER.scheduleWithFixedDelay(RateLimiter::sweepAll, period, period, TimeUnit.SECONDS);
+    }
+
+
+
+    /**
+     * Creates the buckets of an endpoint
+     *
+     * @param policy Limit of the requests of one client
+     */
+    public RateLimiter(RateLimitPolicy policy) {
+        this.policy = policy;
+        this.intervalNanos = Math.max(1, Math.round(1_000_000_000 / policy.perSecond()));
+        this.toleranceNanos = intervalNanos * policy.burst();
+
+        LIMITERS.add(this);
+    }
+
+
+
+
+    /**
+     * Takes a token from the bucket of the client
+     *
+     * @param  key Key of the client
+     * @return 0 if the request may go on, else nanoseconds until the next token is due
+     */
+    public long tryAcquire(String key) {
+        long now = System.nanoTime();
+
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+
+        while (true) {
+            long due = bucket.get();
+            long next = Math.max(due, now) + intervalNanos;
+            long wait = next - now - toleranceNanos;
+
+            // Bucket is empty
+            if (wait > 0) {
+                return wait;
+            }
+
+            if (bucket.compareAndSet(due, next)) {
+                return 0;
+            }
+        }
+    }
+
+
+    /**
+     * Gets the policy of the endpoint
+     *
+     * @return Limit of the requests of one client
+     */
+    public RateLimitPolicy getPolicy() {
+        return policy;
+    }
+
+
+    /**
+     * Gets the count of the clients with a bucket
+     *
+     * @return Count of the buckets
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+
+    /**
+     * Evicts the buckets which have refilled completely
+     */
+    void sweep() {
+        long now = System.nanoTime();
+
+        // A request racing the removal takes its token from the evicted
+        // bucket, the next one gets a full bucket, so at most one request
+        // of a client slips through per sweep
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+
+    private static void sweepAll() {
+        for (RateLimiter limiter : LIMITERS) {
+            limiter.sweep();
+        }
+    }
+}
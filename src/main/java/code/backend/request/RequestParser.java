@@ -0,0 +1,377 @@
+package code.backend.request;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+
+
+/**
+ * Reads the cookies and the query parameters of the requests in place. The
+ * headers and the query are scanned by index without splitting them, so
+ * nothing is allocated for the pairs that are skipped; only the value asked
+ * for becomes a string, and a number not even that.
+ *
+ * Queries are the raw ones of the URI (URI.getRawQuery), and are decoded as
+ * forms are: "+" is a space and %XX a byte of UTF-8. A "%" not followed by
+ * two hex digits is kept as it is. Names are matched after decoding, and
+ * must be ASCII. Cookies aren't decoded, only the quotes around a value are
+ * dropped.
+ */
+public final class RequestParser {
+
+
+
+    private RequestParser() {}
+
+
+
+
+// ▛                  ▜
+//    Cookie methods
+// ▙                  ▟
+
+
+
+    /**
+     * Looks the values of the named cookie up until one is found
+     *
+     * @param  <T> Type of the found value
+     * @param  headers Values of the Cookie headers, NULL if there are none
+     * @param  name Name of the cookie
+     * @param  lookup Gets the result of the cookie value, NULL to go on to the next one
+     * @return First result other than NULL, NULL if there's none
+     */
+    public static <T> T findCookie(List<String> headers, String name, Function<String, T> lookup) {
+        if (headers == null) {
+            return null;
+        }
+
+        for (int h = 0; h < headers.size(); h++) {
+            String header = headers.get(h);
+            int length = header.length();
+
+            for (int start = 0; start < length;) {
+                int end = header.indexOf(';', start);
+                if (end < 0) {
+                    end = length;
+                }
+
+                int separator = header.indexOf('=', start);
+                if (separator >= 0 && separator < end && trimmedEquals(header, start, separator, name)) {
+                    int valueStart = skipSpace(header, separator + 1, end);
+                    int valueEnd = skipSpaceBackwards(header, valueStart, end);
+
+                    // Quoted value
+                    if (valueEnd - valueStart >= 2 && header.charAt(valueStart) == '"' && header.charAt(valueEnd - 1) == '"') {
+                        valueStart++;
+                        valueEnd--;
+                    }
+
+                    T result = lookup.apply(header.substring(valueStart, valueEnd));
+                    if (result != null) {
+                        return result;
+                    }
+                }
+
+                start = end + 1;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Gets all values of the named cookie
+     *
+     * @param  headers Values of the Cookie headers, NULL if there are none
+     * @param  name Name of the cookie
+     * @return Values of the cookie, empty if there are none
+     */
+    public static List<String> getCookies(List<String> headers, String name) {
+        List<String> values = new ArrayList<>();
+
+        findCookie(headers, name, value -> {
+            values.add(value);
+            return null;
+        });
+
+        return values;
+    }
+
+
+
+
+// ▛                 ▜
+//    Query methods
+// ▙                 ▟
+
+
+
+    /**
+     * Gets the decoded value of the first parameter with the name
+     *
+     * @param  rawQuery Query of the URI without decoding, NULL if there's none
+     * @param  name Name of the parameter
+     * @return Value of the parameter, NULL if it isn't given
+     */
+    public static String getParameter(String rawQuery, String name) {
+        long range = findParameter(rawQuery, name);
+
+        if (range < 0) {
+            return null;
+        }
+
+        return decode(rawQuery, (int) (range >>> 32), (int) range);
+    }
+
+
+    /**
+     * Gets the value of the first parameter with the name as an integer
+     *
+     * @param  rawQuery Query of the URI without decoding, NULL if there's none
+     * @param  name Name of the parameter
+     * @param  defaultValue Value used if the parameter isn't given
+     * @return Value of the parameter
+     * @throws NumberFormatException If the value isn't an integer
+     */
+    public static int getInt(String rawQuery, String name, int defaultValue) {
+        long value = getLong(rawQuery, name, defaultValue);
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Value of " + name + " is out of range");
+        }
+
+        return (int) value;
+    }
+
+
+    /**
+     * Gets the value of the first parameter with the name as a long
+     *
+     * @param  rawQuery Query of the URI without decoding, NULL if there's none
+     * @param  name Name of the parameter
+     * @param  defaultValue Value used if the parameter isn't given
+     * @return Value of the parameter
+     * @throws NumberFormatException If the value isn't an integer
+     */
+    public static long getLong(String rawQuery, String name, long defaultValue) {
+        long range = findParameter(rawQuery, name);
+
+        if (range < 0) {
+            return defaultValue;
+        }
+
+        int start = (int) (range >>> 32);
+        int end = (int) range;
+
+        // Numbers are parsed in place unless they are encoded
+        if (!isEncoded(rawQuery, start, end)) {
+            return Long.parseLong(rawQuery, start, end, 10);
+        }
+
+        return Long.parseLong(decode(rawQuery, start, end));
+    }
+
+
+    /**
+     * Decodes the part of the query
+     *
+     * @param  rawQuery Query of the URI without decoding
+     * @param  start Start of the part
+     * @param  end End of the part, exclusive
+     * @return Decoded part
+     */
+    public static String decode(String rawQuery, int start, int end) {
+        if (!isEncoded(rawQuery, start, end)) {
+            return rawQuery.substring(start, end);
+        }
+
+        // A character takes at most 3 bytes of UTF-8, a surrogate pair 4
+        byte[] bytes = new byte[(end - start) * 3];
+        int length = 0;
+
+        for (int i = start; i < end;) {
+            int decoded = decodedAt(rawQuery, i, end);
+
+            if (decoded >= 0) {
+                bytes[length++] = (byte) decoded;
+                i += (rawQuery.charAt(i) == '%') ? 3 : 1;
+                continue;
+            }
+
+            // Characters left unencoded are written as UTF-8
+            int codePoint = rawQuery.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if (codePoint < 0x80) {
+                bytes[length++] = (byte) codePoint;
+            }
+
+            else if (codePoint < 0x800) {
+                bytes[length++] = (byte) (0xC0 | (codePoint >> 6));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+
+            else if (codePoint < 0x10000) {
+                bytes[length++] = (byte) (0xE0 | (codePoint >> 12));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+
+            else {
+                bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+        }
+
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+
+
+
+    /**
+     * Finds the value of the first parameter with the name
+     *
+     * @return Start of the value in the high and end in the low 32 bits, -1 if the parameter isn't given
+     */
+    private static long findParameter(String rawQuery, String name) {
+        if (rawQuery == null) {
+            return -1;
+        }
+
+        int length = rawQuery.length();
+
+        for (int start = 0; start < length;) {
+            int end = rawQuery.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            int separator = rawQuery.indexOf('=', start);
+            if (separator < 0 || separator > end) {
+                separator = end;
+            }
+
+            if (decodedEquals(rawQuery, start, separator, name)) {
+                int valueStart = Math.min(separator + 1, end);
+                return ((long) valueStart << 32) | end;
+            }
+
+            start = end + 1;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Compares the decoded part of the query to the ASCII name without decoding it to a string
+     */
+    private static boolean decodedEquals(String rawQuery, int start, int end, String name) {
+        int position = 0;
+
+        for (int i = start; i < end; position++) {
+            if (position >= name.length()) {
+                return false;
+            }
+
+            int decoded = decodedAt(rawQuery, i, end);
+            char character = (decoded < 0) ? rawQuery.charAt(i) : (char) decoded;
+
+            if (character != name.charAt(position)) {
+                return false;
+            }
+
+            i += (decoded >= 0 && rawQuery.charAt(i) == '%') ? 3 : 1;
+        }
+
+        return position == name.length();
+    }
+
+
+    /**
+     * Gets the byte encoded at the index
+     *
+     * @return Decoded byte, -1 if the character isn't encoded
+     */
+    private static int decodedAt(String rawQuery, int index, int end) {
+        char character = rawQuery.charAt(index);
+
+        if (character == '+') {
+            return ' ';
+        }
+
+        if (character == '%' && index + 2 < end) {
+            int high = hexDigit(rawQuery.charAt(index + 1));
+            int low = hexDigit(rawQuery.charAt(index + 2));
+
+            if (high >= 0 && low >= 0) {
+                return (high << 4) | low;
+            }
+        }
+
+        return -1;
+    }
+
+
+    private static int hexDigit(char character) {
+        if (character >= '0' && character <= '9') {
+            return character - '0';
+        }
+
+        if (character >= 'a' && character <= 'f') {
+            return character - 'a' + 10;
+        }
+
+        if (character >= 'A' && character <= 'F') {
+            return character - 'A' + 10;
+        }
+
+        return -1;
+    }
+
+
+    private static boolean isEncoded(String rawQuery, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char character = rawQuery.charAt(i);
+
+            if (character == '%' || character == '+' || character >= 0x80) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private static boolean trimmedEquals(String header, int start, int end, String name) {
+        start = skipSpace(header, start, end);
+        end = skipSpaceBackwards(header, start, end);
+
+        return end - start == name.length() && header.regionMatches(start, name, 0, name.length());
+    }
+
+
+    private static int skipSpace(String header, int start, int end) {
+        while (start < end && (header.charAt(start) == ' ' || header.charAt(start) == '\t')) {
+            start++;
+        }
+
+        return start;
+    }
+
+
+    private static int skipSpaceBackwards(String header, int start, int end) {
+        while (end > start && (header.charAt(end - 1) == ' ' || header.charAt(end - 1) == '\t')) {
+            end--;
+        }
+
+        return end;
+    }
+}
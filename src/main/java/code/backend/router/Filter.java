@@ -0,0 +1,24 @@
+package code.backend.router;
+
+import com.sun.net.httpserver.HttpHandler;
+
+
+
+/**
+ * Step of the chain every request of a route passes through. The chain of a
+ * route is built once when the route is added, so a filter may look at the
+ * route and leave itself out of the chain of the routes it doesn't apply to.
+ */
+@FunctionalInterface
+public interface Filter {
+
+
+    /**
+     * Wraps the rest of the chain of the route
+     *
+     * @param  route Route the chain is built for
+     * @param  nextHandler Rest of the chain
+     * @return Handler running the filter before the rest, or nextHandler itself
+     */
+    HttpHandler wrap(Route route, HttpHandler nextHandler);
+}
@@ -0,0 +1,97 @@
+package code.backend.router;
+
+
+
+/**
+ * State of the routed request running on the current thread: the matched
+ * route, the values of its path parameters and the authenticated user.
+ *
+ * One context is kept per thread and reused by its requests, so routing
+ * doesn't allocate. Attributes of the exchange can't hold it, the jdk engine
+ * keeps them in the HttpContext shared by all the requests.
+ */
+public final class RequestContext {
+
+
+    private static final ThreadLocal<RequestContext> CURRENT = ThreadLocal.withInitial(RequestContext::new);
+
+    private Route route = null;
+    private String[] values = null;
+    private String user = null;
+
+
+
+    private RequestContext() {}
+
+
+
+
+    /**
+     * Gets the context of the request running on the current thread
+     *
+     * @return Context of the request, its route is NULL outside of the router
+     */
+    public static RequestContext current() {
+        return CURRENT.get();
+    }
+
+
+    /**
+     * Gets the matched route
+     *
+     * @return Route of the request, NULL if the request isn't routed
+     */
+    public Route getRoute() {
+        return route;
+    }
+
+
+    /**
+     * Gets the value of a path parameter, e.g. {file} of /api/meme/dir/{file}
+     *
+     * @param  name Name of the parameter
+     * @return Decoded value of the parameter, NULL if the route has no such parameter
+     */
+    public String getParameter(String name) {
+        if (route == null || values == null) {
+            return null;
+        }
+
+        int index = route.indexOfParameter(name);
+        return (index < 0) ? null : values[index];
+    }
+
+
+    /**
+     * Gets the user authenticated by the chain of the route
+     *
+     * @return Username, NULL if the request isn't authenticated
+     */
+    public String getUser() {
+        return user;
+    }
+
+
+    /**
+     * Sets the user authenticated for the request
+     *
+     * @param user Username
+     */
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+
+    void enter(Route route, String[] values) {
+        this.route = route;
+        this.values = values;
+        this.user = null;
+    }
+
+
+    void exit() {
+        this.route = null;
+        this.values = null;
+        this.user = null;
+    }
+}
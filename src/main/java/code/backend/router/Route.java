@@ -0,0 +1,226 @@
+package code.backend.router;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpHandler;
+
+
+
+/**
+ * Path pattern, its methods and the handler serving them. A segment of the
+ * pattern in braces, e.g. {file} of /api/meme/dir/{file}, matches any one
+ * non-empty segment of the path and is passed to the handler as a parameter.
+ */
+public final class Route {
+
+
+    private final String path;
+    private final HttpHandler handler;
+    private final String[] methods;
+    private final String allow;
+    private boolean authenticated = false;
+    private boolean administrative = false;
+
+    // Segments of the pattern, NULL for a parameter
+    private final String[] segments;
+    private final String[] parameterNames;
+
+    // Filters and the handler, built by the router
+    HttpHandler chain = null;
+
+    private static final String[] NO_VALUES = new String[0];
+
+
+
+    /**
+     * Creates route of the path pattern
+     *
+     * @param path Path pattern starting with '/'
+     * @param handler Handler of the requests
+     * @param methods Methods of the route, none for any method
+     */
+    public Route(String path, HttpHandler handler, String... methods) {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("Route path must start with '/': " + path);
+        }
+
+        this.path = path;
+        this.handler = handler;
+        this.methods = methods;
+        this.allow = String.join(", ", methods) + (methods.length == 0 ? "" : ", OPTIONS");
+
+        // Compile the pattern
+        String[] parts = path.substring(1).split("/", -1);
+        List<String> names = new ArrayList<>();
+        this.segments = new String[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].startsWith("{") && parts[i].endsWith("}")) {
+                names.add(parts[i].substring(1, parts[i].length() - 1));
+            }
+
+            else {
+                segments[i] = parts[i];
+            }
+        }
+
+        this.parameterNames = names.toArray(new String[0]);
+    }
+
+
+
+
+    /**
+     * Requires an authenticated user for the requests of the route
+     *
+     * @return This route
+     */
+    public Route authenticated() {
+        this.authenticated = true;
+        return this;
+    }
+
+
+    /**
+     * Requires an authenticated administrator for the requests of the route
+     *
+     * @return This route
+     */
+    public Route administrative() {
+        this.authenticated = true;
+        this.administrative = true;
+        return this;
+    }
+
+
+    /**
+     * Gets the path pattern, used to name the route in the metrics and the limits
+     *
+     * @return Path pattern of the route
+     */
+    public String getPath() {
+        return path;
+    }
+
+
+    /**
+     * Checks if the route requires an authenticated user
+     *
+     * @return True if the requests must be authenticated
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+
+    /**
+     * Checks if the route is served only to the administrators
+     *
+     * @return True if the user must be an administrator
+     */
+    public boolean isAdministrative() {
+        return administrative;
+    }
+
+
+    /**
+     * Gets the methods of the route for the Allow header
+     *
+     * @return Comma separated methods
+     */
+    public String getAllow() {
+        return allow;
+    }
+
+
+    /**
+     * Checks if the route serves the method
+     *
+     * @param  method Method of the request
+     * @return True if the method is served
+     */
+    public boolean allows(String method) {
+        if (methods.length == 0) {
+            return true;
+        }
+
+        for (String allowed: methods) {
+            if (allowed.equals(method)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    HttpHandler getHandler() {
+        return handler;
+    }
+
+
+    boolean hasParameters() {
+        return parameterNames.length > 0;
+    }
+
+
+    int indexOfParameter(String name) {
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (parameterNames[i].equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Matches the path to the pattern segment by segment, without splitting it
+     *
+     * @param  requestPath Decoded path of the request
+     * @param  length Length of the path to match
+     * @return Values of the parameters, NULL if the path doesn't match
+     */
+    String[] match(String requestPath, int length) {
+        String[] values = NO_VALUES;
+        int parameter = 0;
+        int position = 1;
+
+        for (String segment: segments) {
+            if (position > length) {
+                return null;
+            }
+
+            int end = requestPath.indexOf('/', position);
+            if (end < 0 || end > length) {
+                end = length;
+            }
+
+            // Literal segment
+            if (segment != null) {
+                if (end - position != segment.length() || !requestPath.regionMatches(position, segment, 0, segment.length())) {
+                    return null;
+                }
+            }
+
+            // Parameter segment
+            else {
+                if (end == position) {
+                    return null;
+                }
+
+                if (values == NO_VALUES) {
+                    values = new String[parameterNames.length];
+                }
+                values[parameter++] = requestPath.substring(position, end);
+            }
+
+            position = end + 1;
+        }
+
+        // Whole path must be used
+        return (position == length + 1) ? values : null;
+    }
+}
@@ -0,0 +1,142 @@
+package code.backend.router;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+
+
+
+/**
+ * Dispatcher of all the requests of the server. Routes without parameters
+ * are found with one lookup of the path, the patterns are matched in the
+ * order they were added. Each route runs the filters, which are composed
+ * around its handler once when the route is added; the methods the route
+ * doesn't serve are answered with 405 and unknown paths with 404, both after
+ * the filters, so they carry the CORS headers and are counted in the metrics.
+ */
+public class Router implements HttpHandler {
+
+
+    private final List<Filter> filters;
+    private final Map<String, Route> exactRoutes = new HashMap<>();
+    private final List<Route> patternRoutes = new ArrayList<>();
+    private final Route notFound;
+
+
+
+    /**
+     * Creates router running the filters for every route, the first filter runs first
+     *
+     * @param filters Filters of the routes
+     */
+    public Router(List<Filter> filters) {
+        this.filters = List.copyOf(filters);
+        this.notFound = compose(new Route("/*", exchange -> {
+            try (exchange) {
+                new HttpExchangeMethods(exchange, "[ERROR] - ROUTER").errorResponse(404, ": No such path " + exchange.getRequestURI().getPath());
+            }
+        }));
+    }
+
+
+
+
+    /**
+     * Adds the route, requests of its path are served by its handler
+     *
+     * @param  route Route to add
+     * @return This router
+     */
+    public Router add(Route route) {
+        compose(route);
+
+        if (route.hasParameters()) {
+            patternRoutes.add(route);
+        }
+
+        else if (exactRoutes.putIfAbsent(route.getPath(), route) != null) {
+            throw new IllegalArgumentException("Route added twice: " + route.getPath());
+        }
+
+        return this;
+    }
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+
+        // Trailing slash is ignored
+        int length = path.length();
+        if (length > 1 && path.charAt(length - 1) == '/') {
+            length--;
+        }
+
+        Route route = exactRoutes.get(length == path.length() ? path : path.substring(0, length));
+        String[] values = null;
+
+        // Match the patterns
+        if (route == null) {
+            for (Route pattern: patternRoutes) {
+                values = pattern.match(path, length);
+
+                if (values != null) {
+                    route = pattern;
+                    break;
+                }
+            }
+        }
+
+        if (route == null) {
+            route = notFound;
+        }
+
+        RequestContext context = RequestContext.current();
+        context.enter(route, values);
+
+        try {
+            route.chain.handle(exchange);
+        }
+
+        finally {
+            context.exit();
+        }
+    }
+
+
+
+
+    private Route compose(Route route) {
+        HttpHandler chain = exchange -> dispatch(route, exchange);
+
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            chain = filters.get(i).wrap(route, chain);
+        }
+
+        route.chain = chain;
+        return route;
+    }
+
+
+    private static void dispatch(Route route, HttpExchange exchange) throws IOException {
+        if (route.allows(exchange.getRequestMethod())) {
+            route.getHandler().handle(exchange);
+            return;
+        }
+
+        try (exchange) {
+            exchange.getResponseHeaders().set("Allow", route.getAllow());
+            new HttpExchangeMethods(exchange, "[ERROR] - ROUTER").errorResponse(405, ": Unsupported method");
+        }
+    }
+}
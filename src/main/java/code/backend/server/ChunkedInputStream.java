@@ -0,0 +1,140 @@
+package code.backend.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Reads a request body sent with Transfer-Encoding: chunked. Nothing past
+ * the last chunk is read, so pipelined requests stay in the connection.
+ */
+final class ChunkedInputStream extends InputStream {
+
+
+    private final InputStream input;
+    private long chunkRemaining = 0;
+    private boolean finished = false;
+
+    private static final int MAX_LINE_LENGTH = 4096;
+
+
+
+    /**
+     * Creates chunked stream
+     *
+     * @param input Raw bytes of the connection
+     */
+    ChunkedInputStream(InputStream input) {
+        this.input = input;
+    }
+
+
+
+
+    /**
+     * Checks if the last chunk has been read
+     *
+     * @return True if the whole body has been read
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+    }
+
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (length == 0) {
+            return 0;
+        }
+
+        // Start of the next chunk
+        if (chunkRemaining == 0) {
+            chunkRemaining = readChunkSize();
+            if (chunkRemaining == 0) {
+                readTrailers();
+                finished = true;
+                return -1;
+            }
+        }
+
+        int count = input.read(bytes, offset, (int) Math.min(length, chunkRemaining));
+        if (count < 0) {
+            throw new EOFException(": Request body ended inside a chunk");
+        }
+
+        // Line break after the data of the chunk
+        chunkRemaining -= count;
+        if (chunkRemaining == 0) {
+            readLine();
+        }
+
+        return count;
+    }
+
+
+    private long readChunkSize() throws IOException {
+        String line = readLine();
+
+        // Chunk extensions are ignored
+        int extension = line.indexOf(';');
+        if (extension >= 0) {
+            line = line.substring(0, extension);
+        }
+
+        try {
+            long size = Long.parseLong(line.trim(), 16);
+            if (size < 0) {
+                throw new NumberFormatException();
+            }
+            return size;
+        }
+
+        catch (NumberFormatException e) {
+            throw new IOException(": Invalid chunk size \"" + line + "\"");
+        }
+    }
+
+
+    private void readTrailers() throws IOException {
+        while (!readLine().isEmpty()) {
+            // Trailers aren't used
+        }
+    }
+
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        while (true) {
+            int next = input.read();
+            if (next < 0) {
+                throw new EOFException(": Request body ended inside a chunk header");
+            }
+            if (next == '\n') {
+                break;
+            }
+            if (next != '\r') {
+                line.write(next);
+            }
+            if (line.size() > MAX_LINE_LENGTH) {
+                throw new IOException(": Chunk header is too long");
+            }
+        }
+
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,107 @@
+package code.backend.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Writes a response body of unknown length with Transfer-Encoding: chunked.
+ * Small writes are gathered to one chunk.
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private int count = 0;
+    private boolean closed = false;
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final byte[] LINE_BREAK = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+
+
+    /**
+     * Creates chunked stream
+     *
+     * @param output Raw bytes of the connection
+     */
+    ChunkedOutputStream(OutputStream output) {
+        this.output = output;
+    }
+
+
+
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException(": Response body is closed");
+        }
+
+        // Large writes go out as chunks of their own
+        if (length >= buffer.length) {
+            writeBuffer();
+            writeChunk(bytes, offset, length);
+            return;
+        }
+
+        if (count + length > buffer.length) {
+            writeBuffer();
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+        output.flush();
+    }
+
+
+    /**
+     * Writes the last chunk, the connection stays open
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        writeBuffer();
+        output.write(LAST_CHUNK);
+        output.flush();
+    }
+
+
+    private void writeBuffer() throws IOException {
+        writeChunk(buffer, 0, count);
+        count = 0;
+    }
+
+
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+
+        output.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        output.write(bytes, offset, length);
+        output.write(LINE_BREAK);
+    }
+}
@@ -0,0 +1,797 @@
+package code.backend.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+
+
+/**
+ * Connection of the NIO server.
+ *
+ * The selector thread reads, decrypts, encrypts and writes; the handler of
+ * the current exchange only copies bytes from and to the plain buffers, and
+ * waits when there is nothing to read or no room to write. Requests of the
+ * connection run one at a time, so pipelined requests wait in the input
+ * buffer and their responses go out in order.
+ *
+ * Delegated tasks of the TLS handshake run on the TLS task threads of the
+ * server, and the engine is left alone until they are done.
+ *
+ * Buffers are kept in write mode, except netOut which holds the encrypted
+ * bytes waiting to be written in read mode.
+ */
+final class NioConnection {
+
+
+    private final NioHttpsServer server;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private SelectionKey key;
+
+    // Plain bytes, NULL while the connection is idle
+    private ByteBuffer appIn = null;
+    private ByteBuffer appOut = null;
+
+    // Encrypted bytes of TLS connections
+    private ByteBuffer netIn = null;
+    private ByteBuffer netOut = null;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+
+    private NioExchange exchange = null;
+    private boolean inputClosed = false;
+    private boolean inputBlocked = false;
+    private boolean closeAfterFlush = false;
+    private boolean closed = false;
+    private boolean updateQueued = false;
+    private boolean tasksRunning = false;
+    private int headScanned = 0;
+    private long lastActivity;
+
+    static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+
+
+    /**
+     * Creates connection
+     *
+     * @param server Server of the connection
+     * @param loop Selector loop of the connection
+     * @param channel Accepted channel
+     * @param engine TLS engine, NULL for plain HTTP
+     */
+    NioConnection(NioHttpsServer server, SelectorLoop loop, SocketChannel channel, SSLEngine engine) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.engine = engine;
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+    }
+
+
+    /**
+     * Registers the connection to its selector. Runs on the selector thread.
+     */
+    void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            lastActivity = loop.now();
+        }
+
+        catch (IOException e) {
+            close();
+        }
+    }
+
+
+
+
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+
+    InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+
+    SSLSession getSSLSession() {
+        return (engine == null) ? null : engine.getSession();
+    }
+
+
+
+
+// ▛                           ▜
+//    Selector thread methods
+// ▙                           ▟
+
+
+
+    /**
+     * Handles the ready operations of the channel
+     *
+     * @param selectedKey Key of the channel
+     */
+    void onSelected(SelectionKey selectedKey) {
+        lock.lock();
+
+        try {
+            if (closed) {
+                return;
+            }
+
+            if (selectedKey.isReadable()) {
+                read();
+            }
+            process();
+        }
+
+        catch (IOException | RuntimeException e) {
+            close();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Continues the work asked by the handler thread
+     */
+    private void update() {
+        lock.lock();
+
+        try {
+            updateQueued = false;
+            if (!closed) {
+                process();
+            }
+        }
+
+        catch (IOException | RuntimeException e) {
+            close();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void read() throws IOException {
+        allocateBuffers();
+
+        int count = channel.read((engine == null) ? appIn : netIn);
+        if (count < 0) {
+            inputClosed = true;
+        }
+
+        else if (count > 0) {
+            lastActivity = loop.now();
+        }
+    }
+
+
+    /**
+     * Moves the bytes as far as they go, starts the next request and wakes up the handler
+     */
+    private void process() throws IOException {
+        if (appIn == null) {
+            updateInterest();
+            return;
+        }
+
+        transfer();
+
+        // Next request, pipelined ones are already in the buffer
+        if (exchange == null && !closeAfterFlush && !closed) {
+            parseRequest();
+            transfer();
+        }
+
+        if (closed) {
+            return;
+        }
+
+        if (exchange != null) {
+            readable.signalAll();
+            writable.signalAll();
+        }
+
+        // Close once the last response is sent
+        else if (closeAfterFlush || (inputClosed && appIn.position() == 0)) {
+            closeAfterFlush = true;
+            if (!hasPendingOutput()) {
+                closeGracefully();
+                return;
+            }
+        }
+
+        // Idle connections hold no buffers
+        else if (appIn.position() == 0 && !hasPendingOutput() && (engine == null || (netIn.position() == 0 && isHandshakeDone()))) {
+            releaseBuffers();
+        }
+
+        updateInterest();
+    }
+
+
+    /**
+     * Decrypts and encrypts until no more progress is made
+     */
+    private void transfer() throws IOException {
+        boolean progress;
+        boolean overflow = false;
+
+        do {
+            progress = false;
+
+            if (engine != null) {
+                int result = unwrap();
+                progress = result > 0;
+                overflow = result < 0;
+            }
+
+            progress |= flush();
+        }
+        while (progress && !closed);
+
+        inputBlocked = (engine == null) ? !appIn.hasRemaining() : (overflow || !netIn.hasRemaining());
+    }
+
+
+    /**
+     * Decrypts the received bytes
+     *
+     * @return 1 if bytes were decrypted, 0 if more bytes are needed, -1 if the plain buffer is full
+     */
+    private int unwrap() throws IOException {
+        int progress = 0;
+
+        while (!tasksRunning) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            }
+
+            finally {
+                netIn.compact();
+            }
+            startTasks();
+
+            if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) {
+                progress = 1;
+            }
+
+            switch (result.getStatus()) {
+                case OK -> {
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        return progress;
+                    }
+                }
+
+                // Record not yet complete, grow the buffer if the record doesn't fit
+                case BUFFER_UNDERFLOW -> {
+                    int packetSize = engine.getSession().getPacketBufferSize();
+                    if (!netIn.hasRemaining() && netIn.capacity() < packetSize) {
+                        netIn = ByteBuffer.allocate(packetSize).put(netIn.flip());
+                    }
+                    return progress;
+                }
+
+                // Handler hasn't read the earlier bytes yet
+                case BUFFER_OVERFLOW -> {
+                    return (progress > 0) ? progress : -1;
+                }
+
+                case CLOSED -> {
+                    inputClosed = true;
+                    return progress;
+                }
+            }
+        }
+
+        return progress;
+    }
+
+
+    /**
+     * Writes the waiting bytes, encrypting them first on TLS connections
+     *
+     * @return True if any bytes were written or encrypted
+     */
+    private boolean flush() throws IOException {
+
+        // Plain HTTP
+        if (engine == null) {
+            if (appOut.position() == 0) {
+                return false;
+            }
+
+            appOut.flip();
+            int count = channel.write(appOut);
+            appOut.compact();
+            return count > 0;
+        }
+
+        boolean progress = false;
+
+        while (true) {
+            if (netOut.hasRemaining()) {
+                progress |= channel.write(netOut) > 0;
+                if (netOut.hasRemaining()) {
+                    return progress;
+                }
+            }
+
+            if (engine.isOutboundDone() || tasksRunning) {
+                return progress;
+            }
+
+            // Encrypt the next record (or the next handshake message)
+            appOut.flip();
+            netOut.clear();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(appOut, netOut);
+            }
+
+            finally {
+                appOut.compact();
+                netOut.flip();
+            }
+            startTasks();
+
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                return progress;
+            }
+            progress = true;
+        }
+    }
+
+
+    /**
+     * Hands the delegated tasks of the engine to the TLS task threads, if it has any
+     */
+    private void startTasks() {
+        if (tasksRunning || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            return;
+        }
+        tasksRunning = true;
+
+        try {
+            server.executeTlsTasks(this::runTasks);
+        }
+
+        catch (RejectedExecutionException e) {
+            close();
+        }
+    }
+
+
+    /**
+     * Runs the delegated tasks and lets the selector thread continue. Runs on a TLS task thread.
+     */
+    private void runTasks() {
+        try {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        finally {
+            lock.lock();
+            try {
+                tasksRunning = false;
+                requestUpdate();
+            }
+
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    private boolean isHandshakeDone() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+
+    /**
+     * Parses the head of the next request and hands the request to the server
+     */
+    private void parseRequest() {
+        appIn.flip();
+        byte[] head = null;
+
+        try {
+
+            // Line breaks between pipelined requests are skipped
+            while (appIn.hasRemaining() && (appIn.get(appIn.position()) == '\r' || appIn.get(appIn.position()) == '\n')) {
+                appIn.get();
+            }
+
+            // Bytes scanned on the earlier reads aren't scanned again
+            int end = findHeadEnd(appIn, headScanned);
+            headScanned = (end >= 0) ? 0 : appIn.remaining();
+            if (end >= 0) {
+                head = new byte[end - appIn.position()];
+                appIn.get(head);
+            }
+
+            // Head doesn't fit to the buffer
+            else if (appIn.limit() == appIn.capacity()) {
+                appIn.position(appIn.limit());
+                respondAndClose(431, "Request Header Fields Too Large");
+                return;
+            }
+        }
+
+        finally {
+            appIn.compact();
+        }
+
+        if (head == null) {
+            return;
+        }
+
+        try {
+            exchange = NioExchange.parse(server, this, head);
+        }
+
+        catch (IllegalArgumentException e) {
+            respondAndClose(400, "Bad Request");
+            return;
+        }
+
+        // Client waits before sending the body
+        if (exchange.expectsContinue() && appOut.remaining() >= CONTINUE.length) {
+            appOut.put(CONTINUE);
+        }
+
+        lastActivity = loop.now();
+        server.dispatch(exchange);
+    }
+
+
+    /**
+     * Finds the end of the request head
+     *
+     * @param  buffer Received bytes in read mode
+     * @param  scanned Count of the bytes already scanned without finding the end
+     * @return Position after the empty line ending the head, -1 if not yet received
+     */
+    private static int findHeadEnd(ByteBuffer buffer, int scanned) {
+        for (int i = buffer.position() + Math.max(0, scanned - 3); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Answers a request that can't be handled and closes the connection
+     *
+     * @param statusCode Status code of the response
+     * @param reason Reason phrase of the response
+     */
+    private void respondAndClose(int statusCode, String reason) {
+        byte[] response = ("HTTP/1.1 " + statusCode + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        if (appOut.remaining() >= response.length) {
+            appOut.put(response);
+        }
+
+        appIn.clear();
+        headScanned = 0;
+        closeAfterFlush = true;
+    }
+
+
+    private void updateInterest() {
+        if (closed || key == null || !key.isValid()) {
+            return;
+        }
+
+        int operations = 0;
+        if (!inputClosed && !closeAfterFlush && (appIn == null || !inputBlocked)) {
+            operations |= SelectionKey.OP_READ;
+        }
+        if (hasPendingOutput()) {
+            operations |= SelectionKey.OP_WRITE;
+        }
+
+        if (key.interestOps() != operations) {
+            key.interestOps(operations);
+        }
+    }
+
+
+    private boolean hasPendingOutput() {
+        return appOut != null && (appOut.position() > 0 || (netOut != null && netOut.hasRemaining()));
+    }
+
+
+    private void allocateBuffers() {
+        if (appIn != null) {
+            return;
+        }
+
+        appIn = loop.allocate(BUFFER_SIZE);
+        appOut = loop.allocate(BUFFER_SIZE);
+
+        if (engine != null) {
+            int packetSize = engine.getSession().getPacketBufferSize();
+            netIn = loop.allocate(packetSize);
+            netOut = loop.allocate(packetSize).flip();
+        }
+    }
+
+
+    private void releaseBuffers() {
+        loop.release(appIn);
+        loop.release(appOut);
+        appIn = appOut = null;
+
+        if (engine != null) {
+            loop.release(netIn);
+            loop.release(netOut);
+            netIn = netOut = null;
+        }
+    }
+
+
+    /**
+     * Closes the connection if no request is running and nothing happened for the idle timeout
+     *
+     * @param now Current time in milliseconds
+     */
+    void closeIfIdle(long now) {
+        lock.lock();
+
+        try {
+            if (!closed && exchange == null && now - lastActivity > NioHttpsServer.IDLE_TIMEOUT_MILLIS) {
+                close();
+            }
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sends the TLS close message if possible and closes the connection
+     */
+    private void closeGracefully() {
+        if (engine != null && appOut != null) {
+            try {
+                engine.closeOutbound();
+                flush();
+            }
+
+            catch (IOException e) {
+                // Connection is closed anyway
+            }
+        }
+
+        close();
+    }
+
+
+    /**
+     * Closes the connection and wakes up the waiting handler
+     */
+    void close() {
+        lock.lock();
+
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (key != null) {
+                key.cancel();
+            }
+
+            try {
+                channel.close();
+            }
+
+            catch (IOException e) {
+                // Nothing left to do
+            }
+
+            readable.signalAll();
+            writable.signalAll();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+
+
+// ▛                          ▜
+//    Handler thread methods
+// ▙                          ▟
+
+
+
+    /**
+     * Reads the received bytes of the request body, waits until some are received
+     *
+     * @param  bytes Array the bytes are read to
+     * @param  offset Start of the bytes in the array
+     * @param  length Maximum count of the bytes
+     * @return Count of the read bytes, -1 if the client closed the connection
+     */
+    int read(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+
+        try {
+            long wait = NioHttpsServer.IO_TIMEOUT_NANOS;
+
+            while (appIn == null || appIn.position() == 0) {
+                if (closed) {
+                    throw new IOException(": Connection closed");
+                }
+                if (inputClosed) {
+                    return -1;
+                }
+                if (wait <= 0) {
+                    throw new SocketTimeoutException(": Request body not received in time");
+                }
+
+                wait = readable.awaitNanos(wait);
+            }
+
+            appIn.flip();
+            int count = Math.min(length, appIn.remaining());
+            appIn.get(bytes, offset, count);
+            appIn.compact();
+
+            // Reading was stopped until the handler made room
+            if (inputBlocked) {
+                requestUpdate();
+            }
+
+            return count;
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(": Interrupted while reading the request body");
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Queues the bytes of the response to be sent, waits while the output buffer is full
+     *
+     * @param bytes Bytes of the response
+     * @param offset Start of the bytes in the array
+     * @param length Count of the bytes
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+
+        try {
+            long wait = NioHttpsServer.IO_TIMEOUT_NANOS;
+
+            while (length > 0) {
+                if (closed) {
+                    throw new IOException(": Connection closed");
+                }
+
+                int count = Math.min(length, appOut.remaining());
+                if (count == 0) {
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException(": Response not sent in time");
+                    }
+
+                    requestUpdate();
+                    wait = writable.awaitNanos(wait);
+                    continue;
+                }
+
+                appOut.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+                wait = NioHttpsServer.IO_TIMEOUT_NANOS;
+            }
+
+            requestUpdate();
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(": Interrupted while sending the response");
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Ends the current exchange, the next request of the connection may start
+     *
+     * @param keepAlive True if the connection can take more requests
+     */
+    void finishExchange(boolean keepAlive) {
+        lock.lock();
+
+        try {
+            exchange = null;
+            if (!keepAlive) {
+                closeAfterFlush = true;
+            }
+
+            lastActivity = loop.now();
+            requestUpdate();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Closes the connection from another thread
+     */
+    void abort() {
+        loop.execute(this::close);
+    }
+
+
+    /**
+     * Asks the selector thread to continue, once per round
+     */
+    private void requestUpdate() {
+        if (!updateQueued) {
+            updateQueued = true;
+            loop.execute(this::update);
+        }
+    }
+}
@@ -0,0 +1,662 @@
+package code.backend.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLSession;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpsExchange;
+
+
+
+/**
+ * Exchange of the NIO server. Behaves like the exchanges of
+ * com.sun.net.httpserver: the response body can be taken before the headers
+ * are sent, a length of 0 sends the body in chunks and -1 sends no body, and
+ * closing the exchange ends the request.
+ *
+ * Plain HTTP exchanges return NULL as their SSL session.
+ */
+final class NioExchange extends HttpsExchange {
+
+
+    private final NioHttpsServer server;
+    private final NioConnection connection;
+    private final String method;
+    private final URI requestURI;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final boolean expectContinue;
+
+    private NioHttpContext context = null;
+    private HttpPrincipal principal = null;
+    private Map<String, Object> attributes = null;
+
+    // Request body
+    private final RequestStream requestStream;
+    private final ChunkedInputStream chunkedStream;
+    private InputStream requestBody;
+
+    // Response body, available to the handler before the headers are sent
+    private final ResponseStream responseStream = new ResponseStream();
+    private OutputStream responseBody = responseStream;
+    private OutputStream responseOutput = null;
+
+    private boolean keepAlive;
+    private boolean headersSent = false;
+    private boolean incomplete = false;
+    private boolean closed = false;
+    private int responseCode = -1;
+
+    // Unread request bodies up to this size are read away to keep the connection
+    private static final long DRAIN_LIMIT = 64 * 1024;
+
+    private static volatile String cachedDate = "";
+    private static volatile long cachedDateSecond = -1;
+
+
+
+    private NioExchange(NioHttpsServer server, NioConnection connection, String method, URI requestURI, String protocol, Headers requestHeaders, long bodyLength, boolean chunked, boolean keepAlive, boolean expectContinue) {
+        this.server = server;
+        this.connection = connection;
+        this.method = method;
+        this.requestURI = requestURI;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.keepAlive = keepAlive;
+        this.expectContinue = expectContinue;
+
+        this.requestStream = new RequestStream(chunked ? Long.MAX_VALUE : bodyLength);
+        this.chunkedStream = chunked ? new ChunkedInputStream(requestStream) : null;
+        this.requestBody = chunked ? chunkedStream : requestStream;
+    }
+
+
+    /**
+     * Creates exchange from the head of the request
+     *
+     * @param  server Server of the connection
+     * @param  connection Connection of the request
+     * @param  head Request line and headers, ending with an empty line
+     * @return Exchange of the request
+     * @throws IllegalArgumentException If the head is malformed
+     */
+    static NioExchange parse(NioHttpsServer server, NioConnection connection, byte[] head) {
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+
+        // Request line
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new IllegalArgumentException("Invalid request line");
+        }
+
+        URI requestURI;
+        try {
+            requestURI = new URI(requestLine[1]);
+        }
+
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid request target");
+        }
+
+        // Headers (folded lines aren't accepted)
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length && !lines[i].isEmpty(); i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0 || Character.isWhitespace(lines[i].charAt(0)) || Character.isWhitespace(lines[i].charAt(colon - 1))) {
+                throw new IllegalArgumentException("Invalid header line");
+            }
+
+            headers.add(lines[i].substring(0, colon), lines[i].substring(colon + 1).trim());
+        }
+
+        // Length of the body
+        boolean chunked = headerContains(headers, "Transfer-Encoding", "chunked");
+        long bodyLength = 0;
+        List<String> contentLengths = headers.get("Content-Length");
+        if (!chunked && contentLengths != null) {
+            try {
+                bodyLength = Long.parseLong(contentLengths.get(0).trim());
+            }
+
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid Content-Length");
+            }
+
+            if (bodyLength < 0 || contentLengths.stream().anyMatch(length -> !length.trim().equals(contentLengths.get(0).trim()))) {
+                throw new IllegalArgumentException("Invalid Content-Length");
+            }
+        }
+
+        // HTTP/1.1 keeps the connection unless asked not to, HTTP/1.0 only if asked to
+        boolean http11 = requestLine[2].equals("HTTP/1.1");
+        boolean keepAlive = http11
+            ? !headerContains(headers, "Connection", "close")
+            : headerContains(headers, "Connection", "keep-alive")
+        ;
+
+        // Both lengths given, the connection isn't trusted with the next request
+        if (chunked && contentLengths != null) {
+            keepAlive = false;
+        }
+
+        boolean expectContinue = http11 && headerContains(headers, "Expect", "100-continue");
+
+        return new NioExchange(server, connection, requestLine[0], requestURI, requestLine[2], headers, bodyLength, chunked, keepAlive, expectContinue);
+    }
+
+
+    private static boolean headerContains(Headers headers, String name, String token) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            return false;
+        }
+
+        for (String value: values) {
+            for (String part: value.split(",")) {
+                if (part.trim().equalsIgnoreCase(token)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+
+
+
+    boolean expectsContinue() {
+        return expectContinue;
+    }
+
+
+    void setHttpContext(NioHttpContext context) {
+        this.context = context;
+    }
+
+
+    void setPrincipal(HttpPrincipal principal) {
+        this.principal = principal;
+    }
+
+
+
+
+// ▛                    ▜
+//    Exchange methods
+// ▙                    ▟
+
+
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+
+    @Override
+    public URI getRequestURI() {
+        return requestURI;
+    }
+
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+
+    @Override
+    public void sendResponseHeaders(int statusCode, long responseLength) throws IOException {
+        if (headersSent) {
+            throw new IOException(": Response headers already sent");
+        }
+        headersSent = true;
+        responseCode = statusCode;
+
+        boolean noBody = responseLength < 0 || statusCode < 200 || statusCode == 204 || statusCode == 304;
+
+        // Connection closes after the response if either side asks
+        if (headerContains(responseHeaders, "Connection", "close")) {
+            keepAlive = false;
+        }
+        if (!keepAlive) {
+            responseHeaders.set("Connection", "close");
+        }
+
+        // Length of the body
+        if (noBody) {
+            if (statusCode >= 200 && statusCode != 204 && statusCode != 304) {
+                responseHeaders.set("Content-Length", "0");
+            }
+        }
+
+        else if (responseLength > 0) {
+            responseHeaders.set("Content-Length", String.valueOf(responseLength));
+        }
+
+        else if (!method.equals("HEAD")) {
+            responseHeaders.set("Transfer-Encoding", "chunked");
+        }
+
+        if (!responseHeaders.containsKey("Date")) {
+            responseHeaders.set("Date", formatDate());
+        }
+
+        // Status line and headers
+        StringBuilder head = new StringBuilder(256)
+            .append("HTTP/1.1 ").append(statusCode).append(' ').append(reasonPhrase(statusCode)).append("\r\n")
+        ;
+        for (Map.Entry<String, List<String>> header: responseHeaders.entrySet()) {
+            for (String value: header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        connection.write(headBytes, 0, headBytes.length);
+
+        // Stream of the body
+        if (method.equals("HEAD")) {
+            responseOutput = OutputStream.nullOutputStream();
+        }
+
+        else if (!noBody) {
+            responseOutput = (responseLength > 0) ? new FixedLengthStream(responseLength) : new ChunkedOutputStream(new ConnectionStream());
+        }
+    }
+
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+        return (attributes == null) ? null : attributes.get(name);
+    }
+
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+
+        if (value == null) {
+            attributes.remove(name);
+        }
+
+        else {
+            attributes.put(name, value);
+        }
+    }
+
+
+    @Override
+    public void setStreams(InputStream input, OutputStream output) {
+        if (input != null) {
+            requestBody = input;
+        }
+
+        if (output != null) {
+            responseBody = output;
+        }
+    }
+
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+
+
+    @Override
+    public SSLSession getSSLSession() {
+        return connection.getSSLSession();
+    }
+
+
+    /**
+     * Ends the exchange. The connection takes the next request if the
+     * response was complete and the request body was read (or small enough
+     * to be read away), otherwise it's closed.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean reusable = keepAlive && headersSent;
+
+        try {
+            getRequestBody().close();
+            if (headersSent) {
+                getResponseBody().close();
+            }
+        }
+
+        catch (IOException e) {
+            reusable = false;
+        }
+
+        reusable = reusable && !incomplete && drainRequestBody();
+
+        connection.finishExchange(reusable);
+        server.exchangeFinished();
+    }
+
+
+    /**
+     * Ends the exchange by closing the connection
+     */
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        connection.abort();
+        server.exchangeFinished();
+    }
+
+
+    /**
+     * Reads away the rest of the request body
+     *
+     * @return True if the whole body was read
+     */
+    private boolean drainRequestBody() {
+        if (chunkedStream == null && requestStream.remaining > DRAIN_LIMIT) {
+            return false;
+        }
+
+        InputStream body = (chunkedStream != null) ? chunkedStream : requestStream;
+        byte[] skipped = new byte[8192];
+        long limit = DRAIN_LIMIT;
+
+        try {
+            while (limit >= 0) {
+                int count = body.read(skipped, 0, skipped.length);
+                if (count < 0) {
+                    return true;
+                }
+                limit -= count;
+            }
+        }
+
+        catch (IOException e) {
+            return false;
+        }
+
+        return false;
+    }
+
+
+
+
+// ▛                  ▜
+//    Helper methods
+// ▙                  ▟
+
+
+
+    private static String formatDate() {
+        long second = System.currentTimeMillis() / 1000;
+
+        if (second != cachedDateSecond) {
+            cachedDate = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            cachedDateSecond = second;
+        }
+
+        return cachedDate;
+    }
+
+
+    private static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 100 -> {return "Continue";}
+            case 200 -> {return "OK";}
+            case 201 -> {return "Created";}
+            case 202 -> {return "Accepted";}
+            case 204 -> {return "No Content";}
+            case 206 -> {return "Partial Content";}
+            case 301 -> {return "Moved Permanently";}
+            case 302 -> {return "Found";}
+            case 304 -> {return "Not Modified";}
+            case 400 -> {return "Bad Request";}
+            case 401 -> {return "Unauthorized";}
+            case 403 -> {return "Forbidden";}
+            case 404 -> {return "Not Found";}
+            case 405 -> {return "Method Not Allowed";}
+            case 406 -> {return "Not Acceptable";}
+            case 409 -> {return "Conflict";}
+            case 413 -> {return "Content Too Large";}
+            case 429 -> {return "Too Many Requests";}
+            case 500 -> {return "Internal Server Error";}
+            case 503 -> {return "Service Unavailable";}
+            default -> {return "Status";}
+        }
+    }
+
+
+
+
+// ▛                  ▜
+//    Stream classes
+// ▙                  ▟
+
+
+
+    /**
+     * Bytes of the request body from the connection
+     */
+    private final class RequestStream extends InputStream {
+
+        private long remaining;
+
+        private RequestStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+
+            int count = connection.read(bytes, offset, (int) Math.min(length, remaining));
+            if (count < 0) {
+                throw new IOException(": Connection closed before the request body was received");
+            }
+
+            remaining -= count;
+            return count;
+        }
+
+        // The rest of the body is read away when the exchange is closed
+        @Override
+        public void close() {}
+    }
+
+
+    /**
+     * Response body handed to the handler, writes to the stream chosen by the response headers
+     */
+    private final class ResponseStream extends OutputStream {
+
+        private boolean streamClosed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (!headersSent) {
+                throw new IOException(": Response headers must be sent before the body");
+            }
+            if (responseOutput == null) {
+                throw new IOException(": Response has no body");
+            }
+            if (streamClosed) {
+                throw new IOException(": Response body is closed");
+            }
+
+            responseOutput.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (responseOutput != null) {
+                responseOutput.flush();
+            }
+        }
+
+        // Closing the body ends the exchange, as in com.sun.net.httpserver
+        @Override
+        public void close() throws IOException {
+            if (streamClosed || !headersSent) {
+                return;
+            }
+            streamClosed = true;
+
+            try {
+                if (responseOutput != null) {
+                    responseOutput.close();
+                }
+            }
+
+            finally {
+                NioExchange.this.close();
+            }
+        }
+    }
+
+
+    /**
+     * Response body of the given length
+     */
+    private final class FixedLengthStream extends OutputStream {
+
+        private long remaining;
+
+        private FixedLengthStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > remaining) {
+                incomplete = true;
+                throw new IOException(": Response body is longer than its Content-Length");
+            }
+
+            connection.write(bytes, offset, length);
+            remaining -= length;
+        }
+
+        // Short bodies leave the connection out of sync with the client
+        @Override
+        public void close() {
+            if (remaining > 0) {
+                incomplete = true;
+            }
+        }
+    }
+
+
+    /**
+     * Raw bytes to the connection
+     */
+    private final class ConnectionStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            connection.write(bytes, offset, length);
+        }
+    }
+}
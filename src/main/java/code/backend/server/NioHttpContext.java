@@ -0,0 +1,95 @@
+package code.backend.server;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+
+/**
+ * Context of the NIO server, maps a path prefix to its handler
+ */
+final class NioHttpContext extends HttpContext {
+
+
+    private final String path;
+    private final NioHttpsServer server;
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final List<Filter> filters = new CopyOnWriteArrayList<>();
+    private volatile HttpHandler handler;
+    private volatile Authenticator authenticator = null;
+
+
+
+    NioHttpContext(String path, HttpHandler handler, NioHttpsServer server) {
+        this.path = path;
+        this.handler = handler;
+        this.server = server;
+    }
+
+
+
+
+    @Override
+    public HttpHandler getHandler() {
+        return handler;
+    }
+
+
+    @Override
+    public void setHandler(HttpHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException("[ERROR] - SERVER: Handler of the context mustn't be null");
+        }
+        if (this.handler != null) {
+            throw new IllegalArgumentException("[ERROR] - SERVER: Handler of the context is already set");
+        }
+
+        this.handler = handler;
+    }
+
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+
+    @Override
+    public HttpServer getServer() {
+        return server;
+    }
+
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+
+    @Override
+    public List<Filter> getFilters() {
+        return filters;
+    }
+
+
+    @Override
+    public Authenticator setAuthenticator(Authenticator authenticator) {
+        Authenticator previous = this.authenticator;
+        this.authenticator = authenticator;
+        return previous;
+    }
+
+
+    @Override
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+}
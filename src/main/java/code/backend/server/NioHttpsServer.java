@@ -0,0 +1,473 @@
+package code.backend.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Selector-based HTTP/1.1 server running the handlers of com.sun.net.httpserver.
+ *
+ * A few selector threads own every connection: they accept, read, do the TLS
+ * work with SSLEngine and write, so idle keep-alive connections cost no
+ * thread and hold no buffers. Parsed requests run on the executor of the
+ * server, their handlers read and write through blocking streams. Connections
+ * are kept alive and may pipeline requests, which run one at a time in order.
+ *
+ * Delegated tasks of the TLS handshakes (key exchange, certificate checks)
+ * run on their own pool of one thread per core, never on the selector threads.
+ *
+ * Without an HTTPS configurator the server speaks plain HTTP. Configured by
+ * the system properties:
+ *   memes.nioSelectors      - count of the selector threads (default half of the cores)
+ *   memes.nioIdleSeconds    - idle keep-alive connections are closed after this (default 60)
+ *   memes.nioTimeoutSeconds - longest wait of a handler on a slow client (default 30)
+ */
+public class NioHttpsServer extends HttpsServer {
+
+
+    private static final int SELECTORS = Integer.getInteger("memes.nioSelectors", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("memes.nioIdleSeconds", 60));
+    static final long IO_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("memes.nioTimeoutSeconds", 30));
+
+    private static final String ERROR_MESSAGE = "[ERROR] - SERVER: ";
+
+    private ServerSocketChannel serverChannel = null;
+    private HttpsConfigurator httpsConfigurator = null;
+    private Executor executor = null;
+    private ExecutorService defaultExecutor = null;
+    private ExecutorService tlsTaskExecutor = null;
+    private SelectorLoop[] loops = null;
+    private int nextLoop = 0;
+
+    private final List<NioHttpContext> contexts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+
+
+
+    /**
+     * Creates the server bound to the given address
+     *
+     * @param  address Address of the server, NULL to bind later
+     * @param  backlog Maximum count of the connections waiting to be accepted, 0 for the default
+     * @return Unstarted server
+     */
+    public static NioHttpsServer create(InetSocketAddress address, int backlog) throws IOException {
+        NioHttpsServer server = new NioHttpsServer();
+        if (address != null) {
+            server.bind(address, backlog);
+        }
+
+        return server;
+    }
+
+
+
+
+// ▛                  ▜
+//    Server methods
+// ▙                  ▟
+
+
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException(ERROR_MESSAGE + "Server is already bound");
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, backlog);
+        serverChannel.configureBlocking(false);
+    }
+
+
+    @Override
+    public void start() {
+        if (serverChannel == null || loops != null) {
+            throw new IllegalStateException(ERROR_MESSAGE + "Server is not bound or is already started");
+        }
+
+        // Handlers block, so they never run on the selector threads
+        if (executor == null) {
+            defaultExecutor = Executors.newCachedThreadPool();
+            executor = defaultExecutor;
+        }
+
+        // Handshake work is CPU bound, so one thread per core is enough
+        tlsTaskExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            Thread.ofPlatform().name("nio-tls-task-", 0).daemon().factory()
+        );
+
+        try {
+            loops = new SelectorLoop[SELECTORS];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop("nio-selector-" + i);
+                loops[i].start();
+            }
+        }
+
+        catch (IOException e) {
+            throw new IllegalStateException(ERROR_MESSAGE + "Selector not opened: " + e.getMessage(), e);
+        }
+
+        // First loop accepts the connections
+        Runnable acceptor = this::accept;
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector(), SelectionKey.OP_ACCEPT, acceptor);
+            }
+
+            catch (IOException e) {
+                Log.error(ERROR_MESSAGE + "Server channel not registered: {}", e.getMessage());
+            }
+        });
+    }
+
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (loops != null) {
+            throw new IllegalStateException(ERROR_MESSAGE + "Server is already started");
+        }
+
+        this.executor = executor;
+    }
+
+
+    @Override
+    public Executor getExecutor() {
+        return (executor == defaultExecutor) ? null : executor;
+    }
+
+
+    /**
+     * Stops accepting connections, waits for the running exchanges and closes every connection
+     *
+     * @param delay Longest wait for the running exchanges in seconds
+     */
+    @Override
+    public void stop(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException(ERROR_MESSAGE + "Delay mustn't be negative");
+        }
+
+        try {
+            serverChannel.close();
+        }
+
+        catch (IOException e) {
+            Log.error(ERROR_MESSAGE + "Server channel not closed: {}", e.getMessage());
+        }
+
+        // Let the running exchanges finish
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delay);
+        while (activeExchanges.get() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(50);
+            }
+
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (loops != null) {
+            for (SelectorLoop loop: loops) {
+                loop.shutdown();
+            }
+        }
+
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdownNow();
+        }
+        if (tlsTaskExecutor != null) {
+            tlsTaskExecutor.shutdownNow();
+        }
+    }
+
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+
+    @Override
+    public void setHttpsConfigurator(HttpsConfigurator configurator) {
+        if (configurator == null) {
+            throw new NullPointerException(ERROR_MESSAGE + "HTTPS configurator mustn't be null");
+        }
+
+        this.httpsConfigurator = configurator;
+    }
+
+
+    @Override
+    public HttpsConfigurator getHttpsConfigurator() {
+        return httpsConfigurator;
+    }
+
+
+
+
+// ▛                   ▜
+//    Context methods
+// ▙                   ▟
+
+
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException(ERROR_MESSAGE + "Path of the context must start with /");
+        }
+
+        synchronized (contexts) {
+            for (NioHttpContext context: contexts) {
+                if (context.getPath().equals(path)) {
+                    throw new IllegalArgumentException(ERROR_MESSAGE + "Context " + path + " already exists");
+                }
+            }
+
+            NioHttpContext context = new NioHttpContext(path, handler, this);
+            contexts.add(context);
+            return context;
+        }
+    }
+
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(context -> context.getPath().equals(path))) {
+            throw new IllegalArgumentException(ERROR_MESSAGE + "No context " + path);
+        }
+    }
+
+
+    @Override
+    public void removeContext(HttpContext context) {
+        if (!contexts.remove(context)) {
+            throw new IllegalArgumentException(ERROR_MESSAGE + "Context isn't of this server");
+        }
+    }
+
+
+    /**
+     * Finds the context with the longest path the request path starts with
+     *
+     * @param  path Path of the request
+     * @return Context, NULL if none matches
+     */
+    private NioHttpContext findContext(String path) {
+        NioHttpContext found = null;
+
+        for (NioHttpContext context: contexts) {
+            if (path.startsWith(context.getPath()) && (found == null || context.getPath().length() > found.getPath().length())) {
+                found = context;
+            }
+        }
+
+        return found;
+    }
+
+
+
+
+// ▛                    ▜
+//    Exchange methods
+// ▙                    ▟
+
+
+
+    /**
+     * Accepts the waiting connections and spreads them to the selector loops. Runs on the first loop.
+     */
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    SelectorLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+
+                    NioConnection connection = new NioConnection(this, loop, channel, createEngine(channel));
+                    loop.execute(connection::register);
+                }
+
+                catch (IOException | RuntimeException e) {
+                    Log.error(ERROR_MESSAGE + "Connection not accepted: {}", e.getMessage());
+                    channel.close();
+                }
+            }
+        }
+
+        catch (IOException e) {
+            Log.error(ERROR_MESSAGE + "Accepting failed: {}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * Creates the TLS engine of the connection as the HTTPS configurator sets it up
+     *
+     * @param  channel Accepted channel
+     * @return TLS engine, NULL if the server has no HTTPS configurator
+     */
+    private SSLEngine createEngine(SocketChannel channel) throws IOException {
+        if (httpsConfigurator == null) {
+            return null;
+        }
+
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        SSLEngine engine = httpsConfigurator.getSSLContext().createSSLEngine(remote.getHostString(), remote.getPort());
+        engine.setUseClientMode(false);
+
+        httpsConfigurator.configure(new HttpsParameters() {
+            @Override
+            public HttpsConfigurator getHttpsConfigurator() {
+                return httpsConfigurator;
+            }
+
+            @Override
+            public InetSocketAddress getClientAddress() {
+                return remote;
+            }
+
+            @Override
+            public void setSSLParameters(SSLParameters parameters) {
+                engine.setSSLParameters(parameters);
+            }
+        });
+
+        engine.beginHandshake();
+        return engine;
+    }
+
+
+    /**
+     * Runs the exchange on the executor. Called from the selector thread.
+     *
+     * @param exchange Parsed request
+     */
+    void dispatch(NioExchange exchange) {
+        activeExchanges.incrementAndGet();
+
+        try {
+            executor.execute(() -> handle(exchange));
+        }
+
+        catch (RejectedExecutionException e) {
+            exchange.abort();
+        }
+    }
+
+
+    /**
+     * Runs the delegated tasks of a TLS engine off the selector threads
+     *
+     * @param  tasks Work running the delegated tasks of the connection
+     * @throws RejectedExecutionException If the server is stopped
+     */
+    void executeTlsTasks(Runnable tasks) {
+        tlsTaskExecutor.execute(tasks);
+    }
+
+
+    void exchangeFinished() {
+        activeExchanges.decrementAndGet();
+    }
+
+
+    /**
+     * Runs the authenticator, filters and handler of the matching context
+     *
+     * @param exchange Parsed request
+     */
+    private void handle(NioExchange exchange) {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            NioHttpContext context = findContext((path == null) ? "/" : path);
+
+            if (context == null || context.getHandler() == null) {
+                exchange.sendResponseHeaders((context == null) ? 404 : 500, -1);
+                exchange.close();
+                return;
+            }
+            exchange.setHttpContext(context);
+
+            // Authenticate the user if the context asks
+            Authenticator authenticator = context.getAuthenticator();
+            if (authenticator != null) {
+                Authenticator.Result result = authenticator.authenticate(exchange);
+
+                if (result instanceof Authenticator.Success success) {
+                    exchange.setPrincipal(success.getPrincipal());
+                }
+
+                else {
+                    int statusCode = (result instanceof Authenticator.Failure failure)
+                        ? failure.getResponseCode()
+                        : ((Authenticator.Retry) result).getResponseCode()
+                    ;
+                    exchange.sendResponseHeaders(statusCode, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+
+            new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+
+            // Handlers that leave the exchange open would hold the connection
+            exchange.close();
+        }
+
+        catch (Exception e) {
+            Log.error(ERROR_MESSAGE + "Exchange failed: {}", e.getMessage());
+            exchange.abort();
+        }
+    }
+}
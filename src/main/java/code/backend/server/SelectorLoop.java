@@ -0,0 +1,199 @@
+package code.backend.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Selector thread of the NIO server. Every connection belongs to one loop,
+ * which does all reading, writing and TLS work of the connection. Other
+ * threads hand work to the loop with {@link #execute(Runnable)}.
+ *
+ * Buffers of idle connections are returned to the loop, so idle keep-alive
+ * connections hold no buffers.
+ */
+final class SelectorLoop implements Runnable {
+
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+
+    private volatile boolean running = true;
+    private long now = System.currentTimeMillis();
+
+    private static final long SWEEP_MILLIS = 1000;
+    private static final int MAX_FREE_BUFFERS = 256;
+
+
+
+    /**
+     * Creates selector loop
+     *
+     * @param name Name of the selector thread
+     */
+    SelectorLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+
+
+
+    void start() {
+        thread.start();
+    }
+
+
+    /**
+     * Stops the loop and closes its connections
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+
+    Selector selector() {
+        return selector;
+    }
+
+
+    /**
+     * Gets the time of the current round of the loop
+     *
+     * @return Time in milliseconds
+     */
+    long now() {
+        return now;
+    }
+
+
+    /**
+     * Runs the task on the selector thread
+     *
+     * @param task Task to be run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+
+
+
+// ▛                  ▜
+//    Buffer methods
+// ▙                  ▟
+
+
+
+    /**
+     * Takes a free buffer of the given size, or creates one. Only called from the selector thread.
+     *
+     * @param  size Capacity of the buffer
+     * @return Empty buffer
+     */
+    ByteBuffer allocate(int size) {
+        ArrayDeque<ByteBuffer> buffers = freeBuffers.get(size);
+        ByteBuffer buffer = (buffers == null) ? null : buffers.poll();
+
+        return (buffer == null) ? ByteBuffer.allocate(size) : buffer.clear();
+    }
+
+
+    /**
+     * Returns the buffer for other connections. Only called from the selector thread.
+     *
+     * @param buffer Buffer no longer used
+     */
+    void release(ByteBuffer buffer) {
+        ArrayDeque<ByteBuffer> buffers = freeBuffers.computeIfAbsent(buffer.capacity(), size -> new ArrayDeque<>());
+        if (buffers.size() < MAX_FREE_BUFFERS) {
+            buffers.push(buffer);
+        }
+    }
+
+
+
+
+// ▛                ▜
+//    Loop methods
+// ▙                ▟
+
+
+
+    @Override
+    public void run() {
+        long nextSweep = now + SWEEP_MILLIS;
+
+        while (running) {
+            try {
+                selector.select(SWEEP_MILLIS);
+                now = System.currentTimeMillis();
+
+                // Work handed over by the other threads
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                // Ready channels
+                for (SelectionKey key: selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.attachment() instanceof NioConnection connection) {
+                        connection.onSelected(key);
+                    }
+
+                    else if (key.attachment() instanceof Runnable acceptor) {
+                        acceptor.run();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // Close the connections idle for too long
+                if (now >= nextSweep) {
+                    for (SelectionKey key: selector.keys()) {
+                        if (key.attachment() instanceof NioConnection connection) {
+                            connection.closeIfIdle(now);
+                        }
+                    }
+                    nextSweep = now + SWEEP_MILLIS;
+                }
+            }
+
+            catch (IOException | RuntimeException e) {
+                Log.error("[ERROR] - SERVER: Selector loop failed: {}", e.getMessage());
+            }
+        }
+
+        // Close every connection of the loop
+        for (SelectionKey key: selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+
+        try {
+            selector.close();
+        }
+
+        catch (IOException e) {
+            Log.error("[ERROR] - SERVER: Selector not closed: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package code.backend.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+
+
+/**
+ * Hashed timing wheel of the session expiries. A session is put into the
+ * slot of its deadline; when the wheel reaches the slot, the sessions whose
+ * deadline has passed are ended and the others, used again in the meantime
+ * or due in a later turn of the wheel, are put into the slot of their new
+ * deadline. Scheduling and each visit of a session cost O(1), and the
+ * requests sliding a deadline never touch the wheel.
+ *
+ * Each slot has its own lock, held only to add a session or take the slot.
+ */
+final class ExpiryWheel {
+
+
+    private final Slot[] slots;
+    private final int mask;
+    private final long tickMillis;
+
+    // Last tick processed, written by the ticker only
+    private volatile long processedTick;
+
+
+
+    private static final class Slot {
+
+        private List<Session> sessions = new ArrayList<>();
+
+        synchronized void add(Session session) {
+            sessions.add(session);
+        }
+
+        synchronized List<Session> takeAll() {
+            List<Session> taken = sessions;
+            sessions = new ArrayList<>();
+            return taken;
+        }
+    }
+
+
+
+    /**
+     * Creates wheel turning once per the span
+     *
+     * @param tickMillis Length of a tick
+     * @param spanMillis Deadlines within this span are due in the first turn
+     * @param now Current time in epoch milliseconds
+     */
+    ExpiryWheel(long tickMillis, long spanMillis, long now) {
+        int size = Integer.highestOneBit((int) Math.min(1 << 16, Math.max(64, spanMillis / tickMillis + 1)) * 2 - 1);
+
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+
+        this.mask = size - 1;
+        this.tickMillis = tickMillis;
+        this.processedTick = now / tickMillis;
+    }
+
+
+
+
+    /**
+     * Puts the session into the slot of its deadline
+     *
+     * @param session Session to schedule
+     * @param deadline Expiry time in epoch milliseconds
+     */
+    void schedule(Session session, long deadline) {
+        // Slots already processed wait for the next tick
+        long tick = Math.max(deadline / tickMillis, processedTick + 1);
+        slots[(int) (tick & mask)].add(session);
+    }
+
+
+    /**
+     * Takes the sessions of the ticks passed since the last call, each is
+     * handed to the visitor which ends it or schedules it again
+     *
+     * @param now Current time in epoch milliseconds
+     * @param visitor Receives the sessions of the processed slots
+     */
+    void advance(long now, Consumer<Session> visitor) {
+        long nowTick = now / tickMillis;
+        long tick = processedTick;
+
+        // After a long pause each slot is processed once
+        if (nowTick - tick > slots.length) {
+            tick = nowTick - slots.length;
+        }
+
+        while (tick < nowTick) {
+            tick++;
+            processedTick = tick;
+
+            for (Session session: slots[(int) (tick & mask)].takeAll()) {
+                if (!session.ended) {
+                    visitor.accept(session);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package code.backend.session;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import code.backend.Database;
+import code.backend.log.Log;
+
+
+
+/**
+ * Sessions of the logged users kept by the server. Looking a session up is a read of a
+ * concurrent map and, at most once a second per session, a write of its
+ * last use; no lock is taken. Expired sessions are ended by a timing wheel
+ * turned once a second by a background thread, and when they are looked up.
+ *
+ * With a database the sessions survive restarts. Changes are written behind
+ * in batches, one transaction per flush; the last use of a session is only
+ * written again once it has moved by a minute. After a restart nothing is
+ * read up front, a session is loaded on its first use, and only until the
+ * last stored session would have expired.
+ *
+ * Configured by the system properties:
+ *   memes.sessionIdleMinutes   - session ends after this long unused (default 30)
+ *   memes.sessionMaxHours      - session ends this long after the login (default 24)
+ *   memes.sessionsPerUser      - sessions one user may have, the oldest ends first (default 0, no limit)
+ *   memes.sessionFlushSeconds  - delay of the writes to the database (default 5)
+ */
+public final class ServerSessionStore implements SessionStore {
+
+
+    private final long idleMillis;
+    private final long maxAgeMillis;
+    private final int maxPerUser;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ArrayDeque<Session>> userSessions = new ConcurrentHashMap<>();
+    private final ExpiryWheel wheel;
+    private final ScheduledExecutorService ticker;
+
+    // Write-behind of the changes, NULL database keeps the sessions in memory only
+    private final Database database;
+    private final Set<Session> changed = ConcurrentHashMap.newKeySet();
+    private final Set<String> endedIds = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService writer;
+    private final long restoreUntil;
+
+    private static final long TICK_MILLIS = 1000;
+    private static final long STORE_ACCESS_MILLIS = 60_000;
+
+
+
+    /**
+     * Creates session store kept in memory only
+     */
+    public ServerSessionStore() {
+        this(null);
+    }
+
+
+    /**
+     * Creates session store using the limits of the system properties
+     *
+     * @param database Database the sessions are kept in over restarts, NULL to keep them in memory only
+     */
+    public ServerSessionStore(Database database) {
+        this(
+            TimeUnit.MINUTES.toMillis(Long.getLong("memes.sessionIdleMinutes", 30)),
+            TimeUnit.HOURS.toMillis(Long.getLong("memes.sessionMaxHours", 24)),
+            Integer.getInteger("memes.sessionsPerUser", 0),
+            database
+        );
+    }
+
+
+    /**
+     * Creates session store
+     *
+     * @param idleMillis Session ends after this long unused
+     * @param maxAgeMillis Session ends this long after the login
+     * @param maxPerUser Sessions one user may have, 0 for no limit
+     * @param database Database the sessions are kept in over restarts, NULL to keep them in memory only
+     */
+    public ServerSessionStore(long idleMillis, long maxAgeMillis, int maxPerUser, Database database) {
+        this.idleMillis = idleMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxPerUser = maxPerUser;
+        this.database = database;
+        this.wheel = new ExpiryWheel(TICK_MILLIS, Math.min(idleMillis, maxAgeMillis), System.currentTimeMillis());
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("session-expiry").daemon().factory());
+        ticker.scheduleWithFixedDelay(() -> wheel.advance(System.currentTimeMillis(), this::visit), TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (database == null) {
+            this.writer = null;
+            this.restoreUntil = 0;
+            return;
+        }
+
+        this.restoreUntil = deleteExpired();
+
+        long flushSeconds = Long.getLong("memes.sessionFlushSeconds", 5);
+        this.writer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("session-writer").daemon().factory());
+        writer.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        writer.scheduleWithFixedDelay(this::deleteExpired, 1, 1, TimeUnit.HOURS);
+
+        // Changes of the last seconds are written on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "session-shutdown"));
+    }
+
+
+
+
+// ▛                   ▜
+//    Session methods
+// ▙                   ▟
+
+
+
+    @Override
+    public String create(String username) {
+        long now = System.currentTimeMillis();
+        Session session = new Session(UUID.randomUUID().toString(), username, now, now + maxAgeMillis);
+
+        sessions.put(session.id, session);
+        register(session);
+        changed(session);
+
+        return session.id;
+    }
+
+
+    @Override
+    public String getUser(String sessionId) {
+        Session session = sessions.get(sessionId);
+
+        if (session == null) {
+            session = restore(sessionId);
+
+            if (session == null) {
+                return null;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (session.expiresAt(idleMillis) <= now) {
+            end(session);
+            return null;
+        }
+
+        if (session.touch(now) && database != null && now - session.storedAccess >= STORE_ACCESS_MILLIS) {
+            changed(session);
+        }
+
+        return session.username;
+    }
+
+
+    @Override
+    public void invalidate(String sessionId) {
+        Session session = sessions.get(sessionId);
+
+        if (session != null) {
+            end(session);
+        }
+
+        // Stored before the restart and not loaded since, it is deleted without loading it
+        else if (database != null && System.currentTimeMillis() < restoreUntil) {
+            endedIds.add(sessionId);
+        }
+    }
+
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+
+        if (writer != null) {
+            writer.shutdownNow();
+            flush();
+        }
+    }
+
+
+
+
+// ▛                  ▜
+//    Expiry methods
+// ▙                  ▟
+
+
+
+    /**
+     * Schedules the expiry of the session and ends the oldest sessions of its user over the limit
+     */
+    private void register(Session session) {
+        wheel.schedule(session, session.expiresAt(idleMillis));
+
+        if (maxPerUser <= 0) {
+            return;
+        }
+
+        userSessions.compute(session.username, (key, userQueue) -> {
+            ArrayDeque<Session> queue = (userQueue == null) ? new ArrayDeque<>() : userQueue;
+            queue.addLast(session);
+
+            while (queue.size() > maxPerUser) {
+                Session oldest = queue.pollFirst();
+                oldest.ended = true;
+
+                if (sessions.remove(oldest.id, oldest)) {
+                    ended(oldest);
+                }
+            }
+
+            return queue;
+        });
+    }
+
+
+    /**
+     * Ends the session reached by the wheel, or schedules it for its new deadline
+     */
+    private void visit(Session session) {
+        long deadline = session.expiresAt(idleMillis);
+
+        if (deadline <= System.currentTimeMillis()) {
+            end(session);
+        }
+
+        else {
+            wheel.schedule(session, deadline);
+        }
+    }
+
+
+    private void end(Session session) {
+        session.ended = true;
+
+        if (!sessions.remove(session.id, session)) {
+            return;
+        }
+
+        ended(session);
+
+        if (maxPerUser > 0) {
+            userSessions.computeIfPresent(session.username, (key, queue) -> {
+                queue.remove(session);
+                return queue.isEmpty() ? null : queue;
+            });
+        }
+    }
+
+
+
+
+// ▛                       ▜
+//    Persistence methods
+// ▙                       ▟
+
+
+
+    private void changed(Session session) {
+        if (database != null) {
+            changed.add(session);
+        }
+    }
+
+
+    private void ended(Session session) {
+        if (database != null) {
+            changed.remove(session);
+            endedIds.add(session.id);
+        }
+    }
+
+
+    /**
+     * Loads the session stored before the restart
+     *
+     * @param  sessionId Id of the session
+     * @return Loaded session, NULL if it isn't stored
+     */
+    private Session restore(String sessionId) {
+        if (database == null || System.currentTimeMillis() >= restoreUntil) {
+            return null;
+        }
+
+        // Ended, but not yet deleted from the database
+        if (endedIds.contains(sessionId)) {
+            return null;
+        }
+
+        SessionRecord stored;
+        try {
+            stored = database.getSession(sessionId);
+        }
+
+        catch (SQLException e) {
+            Log.error(ERROR_MESSAGE + "Session not loaded: {}", e.getMessage());
+            return null;
+        }
+
+        if (stored == null) {
+            return null;
+        }
+
+        Session session = new Session(stored.id(), stored.username(), stored.createdAt(), stored.createdAt() + maxAgeMillis);
+        session.lastAccess = stored.lastAccess();
+        session.storedAccess = stored.lastAccess();
+
+        // Another request may have loaded it first
+        Session loaded = sessions.putIfAbsent(sessionId, session);
+        if (loaded != null) {
+            return loaded;
+        }
+
+        register(session);
+        return session;
+    }
+
+
+    /**
+     * Writes the changes since the last flush in one transaction, failed
+     * changes are kept for the next flush
+     */
+    private synchronized void flush() {
+        List<SessionRecord> records = new ArrayList<>();
+        List<Session> flushed = new ArrayList<>();
+
+        // Taken off before reading, so a use racing the flush marks the session again
+        for (Iterator<Session> iterator = changed.iterator(); iterator.hasNext();) {
+            Session session = iterator.next();
+            iterator.remove();
+
+            if (!session.ended) {
+                records.add(session.toRecord());
+                flushed.add(session);
+            }
+        }
+
+        // Ended ids are kept until deleted, so they aren't restored from the database meanwhile
+        List<String> ended = new ArrayList<>(endedIds);
+
+        if (records.isEmpty() && ended.isEmpty()) {
+            return;
+        }
+
+        try {
+            database.saveSessions(records, ended);
+
+            for (int i = 0; i < records.size(); i++) {
+                flushed.get(i).storedAccess = records.get(i).lastAccess();
+            }
+
+            ended.forEach(endedIds::remove);
+        }
+
+        catch (SQLException | RuntimeException e) {
+            Log.error(ERROR_MESSAGE + "{} sessions not written: {}", records.size() + ended.size(), e.getMessage());
+
+            changed.addAll(flushed);
+        }
+    }
+
+
+    /**
+     * Deletes the expired sessions from the database
+     *
+     * @return Time the last stored session expires
+     */
+    private long deleteExpired() {
+        try {
+            return database.deleteExpiredSessions(System.currentTimeMillis(), idleMillis, maxAgeMillis);
+        }
+
+        catch (SQLException e) {
+            Log.error(ERROR_MESSAGE + "Expired sessions not deleted: {}", e.getMessage());
+            return 0;
+        }
+    }
+}
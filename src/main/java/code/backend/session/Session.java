@@ -0,0 +1,75 @@
+package code.backend.session;
+
+
+
+/**
+ * Login of one user. A session ends when it hasn't been used for the idle
+ * timeout or when its maximum age is reached, whichever comes first.
+ */
+final class Session {
+
+
+    final String id;
+    final String username;
+    final long createdAt;
+    final long absoluteExpiry;
+
+    // Written by the requests, at most once per TOUCH_MILLIS
+    volatile long lastAccess;
+    volatile boolean ended = false;
+
+    // Last use in the database, written by the session writer
+    volatile long storedAccess = 0;
+
+    private static final long TOUCH_MILLIS = 1000;
+
+
+
+    Session(String id, String username, long createdAt, long absoluteExpiry) {
+        this.id = id;
+        this.username = username;
+        this.createdAt = createdAt;
+        this.absoluteExpiry = absoluteExpiry;
+        this.lastAccess = createdAt;
+    }
+
+
+
+
+    /**
+     * Gets the time the session ends unless it is used again
+     *
+     * @param  idleMillis Idle timeout
+     * @return Expiry time in epoch milliseconds
+     */
+    long expiresAt(long idleMillis) {
+        return Math.min(lastAccess + idleMillis, absoluteExpiry);
+    }
+
+
+    /**
+     * Slides the idle timeout, skipped when the last use was just now so
+     * that busy sessions don't write their cache line on every request
+     *
+     * @param  now Current time in epoch milliseconds
+     * @return True if the last use was updated
+     */
+    boolean touch(long now) {
+        if (now - lastAccess >= TOUCH_MILLIS) {
+            lastAccess = now;
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Gets the session as it is kept in the database
+     *
+     * @return Record of the session
+     */
+    SessionRecord toRecord() {
+        return new SessionRecord(id, username, createdAt, lastAccess);
+    }
+}
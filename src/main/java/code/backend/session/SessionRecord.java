@@ -0,0 +1,13 @@
+package code.backend.session;
+
+
+
+/**
+ * Session as it is kept in the database
+ *
+ * @param id ID of the session, the value of the sessionId cookie
+ * @param username Username of the logged user
+ * @param createdAt Login time in milliseconds
+ * @param lastAccess Last use in milliseconds
+ */
+public record SessionRecord(String id, String username, long createdAt, long lastAccess) {}
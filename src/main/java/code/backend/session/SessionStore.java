@@ -0,0 +1,79 @@
+package code.backend.session;
+
+import code.backend.Database;
+
+
+
+/**
+ * Sessions of the logged users. The session id is sent to the user in the
+ * sessionId cookie and given back on every request.
+ *
+ * Available modes:
+ *   server - sessions are kept by this server and its database ({@link ServerSessionStore})
+ *   token  - the session id is a signed token checked without shared state,
+ *            so any server with the same key accepts it ({@link TokenSessionStore})
+ */
+public interface SessionStore {
+
+
+    static final String ERROR_MESSAGE = "[ERROR] - SESSIONS: ";
+
+
+
+
+    /**
+     * Creates session store of the given mode
+     *
+     * @param  mode Session mode (server or token)
+     * @param  database Database the server sessions are kept in over restarts, NULL to keep them in memory only
+     * @return Session store
+     * @throws IllegalArgumentException If the mode is unknown
+     */
+    static SessionStore create(String mode, Database database) {
+        switch (mode.toLowerCase()) {
+            case "server" -> {return new ServerSessionStore(database);}
+            case "token" -> {return new TokenSessionStore();}
+            default -> throw new IllegalArgumentException(ERROR_MESSAGE + "Unknown session mode \"" + mode + "\"");
+        }
+    }
+
+
+    /**
+     * Starts a session of the user
+     *
+     * @param  username Username of the logged user
+     * @return Id of the new session
+     */
+    String create(String username);
+
+
+    /**
+     * Gets the user of the session and slides its idle timeout, if the mode has one
+     *
+     * @param  sessionId Id of the session
+     * @return Username, NULL if there's no such session or it has expired
+     */
+    String getUser(String sessionId);
+
+
+    /**
+     * Ends the session
+     *
+     * @param sessionId Id of the session
+     */
+    void invalidate(String sessionId);
+
+
+    /**
+     * Gets the count of the sessions kept in memory, expired ones may be counted until they are removed
+     *
+     * @return Count of the sessions
+     */
+    int size();
+
+
+    /**
+     * Stops the background threads and writes the pending changes
+     */
+    void close();
+}
@@ -0,0 +1,260 @@
+package code.backend.session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Sessions carried by the users as signed tokens. Checking a token is a MAC
+ * computed on the calling thread and compared in constant time, nothing is
+ * looked up, so every server holding the same key accepts the tokens of the
+ * others. A token is
+ *
+ *   base64url(username) "." expiry "." nonce "." base64url(HMAC-SHA256 of the rest)
+ *
+ * Tokens don't slide, they end memes.sessionMaxHours after the login. Logged
+ * out tokens are kept in a revocation list by their nonce, only until they
+ * would have expired anyway. The list is local to the server.
+ *
+ * Configured by the system properties:
+ *   memes.sessionTokenKey - base64 HMAC key of at least 32 bytes, the same on every server
+ *                           (default random, the tokens end when the server restarts)
+ *   memes.sessionMaxHours - token ends this long after the login (default 24)
+ */
+public final class TokenSessionStore implements SessionStore {
+
+
+    private final SecretKeySpec key;
+    private final long maxAgeMillis;
+    private final ThreadLocal<Mac> macs;
+    private final SecureRandom random = new SecureRandom();
+
+    // Nonces of the logged out tokens and their expiry times
+    private final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MIN_KEY_BYTES = 32;
+    private static final int NONCE_BYTES = 9;
+    private static final long SWEEP_SECONDS = 60;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+
+
+    /**
+     * Creates token session store using the key and the lifetime of the system properties
+     */
+    public TokenSessionStore() {
+        this(readKey(), TimeUnit.HOURS.toMillis(Long.getLong("memes.sessionMaxHours", 24)));
+    }
+
+
+    /**
+     * Creates token session store
+     *
+     * @param key HMAC key of the tokens
+     * @param maxAgeMillis Token ends this long after the login
+     * @throws IllegalArgumentException If the key is shorter than 32 bytes
+     */
+    public TokenSessionStore(byte[] key, long maxAgeMillis) {
+        if (key.length < MIN_KEY_BYTES) {
+            throw new IllegalArgumentException(ERROR_MESSAGE + "Session token key must be at least " + MIN_KEY_BYTES + " bytes");
+        }
+
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.maxAgeMillis = maxAgeMillis;
+        this.macs = ThreadLocal.withInitial(this::createMac);
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("session-revocation").daemon().factory());
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+
+
+
+// ▛                   ▜
+//    Session methods
+// ▙                   ▟
+
+
+
+    @Override
+    public String create(String username) {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+
+        long expiry = System.currentTimeMillis() + maxAgeMillis;
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+            + "." + Long.toString(expiry, 36)
+            + "." + ENCODER.encodeToString(nonce);
+
+        return payload + "." + ENCODER.encodeToString(sign(payload, payload.length()));
+    }
+
+
+    @Override
+    public String getUser(String sessionId) {
+        Token token = verify(sessionId);
+
+        if (token == null || token.expiry() <= System.currentTimeMillis() || revoked.containsKey(token.nonce())) {
+            return null;
+        }
+
+        return token.username();
+    }
+
+
+    @Override
+    public void invalidate(String sessionId) {
+        Token token = verify(sessionId);
+
+        // Only the tokens still valid take space in the list
+        if (token != null && token.expiry() > System.currentTimeMillis()) {
+            revoked.put(token.nonce(), token.expiry());
+        }
+    }
+
+
+    @Override
+    public int size() {
+        // Tokens aren't kept by the server
+        return 0;
+    }
+
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+
+    /**
+     * Gets the count of the logged out tokens not expired yet
+     *
+     * @return Size of the revocation list
+     */
+    public int getRevoked() {
+        return revoked.size();
+    }
+
+
+
+
+// ▛                 ▜
+//    Token methods
+// ▙                 ▟
+
+
+
+    private record Token(String username, long expiry, String nonce) {}
+
+
+    /**
+     * Checks the signature of the token and splits it into its fields
+     *
+     * @param  sessionId Token given by the user
+     * @return Fields of the token, NULL if it isn't signed by the key
+     */
+    private Token verify(String sessionId) {
+        int signatureStart = sessionId.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return null;
+        }
+
+        try {
+            byte[] signature = DECODER.decode(sessionId.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(signature, sign(sessionId, signatureStart))) {
+                return null;
+            }
+
+            // Signed by the key, so the fields are the ones written by create
+            int usernameEnd = sessionId.indexOf('.');
+            int expiryEnd = sessionId.indexOf('.', usernameEnd + 1);
+
+            return new Token(
+                new String(DECODER.decode(sessionId.substring(0, usernameEnd)), StandardCharsets.UTF_8),
+                Long.parseLong(sessionId, usernameEnd + 1, expiryEnd, 36),
+                sessionId.substring(expiryEnd + 1, signatureStart)
+            );
+        }
+
+        catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Computes the MAC of the start of the token
+     *
+     * @param  token Token or its payload
+     * @param  length Length of the signed part
+     * @return MAC of the signed part
+     * @throws IllegalArgumentException If the signed part isn't ASCII
+     */
+    private byte[] sign(String token, int length) {
+        Mac mac = macs.get();
+
+        // Tokens are ASCII, any other character could sign the same as its low byte
+        for (int i = 0; i < length; i++) {
+            char character = token.charAt(i);
+
+            if (character > 0x7F) {
+                mac.reset();
+                throw new IllegalArgumentException(ERROR_MESSAGE + "Token isn't ASCII");
+            }
+
+            mac.update((byte) character);
+        }
+
+        return mac.doFinal();
+    }
+
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ERROR_MESSAGE + "HMAC not available: " + e.getMessage(), e);
+        }
+    }
+
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        revoked.values().removeIf(expiry -> expiry <= now);
+    }
+
+
+    private static byte[] readKey() {
+        String encoded = System.getProperty("memes.sessionTokenKey");
+
+        if (encoded != null) {
+            return Base64.getDecoder().decode(encoded);
+        }
+
+        Log.warn(ERROR_MESSAGE + "memes.sessionTokenKey not set, tokens are accepted by this server only until it restarts");
+
+        byte[] key = new byte[MIN_KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+}
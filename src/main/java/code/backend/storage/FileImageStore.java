@@ -0,0 +1,188 @@
+package code.backend.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+
+/**
+ * Image store keeping every image as its own file.
+ *
+ * Files are spread to two levels of directories by the first characters of
+ * the hash (memes/ab/cd/abcd....png), so no directory grows too large. Files
+ * of older flat stores are still found until {@link ImageStoreMigration} has
+ * moved them.
+ */
+public class FileImageStore implements ImageStore {
+
+
+    private final File directory;
+
+    private static final int SHARD_LEVELS = 2;
+    private static final int SHARD_WIDTH = 2;
+
+
+
+    /**
+     * Creates image store to the given directory
+     *
+     * @param directory Directory of the image files
+     */
+    public FileImageStore(File directory) {
+        this.directory = directory;
+
+        // Check the images directory
+        if (!directory.exists()) directory.mkdirs();
+    }
+
+
+
+
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+
+    /**
+     * Gets the image file with the given name. Files of the flat layout are
+     * returned until they are migrated.
+     *
+     * @param  fileName Name of the image file
+     * @return Image file (may not exist)
+     * @throws IllegalArgumentException If the name isn't a content-addressed file name
+     */
+    public File getFile(String fileName) {
+        File shardedFile = getShardedFile(fileName);
+        if (shardedFile.exists()) {
+            return shardedFile;
+        }
+
+        // Not yet migrated
+        File flatFile = new File(directory, fileName);
+        if (flatFile.exists()) {
+            return flatFile;
+        }
+
+        return shardedFile;
+    }
+
+
+    /**
+     * Gets the place of the image file in the sharded layout
+     *
+     * @param  fileName Name of the image file
+     * @return Image file (may not exist)
+     * @throws IllegalArgumentException If the name isn't a content-addressed file name
+     */
+    File getShardedFile(String fileName) {
+        if (!ImageStore.isValidFileName(fileName)) {
+            throw new IllegalArgumentException(ERROR_MESSAGE + "Invalid image file name");
+        }
+
+        // Directory of every level is named by the next characters of the hash
+        File shard = directory;
+        for (int level = 0; level < SHARD_LEVELS; level++) {
+            shard = new File(shard, fileName.substring(level * SHARD_WIDTH, (level + 1) * SHARD_WIDTH));
+        }
+
+        return new File(shard, fileName);
+    }
+
+
+    @Override
+    public boolean contains(String fileName) {
+        return getFile(fileName).exists();
+    }
+
+
+    @Override
+    public long size(String fileName) {
+        File imageFile = getFile(fileName);
+        return imageFile.exists() ? imageFile.length() : -1;
+    }
+
+
+    @Override
+    public boolean store(byte[] bytes, String fileName) throws IOException {
+
+        // Duplicate content costs no extra writes
+        if (contains(fileName)) {
+            return false;
+        }
+
+        // Write to temporary file first, so a partial file is never visible
+        Path temporary = createTemporaryFile();
+        try {
+            Files.write(temporary, bytes);
+        }
+
+        catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        return commit(temporary, fileName);
+    }
+
+
+    @Override
+    public boolean commit(Path temporary, String fileName) throws IOException {
+        try {
+
+            // Duplicate content costs no extra writes
+            if (contains(fileName)) {
+                return false;
+            }
+            File imageFile = getShardedFile(fileName);
+            imageFile.getParentFile().mkdirs();
+
+            // Flush the content to the disk before it becomes visible
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+
+            Files.move(temporary, imageFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+
+    @Override
+    public ImageStream open(String fileName) throws IOException {
+        FileInputStream input = new FileInputStream(getFile(fileName));
+
+        // Length of the opened file, a replaced file doesn't change it
+        try {
+            return new ImageStream(input, input.getChannel().size());
+        }
+
+        catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+
+    @Override
+    public void transferTo(String fileName, OutputStream output) throws IOException {
+        Files.copy(getFile(fileName).toPath(), output);
+    }
+
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        Files.deleteIfExists(getFile(fileName).toPath());
+    }
+}
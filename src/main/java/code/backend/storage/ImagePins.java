@@ -0,0 +1,123 @@
+package code.backend.storage;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import code.backend.Database;
+
+
+
+/**
+ * Pins of the image files committed for the memes being added. An uploaded
+ * image is committed to the store before its meme references it in the
+ * database, and an image with the same content may be losing its last
+ * reference at the same time. Pinned images are never deleted, and the
+ * images are only deleted by deleteIfUnused, which checks the pins and the
+ * references under the lock of the image, so a file can't be deleted under
+ * a meme about to reference it.
+ *
+ * The pins are taken before the commit and closed after the meme is added
+ * (or failed to be), then the failed images are deleted if unused.
+ */
+public final class ImagePins implements AutoCloseable {
+
+
+    private final List<String> hashes = new ArrayList<>();
+
+    // Pin counts by the image hash, and the locks of the hashes
+    private static final ConcurrentHashMap<String, Integer> PINNED = new ConcurrentHashMap<>();
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+
+
+
+    /**
+     * Pins the image until the pins are closed, must be called before the image is committed
+     *
+     * @param hash SHA-256 hash of the image
+     */
+    public void pin(String hash) {
+        ReentrantLock lock = lockOf(hash);
+
+        // Deletion checks the pins under the same lock
+        lock.lock();
+        try {
+            PINNED.merge(hash, 1, Integer::sum);
+        }
+
+        finally {
+            lock.unlock();
+        }
+
+        synchronized (hashes) {
+            hashes.add(hash);
+        }
+    }
+
+
+    /**
+     * Releases the pins, may be called more than once
+     */
+    @Override
+    public void close() {
+        synchronized (hashes) {
+            for (String hash: hashes) {
+                PINNED.computeIfPresent(hash, (key, count) -> (count > 1) ? count - 1 : null);
+            }
+
+            hashes.clear();
+        }
+    }
+
+
+
+
+    /**
+     * Deletes the image file if it isn't pinned and no meme references it
+     *
+     * @param  imageStore Storage of the image files
+     * @param  database Database holding the references
+     * @param  fileName Name of the image file (hash.type)
+     * @return Was the file deleted
+     */
+    public static boolean deleteIfUnused(ImageStore imageStore, Database database, String fileName) throws IOException, SQLException {
+        String hash = fileName.substring(0, fileName.indexOf('.'));
+        ReentrantLock lock = lockOf(hash);
+
+        // Pinning waits for the lock, and the images are pinned before they are referenced
+        lock.lock();
+        try {
+            if (PINNED.containsKey(hash) || database.isImageReferenced(hash)) {
+                return false;
+            }
+
+            imageStore.delete(fileName);
+            return true;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gets the lock of the image, shared with the stores writing the image
+     *
+     * @param  hash SHA-256 hash of the image
+     * @return Lock of the hash
+     */
+    static ReentrantLock lockOf(String hash) {
+        return LOCKS[Math.floorMod(hash.hashCode(), LOCKS.length)];
+    }
+}
@@ -0,0 +1,245 @@
+package code.backend.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+import code.backend.Database;
+import code.backend.log.Log;
+
+
+
+/**
+ * Content-addressed storage for the meme image files. Every image is named by
+ * the SHA-256 hash of its content (hash.png or hash.gif), so identical images
+ * are stored only once.
+ *
+ * Available modes:
+ *   file    - every image is its own file ({@link FileImageStore})
+ *   segment - images are appended to large segment files ({@link SegmentImageStore})
+ */
+public interface ImageStore {
+
+
+    static final String ERROR_MESSAGE = " - IMAGE_STORE: ";
+    static final String TEMPORARY_PREFIX = "upload-";
+    static final String TEMPORARY_SUFFIX = ".tmp";
+    static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]{64}\\.(png|gif)");
+
+
+
+
+    /**
+     * Creates image store of the given mode
+     *
+     * @param  mode Storage mode (file or segment)
+     * @param  directory Root directory of the store
+     * @return Image store
+     * @throws IllegalArgumentException If the mode is unknown
+     */
+    static ImageStore create(String mode, File directory) throws IOException {
+        switch (mode.toLowerCase()) {
+            case "file" -> {return new FileImageStore(directory);}
+            case "segment" -> {return SegmentImageStore.open(directory);}
+            default -> throw new IllegalArgumentException(ERROR_MESSAGE + "Unknown storage mode \"" + mode + "\"");
+        }
+    }
+
+
+    /**
+     * Creates new digest for hashing the image content
+     *
+     * @return SHA-256 message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ERROR_MESSAGE + "SHA-256 is not supported", e);
+        }
+    }
+
+
+    /**
+     * Gets the hash of the digest as hex string
+     *
+     * @param  digest Digest that has read the whole image
+     * @return Hash as hex string
+     */
+    static String toHex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+
+    /**
+     * Gets the file name of the image
+     *
+     * @param  hash SHA-256 hash of the image
+     * @param  type Type of the image (png or gif)
+     * @return File name of the image
+     */
+    static String fileName(String hash, String type) {
+        return hash + "." + type;
+    }
+
+
+    /**
+     * Checks is the name a valid content-addressed image file name (hash.png or hash.gif)
+     *
+     * @param  fileName Name of the image file
+     * @return Is the name valid
+     */
+    static boolean isValidFileName(String fileName) {
+        return fileName != null && FILE_NAME.matcher(fileName).matches();
+    }
+
+
+
+
+    /**
+     * Gets the root directory of the store
+     *
+     * @return Images directory
+     */
+    File getDirectory();
+
+
+    /**
+     * Checks is the image already stored
+     *
+     * @param  fileName Name of the image file
+     * @return Is the image stored
+     */
+    boolean contains(String fileName);
+
+
+    /**
+     * Gets the size of the stored image
+     *
+     * @param  fileName Name of the image file
+     * @return Size in bytes, -1 if the image isn't stored
+     */
+    long size(String fileName);
+
+
+    /**
+     * Stores the image, if the same content isn't already stored
+     *
+     * @param  bytes Content of the image
+     * @param  fileName Content-addressed name of the image file
+     * @return Was the image written (false if it was already stored)
+     */
+    boolean store(byte[] bytes, String fileName) throws IOException;
+
+
+    /**
+     * Stores the content of the temporary file, if the same content isn't
+     * already stored. The file is flushed to the disk before it becomes
+     * visible, and it's always removed.
+     *
+     * @param  temporary File created by {@link #createTemporaryFile()}
+     * @param  fileName Content-addressed name of the image file
+     * @return Was the image written (false if it was already stored)
+     */
+    boolean commit(Path temporary, String fileName) throws IOException;
+
+
+    /**
+     * Opens the stored image for reading
+     *
+     * @param  fileName Name of the image file
+     * @return Stream of the image content, knowing its length
+     * @throws java.io.FileNotFoundException If the image isn't stored
+     */
+    ImageStream open(String fileName) throws IOException;
+
+
+    /**
+     * Writes the stored image to the given stream
+     *
+     * @param  fileName Name of the image file
+     * @param  output Stream the image is written to
+     * @throws java.io.FileNotFoundException If the image isn't stored
+     */
+    void transferTo(String fileName, OutputStream output) throws IOException;
+
+
+    /**
+     * Deletes the stored image
+     *
+     * @param fileName Name of the image file
+     */
+    void delete(String fileName) throws IOException;
+
+
+
+
+    /**
+     * Creates temporary file next to the stored images, so committing it
+     * doesn't have to copy the content between file systems
+     *
+     * @return Empty temporary file
+     */
+    default Path createTemporaryFile() throws IOException {
+        return Files.createTempFile(getDirectory().toPath(), TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+    }
+
+
+    /**
+     * Deletes temporary files left by uploads that were interrupted by a shutdown
+     */
+    default void deleteTemporaryFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(getDirectory().toPath(), TEMPORARY_PREFIX + "*" + TEMPORARY_SUFFIX)) {
+            for (Path file: files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+
+    /**
+     * Moves image files saved by title by older versions (memes/title.png) into
+     * the store and links them to their memes
+     *
+     * @param database Database of the server
+     */
+    default void adoptLegacyFiles(Database database) throws SQLException, IOException {
+        for (String title: database.getMemesWithoutImage()) {
+
+            // Find the file saved by the title
+            String type = "png";
+            File legacyFile = new File(getDirectory(), title + ".png");
+            if (!legacyFile.exists()) {
+                type = "gif";
+                legacyFile = new File(getDirectory(), title + ".gif");
+            }
+
+            // No file to adopt
+            if (!legacyFile.exists()) {
+                Log.warn(ERROR_MESSAGE + "Image of the meme \"{}\" not found", title);
+                continue;
+            }
+
+            // Hash and store the file
+            byte[] bytes = Files.readAllBytes(legacyFile.toPath());
+            MessageDigest digest = newDigest();
+            digest.update(bytes);
+            String hash = toHex(digest);
+            store(bytes, fileName(hash, type));
+
+            // Link the meme to the stored file
+            database.setMemeImage(title, hash, type);
+            Files.delete(legacyFile.toPath());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package code.backend.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Moves the image files of a flat store (memes/hash.png) to the sharded layout
+ * (memes/ab/cd/hash.png). The store keeps finding files from both layouts, so
+ * the migration can run in the background while the server is serving images.
+ *
+ * Can also be run by hand: java code.backend.storage.ImageStoreMigration memes
+ */
+public class ImageStoreMigration implements Runnable {
+
+
+    private final FileImageStore imageStore;
+    private volatile int migrated = 0;
+
+    private static final String ERROR_MESSAGE = " - IMAGE_STORE_MIGRATION: ";
+
+
+
+    /**
+     * Creates migration for the given store
+     *
+     * @param imageStore Store to be migrated
+     */
+    public ImageStoreMigration(FileImageStore imageStore) {
+        this.imageStore = imageStore;
+    }
+
+
+
+
+    /**
+     * Starts the migration in a background thread
+     *
+     * @param  imageStore Store to be migrated
+     * @return Started migration thread
+     */
+    public static Thread startInBackground(FileImageStore imageStore) {
+        Thread thread = new Thread(new ImageStoreMigration(imageStore), "image-store-migration");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+
+        return thread;
+    }
+
+
+
+
+    @Override
+    public void run() {
+        Path directory = imageStore.getDirectory().toPath();
+
+        // Iterate the files in the root of the store
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{png,gif}")) {
+            for (Path flatFile: files) {
+                String fileName = flatFile.getFileName().toString();
+
+                // Files saved by title are adopted by the database on startup
+                if (!ImageStore.isValidFileName(fileName)) {
+                    continue;
+                }
+
+                migrate(flatFile, imageStore.getShardedFile(fileName));
+            }
+        }
+
+        catch (IOException e) {
+            Log.error(ERROR_MESSAGE + "{}", e.getMessage());
+        }
+
+        if (migrated > 0) {
+            Log.info("Image store migration moved {} files", migrated);
+        }
+    }
+
+
+    /**
+     * Moves the file to its sharded place. Readers find the file from one of the places at all times.
+     *
+     * @param flatFile File in the flat layout
+     * @param shardedFile Place of the file in the sharded layout
+     */
+    private void migrate(Path flatFile, File shardedFile) throws IOException {
+
+        // Same content already in place
+        if (shardedFile.exists()) {
+            Files.deleteIfExists(flatFile);
+            return;
+        }
+
+        shardedFile.getParentFile().mkdirs();
+        Files.move(flatFile, shardedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        migrated++;
+    }
+
+
+    /**
+     * Gets the count of the moved files
+     *
+     * @return Count of the moved files
+     */
+    public int getMigrated() {
+        return migrated;
+    }
+
+
+
+
+    /**
+     * Migrates the store in the given directory
+     *
+     * @param args Directory of the store
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("\n[ERROR]" + ERROR_MESSAGE + "Expected the directory of the image store.");
+        }
+
+        new ImageStoreMigration(new FileImageStore(new File(args[0]))).run();
+    }
+}
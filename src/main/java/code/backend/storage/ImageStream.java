@@ -0,0 +1,40 @@
+package code.backend.storage;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+
+
+/**
+ * Stream of an opened image that knows the length of the image. The length
+ * comes from the opened image itself, so it can't disagree with the content
+ * even if the image is deleted or replaced after opening.
+ */
+public final class ImageStream extends FilterInputStream {
+
+
+    private final long length;
+
+
+
+    /**
+     * Wraps the stream of the opened image
+     *
+     * @param input Stream of the image content
+     * @param length Length of the image in bytes
+     */
+    public ImageStream(InputStream input, long length) {
+        super(input);
+        this.length = length;
+    }
+
+
+    /**
+     * Gets the length of the image
+     *
+     * @return Length in bytes
+     */
+    public long length() {
+        return length;
+    }
+}
@@ -0,0 +1,836 @@
+package code.backend.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Image store appending the images to large segment files (memes/segments/).
+ * Small images don't each cost an inode, and serving them needs no open and
+ * close of a file.
+ *
+ * Every record of a segment is self-describing, so the in-memory index
+ * (segment, offset, length, checksum) is rebuilt by scanning the record
+ * headers on startup:
+ *
+ *   int magic | byte kind | short nameLength | name | int length | int crc32 | data
+ *
+ * Writes of one image are serialized by the lock of its hash, so an image is
+ * appended only once and its tombstone can't pass a newer record.
+ *
+ * Deletes append a tombstone record. Background compaction copies the live
+ * images of mostly dead segments to the active segment and removes the old
+ * segment file. Tombstones are dropped once no older segment has a record of
+ * their image left.
+ */
+public class SegmentImageStore implements ImageStore {
+
+
+    private final File directory;
+    private final Path segmentDirectory;
+    private final long maxSegmentSize;
+    private final double compactionRatio;
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final Object appendLock = new Object();
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private Segment activeSegment;
+
+    private static final int MAGIC = 0x4D454D45; // "MEME"
+    private static final byte IMAGE = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int FIXED_HEADER = Integer.BYTES + Byte.BYTES + Short.BYTES + Integer.BYTES + Integer.BYTES;
+
+
+
+    /**
+     * Segment file of the store
+     */
+    private static final class Segment {
+
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong size;
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        // Names of the images with a record in the segment, live or dead
+        private final Set<String> imageNames = ConcurrentHashMap.newKeySet();
+
+        // Open streams of the segment, plus one held by the store until the segment is compacted away
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        private Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = new AtomicLong(size);
+        }
+
+
+        /**
+         * Releases one user of the segment, the last one closes and removes the segment file
+         */
+        private void release() throws IOException {
+            if (users.decrementAndGet() == 0) {
+                channel.close();
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+
+    /**
+     * Place of the stored image
+     *
+     * @param segmentId ID of the segment holding the image
+     * @param recordOffset Offset of the record header in the segment
+     * @param recordLength Length of the whole record
+     * @param length Length of the image
+     * @param crc CRC32 checksum of the image
+     */
+    private record Entry(int segmentId, long recordOffset, int recordLength, int length, int crc) {
+
+        private long dataOffset() {
+            return recordOffset + recordLength - length;
+        }
+    }
+
+
+
+
+    /**
+     * Opens segment store to the given directory and starts its background compaction.
+     * Settings are read from the system properties:
+     *   memes.segmentSize       - maximum size of a segment in bytes (default 256 MB)
+     *   memes.compactionRatio   - dead share of a segment that triggers compaction (default 0.5)
+     *   memes.compactionMinutes - interval of the compaction (default 10, 0 disables)
+     *
+     * @param  directory Root directory of the store
+     * @return Opened store
+     */
+    public static SegmentImageStore open(File directory) throws IOException {
+        SegmentImageStore store = new SegmentImageStore(directory);
+
+        // Start the background compaction once the store is built
+        long compactionMinutes = Long.getLong("memes.compactionMinutes", 10);
+        if (compactionMinutes > 0) {
+            ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "segment-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(store::compact, compactionMinutes, compactionMinutes, TimeUnit.MINUTES);
+        }
+
+        return store;
+    }
+
+
+    private SegmentImageStore(File directory) throws IOException {
+        this.directory = directory;
+        this.segmentDirectory = new File(directory, "segments").toPath();
+        this.maxSegmentSize = Long.getLong("memes.segmentSize", 256L * 1024 * 1024);
+        this.compactionRatio = Double.parseDouble(System.getProperty("memes.compactionRatio", "0.5"));
+
+        Files.createDirectories(segmentDirectory);
+        loadSegments();
+    }
+
+
+
+
+// ▛                 ▜
+//    Segment files
+// ▙                 ▟
+
+
+
+    /**
+     * Opens all segments and rebuilds the index from their records
+     */
+    private void loadSegments() throws IOException {
+        TreeMap<Integer, Path> paths = new TreeMap<>();
+
+        // Find the segments in the order they were written
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDirectory, "segment-*.dat")) {
+            for (Path path: files) {
+                String name = path.getFileName().toString();
+                paths.put(Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length())), path);
+            }
+        }
+
+        // Scan every segment
+        for (Map.Entry<Integer, Path> path: paths.entrySet()) {
+            FileChannel channel = FileChannel.open(path.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path.getKey(), path.getValue(), channel, channel.size());
+            segments.put(segment.id, segment);
+            scan(segment);
+        }
+
+        // Continue appending to the newest segment
+        activeSegment = paths.isEmpty() ? createSegment(1) : segments.get(paths.lastKey());
+    }
+
+
+    /**
+     * Reads the record headers of the segment to the index. A record cut by a
+     * crash is truncated away.
+     *
+     * @param segment Segment to be scanned
+     */
+    private void scan(Segment segment) throws IOException {
+        long position = 0;
+        long size = segment.size.get();
+
+        while (position < size) {
+            Record record = readHeader(segment, position, size);
+
+            // Torn write at the end of the segment
+            if (record == null) {
+                Log.warn(ERROR_MESSAGE + "Truncating torn record of {} at {}", segment.path.getFileName(), position);
+                segment.channel.truncate(position);
+                segment.size.set(position);
+                break;
+            }
+
+            // Newer record of the same image replaces the older one
+            if (record.kind == IMAGE) {
+                markDead(index.put(record.name, record.entry));
+                segment.imageNames.add(record.name);
+            }
+
+            // Deleted image, the tombstone itself is dead too
+            else {
+                markDead(index.remove(record.name));
+                segment.deadBytes.addAndGet(record.entry.recordLength);
+            }
+
+            position += record.entry.recordLength;
+        }
+    }
+
+
+    /**
+     * Record header read from a segment
+     */
+    private record Record(byte kind, String name, Entry entry) {}
+
+
+    /**
+     * Reads the record header at the given position
+     *
+     * @param  segment Segment of the record
+     * @param  position Offset of the record
+     * @param  size Size of the segment
+     * @return Record, NULL if the record is incomplete or corrupted
+     */
+    private Record readHeader(Segment segment, long position, long size) throws IOException {
+        if (position + FIXED_HEADER > size) {
+            return null;
+        }
+
+        // Kind and name
+        ByteBuffer start = readFully(segment.channel, position, Integer.BYTES + Byte.BYTES + Short.BYTES);
+        if (start.getInt() != MAGIC) {
+            return null;
+        }
+        byte kind = start.get();
+        int nameLength = start.getShort();
+
+        // Rest of the header
+        if (nameLength < 0 || position + FIXED_HEADER + nameLength > size) {
+            return null;
+        }
+        ByteBuffer rest = readFully(segment.channel, position + start.capacity(), nameLength + 2 * Integer.BYTES);
+        byte[] name = new byte[nameLength];
+        rest.get(name);
+        int length = rest.getInt();
+        int crc = rest.getInt();
+
+        // Image data must be complete
+        int recordLength = FIXED_HEADER + nameLength + length;
+        if (length < 0 || position + recordLength > size) {
+            return null;
+        }
+
+        Entry entry = new Entry(segment.id, position, recordLength, length, crc);
+        return new Record(kind, new String(name, StandardCharsets.UTF_8), entry);
+    }
+
+
+    /**
+     * Creates new empty segment
+     *
+     * @param  id ID of the segment
+     * @return Created segment
+     */
+    private Segment createSegment(int id) throws IOException {
+        Path path = segmentDirectory.resolve(String.format("segment-%06d.dat", id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Segment segment = new Segment(id, path, channel, 0);
+        segments.put(id, segment);
+
+        return segment;
+    }
+
+
+    /**
+     * Appends the record to the active segment
+     *
+     * @param  kind Kind of the record (image or tombstone)
+     * @param  fileName Name of the image
+     * @param  bytes Content of the image (empty for tombstones)
+     * @return Place of the appended record
+     */
+    private Entry append(byte kind, String fileName, byte[] bytes) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        // Build the record
+        ByteBuffer header = header(kind, fileName, bytes.length, (int) crc.getValue());
+        int recordLength = header.remaining() + bytes.length;
+        ByteBuffer record = ByteBuffer.allocate(recordLength).put(header).put(bytes).flip();
+
+        synchronized (appendLock) {
+            Segment segment = reserve(recordLength);
+
+            // Write the record durably
+            long position = segment.size.get();
+            long written = position;
+            while (record.hasRemaining()) {
+                written += segment.channel.write(record, written);
+            }
+            segment.channel.force(false);
+            segment.size.set(written);
+
+            if (kind == IMAGE) {
+                segment.imageNames.add(fileName);
+            }
+
+            return new Entry(segment.id, position, recordLength, bytes.length, (int) crc.getValue());
+        }
+    }
+
+
+    /**
+     * Appends image record whose content is copied from the file, without reading it to the heap
+     *
+     * @param  fileName Name of the image
+     * @param  file File holding the content of the image
+     * @return Place of the appended record
+     */
+    private Entry append(String fileName, Path file) throws IOException {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            if (size > Integer.MAX_VALUE - FIXED_HEADER - Short.MAX_VALUE) {
+                throw new IOException(ERROR_MESSAGE + "Image is too large for a segment");
+            }
+            int length = (int) size;
+
+            // Build the header
+            int crc = checksum(source);
+            ByteBuffer header = header(IMAGE, fileName, length, crc);
+            int recordLength = header.remaining() + length;
+
+            synchronized (appendLock) {
+                Segment segment = reserve(recordLength);
+
+                // Write the header
+                long position = segment.size.get();
+                long written = position;
+                while (header.hasRemaining()) {
+                    written += segment.channel.write(header, written);
+                }
+
+                // Copy the content from file to file
+                source.position(0);
+                for (long copied = 0; copied < length;) {
+                    long transferred = segment.channel.transferFrom(source, written, length - copied);
+                    if (transferred <= 0) {
+                        throw new EOFException(ERROR_MESSAGE + "Image file ended while appending");
+                    }
+                    copied += transferred;
+                    written += transferred;
+                }
+
+                segment.channel.force(false);
+                segment.size.set(written);
+                segment.imageNames.add(fileName);
+
+                return new Entry(segment.id, position, recordLength, length, crc);
+            }
+        }
+    }
+
+
+    /**
+     * Builds the header of a record
+     *
+     * @param  kind Kind of the record (image or tombstone)
+     * @param  fileName Name of the image
+     * @param  length Length of the content
+     * @param  crc CRC32 of the content
+     * @return Header ready for writing
+     */
+    private static ByteBuffer header(byte kind, String fileName, int length, int crc) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER + name.length);
+        header.putInt(MAGIC).put(kind).putShort((short) name.length).put(name);
+        header.putInt(length).putInt(crc);
+
+        return header.flip();
+    }
+
+
+    /**
+     * Gets the segment the record is appended to. A full segment is sealed and
+     * a new one started. Must be called holding the append lock.
+     *
+     * @param  recordLength Length of the record
+     * @return Active segment
+     */
+    private Segment reserve(int recordLength) throws IOException {
+        if (activeSegment.size.get() > 0 && activeSegment.size.get() + recordLength > maxSegmentSize) {
+            activeSegment = createSegment(activeSegment.id + 1);
+        }
+
+        return activeSegment;
+    }
+
+
+    /**
+     * Calculates the CRC32 of the whole file
+     *
+     * @param  channel Channel of the file
+     * @return Checksum of the content
+     */
+    private static int checksum(FileChannel channel) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            position += read;
+            crc.update(buffer.flip());
+            buffer.clear();
+        }
+
+        return (int) crc.getValue();
+    }
+
+
+    /**
+     * Marks the record of the replaced or deleted image dead
+     *
+     * @param entry Place of the record, NULL does nothing
+     */
+    private void markDead(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+
+        Segment segment = segments.get(entry.segmentId);
+        if (segment != null) {
+            segment.deadBytes.addAndGet(entry.recordLength);
+        }
+    }
+
+
+    /**
+     * Reads the given range of the channel using positional reads
+     *
+     * @param  channel Channel of the segment
+     * @param  position Start of the range
+     * @param  length Length of the range
+     * @return Buffer holding the range, ready for reading
+     */
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException(ERROR_MESSAGE + "Unexpected end of segment");
+            }
+        }
+
+        return buffer.flip();
+    }
+
+
+
+
+// ▛                  ▜
+//    Store methods
+// ▙                  ▟
+
+
+
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+
+    @Override
+    public boolean contains(String fileName) {
+        return index.containsKey(fileName);
+    }
+
+
+    @Override
+    public long size(String fileName) {
+        Entry entry = index.get(fileName);
+        return (entry == null) ? -1 : entry.length;
+    }
+
+
+    @Override
+    public boolean store(byte[] bytes, String fileName) throws IOException {
+        if (!ImageStore.isValidFileName(fileName)) {
+            throw new IllegalArgumentException(ERROR_MESSAGE + "Invalid image file name");
+        }
+
+        ReentrantLock lock = lockOf(fileName);
+        lock.lock();
+
+        try {
+
+            // Duplicate content costs no extra writes
+            if (index.containsKey(fileName)) {
+                return false;
+            }
+
+            index.put(fileName, append(IMAGE, fileName, bytes));
+            return true;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public boolean commit(Path temporary, String fileName) throws IOException {
+        if (!ImageStore.isValidFileName(fileName)) {
+            Files.deleteIfExists(temporary);
+            throw new IllegalArgumentException(ERROR_MESSAGE + "Invalid image file name");
+        }
+
+        ReentrantLock lock = lockOf(fileName);
+        lock.lock();
+
+        try {
+
+            // Duplicate content costs no extra writes
+            if (index.containsKey(fileName)) {
+                return false;
+            }
+
+            index.put(fileName, append(fileName, temporary));
+            return true;
+        }
+
+        finally {
+            lock.unlock();
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+
+    @Override
+    public ImageStream open(String fileName) throws IOException {
+        segmentLock.readLock().lock();
+
+        try {
+            Entry entry = index.get(fileName);
+            if (entry == null) {
+                throw new FileNotFoundException("Meme file not found");
+            }
+
+            // Segment stays open until the stream is closed, even if it's compacted meanwhile
+            Segment segment = segments.get(entry.segmentId);
+            segment.users.incrementAndGet();
+
+            return new ImageStream(new SegmentInputStream(segment, entry, fileName), entry.length);
+        }
+
+        finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public void transferTo(String fileName, OutputStream output) throws IOException {
+        try (InputStream input = open(fileName)) {
+            input.transferTo(output);
+        }
+    }
+
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        ReentrantLock lock = lockOf(fileName);
+        lock.lock();
+
+        try {
+            Entry entry = index.remove(fileName);
+            if (entry == null) {
+                return;
+            }
+
+            // Tombstone keeps the image deleted after restart
+            Entry tombstone = append(TOMBSTONE, fileName, new byte[0]);
+            markDead(entry);
+            markDead(tombstone);
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gets the lock serializing the writes of the image
+     *
+     * @param  fileName Name of the image file (hash.type)
+     * @return Lock of the image hash
+     */
+    private static ReentrantLock lockOf(String fileName) {
+        return ImagePins.lockOf(fileName.substring(0, fileName.indexOf('.')));
+    }
+
+
+
+
+// ▛              ▜
+//    Compaction
+// ▙              ▟
+
+
+
+    /**
+     * Compacts every sealed segment whose dead share exceeds the compaction ratio
+     */
+    public void compact() {
+        List<Segment> candidates = new ArrayList<>();
+
+        // Find the mostly dead sealed segments
+        synchronized (appendLock) {
+            for (Segment segment: segments.values()) {
+                if (segment != activeSegment && segment.deadBytes.get() >= segment.size.get() * compactionRatio) {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        for (Segment segment: candidates) {
+            try {
+                compact(segment);
+            }
+
+            catch (IOException e) {
+                Log.error(ERROR_MESSAGE + "Compaction of {} failed: {}", segment.path.getFileName(), e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Copies the live records of the segment to the active segment and removes the segment
+     *
+     * @param segment Sealed segment to be compacted
+     */
+    private void compact(Segment segment) throws IOException {
+        long position = 0;
+        long size = segment.size.get();
+        long reclaimed = size;
+
+        while (position < size) {
+            Record record = readHeader(segment, position, size);
+            if (record == null) {
+                break;
+            }
+            position += record.entry.recordLength;
+
+            // Image can't be stored or deleted while its record is copied
+            ReentrantLock lock = lockOf(record.name);
+            lock.lock();
+
+            try {
+
+                // Copy live images
+                if (record.kind == IMAGE && record.entry.equals(index.get(record.name))) {
+                    byte[] bytes = readFully(segment.channel, record.entry.dataOffset(), record.entry.length).array();
+                    Entry copy = append(IMAGE, record.name, bytes);
+                    index.put(record.name, copy);
+                    reclaimed -= copy.recordLength;
+                }
+
+                // Keep tombstones that still hide older records of a deleted image
+                else if (record.kind == TOMBSTONE && !index.containsKey(record.name) && hasOlderImage(record.name, segment.id)) {
+                    markDead(append(TOMBSTONE, record.name, new byte[0]));
+                }
+            }
+
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // Hide the segment from new readers, the open streams keep it until they are closed
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+        }
+
+        finally {
+            segmentLock.writeLock().unlock();
+        }
+        segment.release();
+
+        Log.info("Compacted {}, reclaimed {} bytes", segment.path.getFileName(), Math.max(0, reclaimed));
+    }
+
+
+    /**
+     * Checks if a segment older than the given one has a record of the image.
+     * A tombstone is needed only while such a record is left to hide.
+     *
+     * @param  fileName Name of the image
+     * @param  segmentId ID of the segment holding the tombstone
+     * @return Is an older record left
+     */
+    private boolean hasOlderImage(String fileName, int segmentId) {
+        for (Segment segment: segments.values()) {
+            if (segment.id < segmentId && segment.imageNames.contains(fileName)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+
+
+// ▛                    ▜
+//    Segment streams
+// ▙                    ▟
+
+
+
+    /**
+     * Stream of one image record, read with positional reads straight from the
+     * segment. The checksum is updated while reading, and the read reaching the
+     * end of the image fails if the content doesn't match it.
+     */
+    private static final class SegmentInputStream extends InputStream {
+
+        private final Segment segment;
+        private final String fileName;
+        private final int expectedCrc;
+        private final long end;
+        private final CRC32 crc = new CRC32();
+        private long position;
+        private boolean closed;
+
+        private SegmentInputStream(Segment segment, Entry entry, String fileName) {
+            this.segment = segment;
+            this.fileName = fileName;
+            this.expectedCrc = entry.crc;
+            this.position = entry.dataOffset();
+            this.end = entry.dataOffset() + entry.length;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xFF;
+        }
+
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException(ERROR_MESSAGE + "Stream closed");
+            }
+            if (position >= end) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+
+            // Read the next part of the image
+            int count = (int) Math.min(length, end - position);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, count);
+            while (buffer.hasRemaining()) {
+                if (segment.channel.read(buffer, position + buffer.position() - offset) < 0) {
+                    throw new EOFException(ERROR_MESSAGE + "Unexpected end of segment");
+                }
+            }
+            crc.update(bytes, offset, count);
+            position += count;
+
+            // Check the content once all of it is read
+            if (position == end && (int) crc.getValue() != expectedCrc) {
+                throw new IOException(ERROR_MESSAGE + "Checksum mismatch of " + fileName);
+            }
+
+            return count;
+        }
+
+
+        @Override
+        public int available() {
+            return (int) Math.min(end - position, Integer.MAX_VALUE);
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                segment.release();
+            }
+        }
+    }
+}
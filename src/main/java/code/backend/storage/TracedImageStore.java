@@ -0,0 +1,162 @@
+package code.backend.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+import code.backend.trace.Tracer;
+
+
+
+/**
+ * Image store recording each file operation to the trace of the request
+ */
+public final class TracedImageStore implements ImageStore {
+
+
+    private final ImageStore store;
+
+
+
+    private TracedImageStore(ImageStore store) {
+        this.store = store;
+    }
+
+
+    /**
+     * Wraps the store to trace its file operations
+     *
+     * @param  store Storage of the meme image files
+     * @return Traced store, the store itself if tracing is off
+     */
+    public static ImageStore wrap(ImageStore store) {
+        return Tracer.isEnabled() ? new TracedImageStore(store) : store;
+    }
+
+
+
+
+    @Override
+    public File getDirectory() {
+        return store.getDirectory();
+    }
+
+
+    @Override
+    public boolean contains(String fileName) {
+        long start = System.nanoTime();
+
+        try {
+            return store.contains(fileName);
+        }
+
+        finally {
+            Tracer.span("ImageStore.contains", start);
+        }
+    }
+
+
+    @Override
+    public long size(String fileName) {
+        long start = System.nanoTime();
+
+        try {
+            return store.size(fileName);
+        }
+
+        finally {
+            Tracer.span("ImageStore.size", start);
+        }
+    }
+
+
+    @Override
+    public boolean store(byte[] bytes, String fileName) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return store.store(bytes, fileName);
+        }
+
+        finally {
+            Tracer.span("ImageStore.store", start);
+        }
+    }
+
+
+    @Override
+    public boolean commit(Path temporary, String fileName) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return store.commit(temporary, fileName);
+        }
+
+        finally {
+            Tracer.span("ImageStore.commit", start);
+        }
+    }
+
+
+    @Override
+    public ImageStream open(String fileName) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return store.open(fileName);
+        }
+
+        finally {
+            Tracer.span("ImageStore.open", start);
+        }
+    }
+
+
+    @Override
+    public void transferTo(String fileName, OutputStream output) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            store.transferTo(fileName, output);
+        }
+
+        finally {
+            Tracer.span("ImageStore.transferTo", start);
+        }
+    }
+
+
+    @Override
+    public void delete(String fileName) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            store.delete(fileName);
+        }
+
+        finally {
+            Tracer.span("ImageStore.delete", start);
+        }
+    }
+
+
+    @Override
+    public Path createTemporaryFile() throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return store.createTemporaryFile();
+        }
+
+        finally {
+            Tracer.span("ImageStore.createTemporaryFile", start);
+        }
+    }
+
+
+    @Override
+    public void deleteTemporaryFiles() throws IOException {
+        store.deleteTemporaryFiles();
+    }
+}
@@ -0,0 +1,109 @@
+package code.backend.trace;
+
+import java.time.Instant;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+
+
+/**
+ * Spans recorded during one sampled request. A trace is filled by the thread
+ * of its request only and is read after it has been finished.
+ */
+public final class Trace {
+
+
+    private final String id;
+    private final String name;
+    private final long startMillis;
+    private final long startNanos;
+    private long endNanos = 0;
+    private int statusCode = -1;
+
+    // Spans in the order they ended
+    private final String[] spanNames = new String[MAX_SPANS];
+    private final long[] spanStarts = new long[MAX_SPANS];
+    private final long[] spanEnds = new long[MAX_SPANS];
+    private int spanCount = 0;
+    private int droppedSpans = 0;
+
+    private static final int MAX_SPANS = 256;
+
+
+
+    Trace(String id, String name) {
+        this.id = id;
+        this.name = name;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+
+
+
+    /**
+     * Gets the id sent to the client in the X-Trace-Id header
+     *
+     * @return Id of the trace as 16 hex digits
+     */
+    public String getId() {
+        return id;
+    }
+
+
+    /**
+     * Gets the length of the finished trace
+     *
+     * @return Duration in nanoseconds
+     */
+    public long getDurationNanos() {
+        return endNanos - startNanos;
+    }
+
+
+    void addSpan(String spanName, long start, long end) {
+        if (spanCount == MAX_SPANS) {
+            droppedSpans++;
+            return;
+        }
+
+        spanNames[spanCount] = spanName;
+        spanStarts[spanCount] = start;
+        spanEnds[spanCount] = end;
+        spanCount++;
+    }
+
+
+    void finish(int statusCode) {
+        this.statusCode = statusCode;
+        this.endNanos = System.nanoTime();
+    }
+
+
+    /**
+     * Converts the trace to JSON, times are in microseconds from the start of the request
+     *
+     * @return Trace as JSON object
+     */
+    public JSONObject toJSON() {
+        JSONArray spans = new JSONArray();
+        for (int i = 0; i < spanCount; i++) {
+            spans.put(new JSONObject()
+                .put("name", spanNames[i])
+                .put("start", (spanStarts[i] - startNanos) / 1000)
+                .put("duration", (spanEnds[i] - spanStarts[i]) / 1000)
+            );
+        }
+
+        return new JSONObject()
+            .put("id", id)
+            .put("name", name)
+            .put("status", statusCode)
+            .put("time", Instant.ofEpochMilli(startMillis).toString())
+            .put("duration", getDurationNanos() / 1000)
+            .put("spans", spans)
+            .put("droppedSpans", droppedSpans)
+        ;
+    }
+}
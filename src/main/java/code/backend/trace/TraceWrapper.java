@@ -0,0 +1,51 @@
+package code.backend.trace;
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+
+
+/**
+ * Starts a trace for the sampled requests of the wrapped handler. The id of
+ * the trace is sent to the client in the X-Trace-Id header.
+ */
+public class TraceWrapper implements HttpHandler {
+
+
+    private final HttpHandler nextHandler;
+
+
+
+    /**
+     * Creates trace wrapper for the given HTTP handler
+     *
+     * @param nextHandler HTTP handler to be wrapped
+     */
+    public TraceWrapper(HttpHandler nextHandler) {
+        this.nextHandler = nextHandler;
+    }
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Trace trace = Tracer.begin(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+
+        if (trace == null) {
+            nextHandler.handle(exchange);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("X-Trace-Id", trace.getId());
+
+        try {
+            nextHandler.handle(exchange);
+        }
+
+        finally {
+            Tracer.end(trace, exchange.getResponseCode());
+        }
+    }
+}
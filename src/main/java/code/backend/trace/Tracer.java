@@ -0,0 +1,155 @@
+package code.backend.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * In-process tracing of sampled requests. A trace is bound to the thread of
+ * its request, spans are recorded to it when a stage ends with the time the
+ * stage started. Finished traces are kept in a ring of the latest ones and
+ * may be appended to a file as JSON lines.
+ *
+ * With sampling off span() is a check of a constant, so the calls may stay
+ * in the hot paths.
+ *
+ * Configured by the system properties:
+ *   memes.traceSampleRate - share of the traced requests from 0 to 1 (default 0, tracing is off)
+ *   memes.traceBufferSize - count of the latest traces kept in memory (default 256)
+ *   memes.traceFile       - file the finished traces are appended to (default none)
+ */
+public final class Tracer {
+
+
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("memes.traceSampleRate", "0"));
+    private static final boolean ENABLED = SAMPLE_RATE > 0;
+
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    private static final AtomicReferenceArray<Trace> RING = new AtomicReferenceArray<>(Integer.getInteger("memes.traceBufferSize", 256));
+    private static final AtomicLong FINISHED = new AtomicLong();
+
+    private static final String FILE = System.getProperty("memes.traceFile");
+    private static final ExecutorService FILE_WRITER = (ENABLED && FILE != null)
+        ? Executors.newSingleThreadExecutor(Thread.ofPlatform().name("trace-writer").daemon().factory())
+        : null
+    ;
+
+
+
+    private Tracer() {}
+
+
+
+
+    /**
+     * Checks if the requests are sampled at all
+     *
+     * @return True if tracing is on
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+
+    /**
+     * Starts the trace of the request on the current thread, if the request is sampled
+     *
+     * @param  method Method of the request
+     * @param  path Path of the request
+     * @return Started trace, NULL if the request isn't sampled
+     */
+    public static Trace begin(String method, String path) {
+        if (!ENABLED || ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE) {
+            return null;
+        }
+
+        Trace trace = new Trace(String.format("%016x", ThreadLocalRandom.current().nextLong()), method + " " + path);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+
+    /**
+     * Records a stage of the traced request running on the current thread
+     *
+     * @param name Name of the stage
+     * @param start Value of System.nanoTime() at the start of the stage
+     */
+    public static void span(String name, long start) {
+        if (!ENABLED) {
+            return;
+        }
+
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.addSpan(name, start, System.nanoTime());
+        }
+    }
+
+
+    /**
+     * Ends the trace and stores it
+     *
+     * @param trace Trace returned by begin()
+     * @param statusCode Status code of the response
+     */
+    public static void end(Trace trace, int statusCode) {
+        CURRENT.remove();
+        trace.finish(statusCode);
+
+        // Latest traces overwrite the oldest
+        RING.set((int) (FINISHED.getAndIncrement() % RING.length()), trace);
+
+        if (FILE_WRITER != null) {
+            FILE_WRITER.execute(() -> append(trace));
+        }
+    }
+
+
+    /**
+     * Gets the kept traces, the latest first
+     *
+     * @param  minimumMillis Traces shorter than this are left out
+     * @return Traces as JSON array
+     */
+    public static JSONArray getTraces(long minimumMillis) {
+        JSONArray traces = new JSONArray();
+        long last = FINISHED.get();
+
+        for (long i = last - 1; i >= Math.max(0, last - RING.length()); i--) {
+            Trace trace = RING.get((int) (i % RING.length()));
+
+            if (trace != null && trace.getDurationNanos() >= minimumMillis * 1_000_000) {
+                traces.put(trace.toJSON());
+            }
+        }
+
+        return traces;
+    }
+
+
+    private static void append(Trace trace) {
+        try (Writer writer = Files.newBufferedWriter(Path.of(FILE), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(trace.toJSON().toString());
+            writer.write('\n');
+        }
+
+        catch (IOException e) {
+            Log.error("[ERROR] - TRACE: Trace not written to {}: {}", FILE, e.getMessage());
+        }
+    }
+}
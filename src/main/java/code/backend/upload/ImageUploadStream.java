@@ -0,0 +1,73 @@
+package code.backend.upload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import code.backend.image.ImageHeaderParser;
+import code.backend.image.ImageInfo;
+import code.backend.storage.ImageStore;
+
+
+
+/**
+ * Output stream the uploaded image part is written through on its way to the
+ * disk. Hashes the content, enforces the size limit and parses the image
+ * headers as the bytes arrive, so invalid uploads and decompression bombs are
+ * rejected without decoding them.
+ */
+public class ImageUploadStream extends LimitedOutputStream {
+
+
+    private final MessageDigest digest = ImageStore.newDigest();
+    private final ImageHeaderParser parser = new ImageHeaderParser();
+
+
+
+    /**
+     * Creates the upload stream
+     *
+     * @param output Stream of the temporary file
+     * @param maxBytes Maximum size of the image
+     */
+    public ImageUploadStream(OutputStream output, long maxBytes) {
+        super(output, maxBytes);
+    }
+
+
+
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+
+        // Enforce the size limit and write
+        super.write(bytes, offset, length);
+
+        // Check the structure of the image
+        parser.update(bytes, offset, length);
+        digest.update(bytes, offset, length);
+    }
+
+
+
+
+    /**
+     * Gets the type, dimensions and frame count of the uploaded image. Call after the whole image is written.
+     *
+     * @return Information of the image
+     * @throws IllegalArgumentException If the upload ended before the image
+     */
+    public ImageInfo getImageInfo() {
+        return parser.finish();
+    }
+
+
+    /**
+     * Gets the SHA-256 hash of the uploaded image. Call only once, after the whole image is written.
+     *
+     * @return Hash as hex string
+     */
+    public String getHash() {
+        return ImageStore.toHex(digest);
+    }
+}
@@ -0,0 +1,68 @@
+package code.backend.upload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/**
+ * Input stream that fails as soon as more than the allowed count of bytes is read
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+
+    private final long maxBytes;
+    private long count = 0;
+
+
+
+    /**
+     * Creates size limited stream
+     *
+     * @param input Stream to be limited
+     * @param maxBytes Maximum count of bytes
+     */
+    public LimitedInputStream(InputStream input, long maxBytes) {
+        super(input);
+        this.maxBytes = maxBytes;
+    }
+
+
+
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) count(1);
+
+        return b;
+    }
+
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int read = super.read(bytes, offset, length);
+        if (read > 0) count(read);
+
+        return read;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+
+        return skipped;
+    }
+
+
+    private void count(long read) throws UploadTooLargeException {
+        count += read;
+
+        if (count > maxBytes) {
+            throw new UploadTooLargeException(": Request is larger than " + maxBytes + " bytes");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package code.backend.upload;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+
+/**
+ * Output stream that fails as soon as more than the allowed count of bytes is written
+ */
+public class LimitedOutputStream extends FilterOutputStream {
+
+
+    private final long maxBytes;
+    private long count = 0;
+
+
+
+    /**
+     * Creates size limited stream
+     *
+     * @param output Stream to be limited
+     * @param maxBytes Maximum count of bytes
+     */
+    public LimitedOutputStream(OutputStream output, long maxBytes) {
+        super(output);
+        this.maxBytes = maxBytes;
+    }
+
+
+
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        count += length;
+
+        if (count > maxBytes) {
+            throw new UploadTooLargeException(": Part is larger than " + maxBytes + " bytes");
+        }
+
+        out.write(bytes, offset, length);
+    }
+
+
+    /**
+     * Gets the count of the written bytes
+     *
+     * @return Count of the bytes
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,245 @@
+package code.backend.upload;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+
+
+
+/**
+ * Admission control of the uploads. Limits the count of uploads running at
+ * once and the bytes they may hold in flight. Uploads that don't fit wait in
+ * a short queue; when the queue is full, or the wait runs out, the upload is
+ * rejected at once, so a burst of uploads can't starve the other requests.
+ *
+ * Limits are read from the system properties:
+ *   memes.uploadConcurrency - uploads running at once (default count of the processors)
+ *   memes.uploadByteBudget  - bytes of the running uploads (default 256 MB)
+ *   memes.uploadQueue       - uploads waiting for admission (default 16)
+ *   memes.uploadQueueMillis - maximum wait for admission (default 2000)
+ */
+public class UploadAdmission {
+
+
+    private final int maxConcurrent;
+    private final long maxBytes;
+    private final int queueCapacity;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition released = lock.newCondition();
+    private int active = 0;
+    private long activeBytes = 0;
+    private int queued = 0;
+
+    // Statistics
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalUploadNanos = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private volatile long averageUploadNanos = 0;
+
+    private static final long MAX_RETRY_AFTER = 60;
+
+
+
+    /**
+     * Permit of an admitted upload, closing it releases its share of the limits
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final long bytes;
+        private final long admittedAt = System.nanoTime();
+        private boolean closed = false;
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            release(this);
+        }
+    }
+
+
+
+
+    /**
+     * Creates admission control using the limits of the system properties
+     */
+    public UploadAdmission() {
+        this(
+            Integer.getInteger("memes.uploadConcurrency", Runtime.getRuntime().availableProcessors()),
+            Long.getLong("memes.uploadByteBudget", 256L * 1024 * 1024),
+            Integer.getInteger("memes.uploadQueue", 16),
+            Long.getLong("memes.uploadQueueMillis", 2000)
+        );
+    }
+
+
+    /**
+     * Creates admission control with the given limits
+     *
+     * @param maxConcurrent Uploads running at once
+     * @param maxBytes Bytes of the running uploads
+     * @param queueCapacity Uploads waiting for admission
+     * @param maxWaitMillis Maximum wait for admission
+     */
+    public UploadAdmission(int maxConcurrent, long maxBytes, int queueCapacity, long maxWaitMillis) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+    }
+
+
+
+
+    /**
+     * Admits the upload, waiting in the queue if needed
+     *
+     * @param  bytes Size of the upload (an upload larger than the budget runs alone)
+     * @return Permit to be closed once the upload is done
+     * @throws UploadRejectedException If the upload doesn't fit in time
+     */
+    public Permit acquire(long bytes) {
+        long cost = Math.min(Math.max(0, bytes), maxBytes);
+        long started = System.nanoTime();
+
+        lock.lock();
+
+        try {
+
+            // Queued uploads go first
+            if (queued == 0 && fits(cost)) {
+                return admit(cost, started);
+            }
+
+            // Full queue, fail fast
+            if (queued >= queueCapacity) {
+                throw reject("Upload queue is full");
+            }
+
+            queued++;
+            try {
+                long remaining = maxWaitNanos;
+                while (!fits(cost)) {
+                    if (remaining <= 0) {
+                        throw reject("Upload wasn't admitted in time");
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+            }
+
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject("Upload was interrupted while queued");
+            }
+
+            finally {
+                queued--;
+            }
+
+            return admit(cost, started);
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private boolean fits(long cost) {
+        return active < maxConcurrent && activeBytes + cost <= maxBytes;
+    }
+
+
+    private Permit admit(long cost, long started) {
+        active++;
+        activeBytes += cost;
+        admitted.increment();
+        totalWaitNanos.add(System.nanoTime() - started);
+
+        return new Permit(cost);
+    }
+
+
+    private void release(Permit permit) {
+        long uploadNanos = System.nanoTime() - permit.admittedAt;
+        totalUploadNanos.add(uploadNanos);
+        completed.increment();
+
+        // Moving average of the upload time, used for the retry hint
+        long average = averageUploadNanos;
+        averageUploadNanos = (average == 0) ? uploadNanos : average + (uploadNanos - average) / 8;
+
+        lock.lock();
+
+        try {
+            active--;
+            activeBytes -= permit.bytes;
+            released.signalAll();
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Creates the rejection with a retry hint of the time the queued uploads take
+     *
+     * @param  reason Reason of the rejection
+     * @return Exception to be thrown
+     */
+    private UploadRejectedException reject(String reason) {
+        rejected.increment();
+
+        long waitNanos = averageUploadNanos * (queued + 1) / maxConcurrent;
+        long retryAfter = Math.min(MAX_RETRY_AFTER, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1));
+
+        return new UploadRejectedException(": " + reason + ", server is busy", retryAfter);
+    }
+
+
+
+
+    /**
+     * Gets the limits and the load of the admission control
+     *
+     * @return Statistics as JSON object
+     */
+    public JSONObject getStats() {
+        long admittedCount = admitted.sum();
+        long completedCount = completed.sum();
+
+        lock.lock();
+
+        try {
+            return new JSONObject()
+                .put("maxConcurrent", maxConcurrent)
+                .put("maxBytes", maxBytes)
+                .put("queueCapacity", queueCapacity)
+                .put("active", active)
+                .put("activeBytes", activeBytes)
+                .put("queued", queued)
+                .put("admitted", admittedCount)
+                .put("rejected", rejected.sum())
+                .put("averageWaitMs", (admittedCount == 0) ? 0 : totalWaitNanos.sum() / admittedCount / 1_000_000.0)
+                .put("averageUploadMs", (completedCount == 0) ? 0 : totalUploadNanos.sum() / completedCount / 1_000_000.0)
+            ;
+        }
+
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package code.backend.upload;
+
+
+
+/**
+ * Size limits of the uploads in bytes, read from the system properties:
+ *   memes.maxRequestSize - maximum size of an upload request (default 40 MB)
+ *   memes.maxPartSize    - maximum size of an uploaded image (default 32 MB)
+ *   memes.maxBatchSize   - maximum size of a batch upload request (default 512 MB)
+ *   memes.maxBatchItems  - maximum count of memes in a batch upload (default 100)
+ *   memes.maxDrainSize   - largest body of a refused upload read away to send the response (default 2 MB)
+ */
+public final class UploadLimits {
+
+
+    public static final long MAX_REQUEST_SIZE = Long.getLong("memes.maxRequestSize", 40L * 1024 * 1024);
+    public static final long MAX_PART_SIZE = Long.getLong("memes.maxPartSize", 32L * 1024 * 1024);
+    public static final long MAX_MEME_JSON_SIZE = 64 * 1024;
+    public static final long MAX_BATCH_SIZE = Long.getLong("memes.maxBatchSize", 512L * 1024 * 1024);
+    public static final int MAX_BATCH_ITEMS = Integer.getInteger("memes.maxBatchItems", 100);
+    public static final long MAX_DRAIN_SIZE = Long.getLong("memes.maxDrainSize", 2L * 1024 * 1024);
+
+
+
+    private UploadLimits() {}
+}
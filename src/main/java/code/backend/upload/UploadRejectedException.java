@@ -0,0 +1,39 @@
+package code.backend.upload;
+
+
+
+/**
+ * Thrown when an upload isn't admitted because the server is saturated
+ */
+public class UploadRejectedException extends RuntimeException {
+
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+
+
+    /**
+     * Creates the exception
+     *
+     * @param message Explanation of the rejection
+     * @param retryAfter Seconds the client should wait before retrying
+     */
+    public UploadRejectedException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+
+
+
+    /**
+     * Gets the time the client should wait
+     *
+     * @return Seconds for the Retry-After header
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,122 @@
+package code.backend.upload;
+
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+
+
+
+/**
+ * Resumable upload of one meme image. The received bytes are kept in the
+ * data file of the session until the upload is finished.
+ */
+public class UploadSession {
+
+
+    private final String id;
+    private final String username;
+    private final JSONObject memeJson;
+    private final long size;
+    private final Path dataFile;
+    private final Path metadataFile;
+
+    private volatile long offset;
+    private volatile long lastActivity;
+
+    // Only one chunk of the session is written at a time
+    final ReentrantLock lock = new ReentrantLock();
+
+
+
+    UploadSession(String id, String username, JSONObject memeJson, long size, Path dataFile, Path metadataFile, long offset, long lastActivity) {
+        this.id = id;
+        this.username = username;
+        this.memeJson = memeJson;
+        this.size = size;
+        this.dataFile = dataFile;
+        this.metadataFile = metadataFile;
+        this.offset = offset;
+        this.lastActivity = lastActivity;
+    }
+
+
+
+
+    public String getId() {
+        return id;
+    }
+
+
+    public String getUsername() {
+        return username;
+    }
+
+
+    public JSONObject getMemeJson() {
+        return memeJson;
+    }
+
+
+    public long getSize() {
+        return size;
+    }
+
+
+    public long getOffset() {
+        return offset;
+    }
+
+
+    public Path getDataFile() {
+        return dataFile;
+    }
+
+
+    Path getMetadataFile() {
+        return metadataFile;
+    }
+
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+
+    /**
+     * Checks are all bytes of the image received
+     *
+     * @return Is the upload complete
+     */
+    public boolean isComplete() {
+        return offset == size;
+    }
+
+
+    void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+
+    void touch() {
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+
+
+
+    /**
+     * Gets the progress of the upload
+     *
+     * @param  expiryMillis Time an idle session is kept
+     * @return Progress as JSON object
+     */
+    JSONObject toJSON(long expiryMillis) {
+        return new JSONObject()
+            .put("id", id)
+            .put("offset", offset)
+            .put("size", size)
+            .put("expiresAt", lastActivity + expiryMillis)
+        ;
+    }
+}
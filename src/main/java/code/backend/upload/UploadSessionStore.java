@@ -0,0 +1,423 @@
+package code.backend.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Sessions of the resumable uploads. Every session is two files in the
+ * uploads directory: id.json holds the meme and the total size, id.part the
+ * bytes received so far. The offset of a session is the size of its data
+ * file, so sessions continue where they were after a restart.
+ *
+ * Sessions idle longer than memes.uploadExpiryMinutes (default 1440) are
+ * deleted by a background cleaner. A user may have at most
+ * memes.uploadSessionsPerUser (default 10) sessions open at once.
+ */
+public class UploadSessionStore {
+
+
+    private final Path directory;
+    private final long expiryMillis;
+    private final int sessionsPerUser;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> userSessionCounts = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private static final Pattern SESSION_ID = Pattern.compile("[0-9a-f]{32}");
+    private static final String DATA_SUFFIX = ".part";
+    private static final String METADATA_SUFFIX = ".json";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String ERROR_MESSAGE = " - UPLOAD_SESSIONS: ";
+
+
+
+    /**
+     * Opens the session store and loads the sessions left from the previous run
+     *
+     * @param directory Directory of the session files
+     */
+    public UploadSessionStore(File directory) throws IOException {
+        this.directory = directory.toPath();
+        this.expiryMillis = TimeUnit.MINUTES.toMillis(Long.getLong("memes.uploadExpiryMinutes", 1440));
+        this.sessionsPerUser = Math.max(1, Integer.getInteger("memes.uploadSessionsPerUser", 10));
+
+        Files.createDirectories(this.directory);
+        load();
+
+        // Start the cleaner of the expired sessions
+        long interval = Math.max(1, Math.min(60, TimeUnit.MILLISECONDS.toMinutes(expiryMillis) / 2));
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("upload-session-cleaner").daemon().factory());
+        cleaner.scheduleWithFixedDelay(this::removeExpired, interval, interval, TimeUnit.MINUTES);
+    }
+
+
+    /**
+     * Loads every session that has its metadata. Files without a pair are removed.
+     */
+    private void load() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + METADATA_SUFFIX)) {
+            for (Path metadataFile: files) {
+                String fileName = metadataFile.getFileName().toString();
+                String id = fileName.substring(0, fileName.length() - METADATA_SUFFIX.length());
+                Path dataFile = directory.resolve(id + DATA_SUFFIX);
+
+                try {
+                    JSONObject metadata = new JSONObject(Files.readString(metadataFile));
+
+                    // Data file is created right after the metadata
+                    if (!Files.exists(dataFile)) {
+                        Files.createFile(dataFile);
+                    }
+
+                    String username = metadata.getString("username");
+                    userSessionCounts.computeIfAbsent(username, key -> new AtomicInteger()).incrementAndGet();
+                    sessions.put(id, new UploadSession(
+                        id,
+                        username,
+                        metadata.getJSONObject("meme"),
+                        metadata.getLong("size"),
+                        dataFile,
+                        metadataFile,
+                        Files.size(dataFile),
+                        Files.getLastModifiedTime(dataFile).toMillis()
+                    ));
+                }
+
+                catch (JSONException e) {
+                    Log.warn(ERROR_MESSAGE + "Broken session {} removed", id);
+                    Files.deleteIfExists(metadataFile);
+                    Files.deleteIfExists(dataFile);
+                }
+            }
+        }
+
+        // Remove data of sessions whose metadata is gone
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + DATA_SUFFIX)) {
+            for (Path dataFile: files) {
+                String fileName = dataFile.getFileName().toString();
+                if (!sessions.containsKey(fileName.substring(0, fileName.length() - DATA_SUFFIX.length()))) {
+                    Files.deleteIfExists(dataFile);
+                }
+            }
+        }
+    }
+
+
+
+
+    /**
+     * Creates new upload session
+     *
+     * @param  username User uploading the image
+     * @param  memeJson Meme information of the upload
+     * @param  size Total size of the image in bytes
+     * @return New session
+     * @throws UploadTooLargeException If the size exceeds the image size limit
+     * @throws IllegalArgumentException If the size isn't positive
+     * @throws IllegalStateException If the user already has the maximum count of sessions
+     */
+    public UploadSession create(String username, JSONObject memeJson, long size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException(": Size of the upload must be positive");
+        }
+        if (size > UploadLimits.MAX_PART_SIZE) {
+            throw new UploadTooLargeException(": Image is larger than " + UploadLimits.MAX_PART_SIZE + " bytes");
+        }
+
+        // Reserve a session of the user before any files are written
+        AtomicInteger userSessions = userSessionCounts.computeIfAbsent(username, key -> new AtomicInteger());
+        if (userSessions.incrementAndGet() > sessionsPerUser) {
+            userSessions.decrementAndGet();
+            throw new IllegalStateException(": At most " + sessionsPerUser + " uploads can be open at once");
+        }
+
+        try {
+            return createSession(username, memeJson, size);
+        }
+
+        catch (IOException | RuntimeException e) {
+            userSessions.decrementAndGet();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Writes the files of new session and adds it to the store
+     *
+     * @param  username User uploading the image
+     * @param  memeJson Meme information of the upload
+     * @param  size Total size of the image in bytes
+     * @return New session
+     */
+    private UploadSession createSession(String username, JSONObject memeJson, long size) throws IOException {
+
+        // Random ID, sessions can't be guessed
+        byte[] idBytes = new byte[16];
+        random.nextBytes(idBytes);
+        String id = HexFormat.of().formatHex(idBytes);
+
+        Path dataFile = directory.resolve(id + DATA_SUFFIX);
+        Path metadataFile = directory.resolve(id + METADATA_SUFFIX);
+
+        // Write the metadata atomically, a half written file would break the session
+        JSONObject metadata = new JSONObject()
+            .put("username", username)
+            .put("meme", memeJson)
+            .put("size", size)
+        ;
+        Path temporary = directory.resolve(id + ".tmp");
+        Files.writeString(temporary, metadata.toString());
+        Files.move(temporary, metadataFile, StandardCopyOption.ATOMIC_MOVE);
+        Files.createFile(dataFile);
+
+        UploadSession session = new UploadSession(id, username, memeJson, size, dataFile, metadataFile, 0, System.currentTimeMillis());
+        sessions.put(id, session);
+
+        return session;
+    }
+
+
+    /**
+     * Gets the session of the user
+     *
+     * @param  id ID of the session
+     * @param  username User asking for the session
+     * @return Session, NULL if it doesn't exist, has expired or belongs to another user
+     */
+    public UploadSession get(String id, String username) {
+        if (id == null || !SESSION_ID.matcher(id).matches()) {
+            return null;
+        }
+
+        UploadSession session = sessions.get(id);
+        if (session == null || !session.getUsername().equals(username) || isExpired(session, System.currentTimeMillis())) {
+            return null;
+        }
+
+        return session;
+    }
+
+
+    /**
+     * Writes the chunk to the session. The chunk must start where the received bytes end.
+     * Bytes of an interrupted chunk are kept, so the client continues from the new offset.
+     *
+     * @param  session Session of the upload
+     * @param  offset Position of the chunk in the image
+     * @param  input Content of the chunk
+     * @return Offset after the chunk
+     * @throws IllegalStateException If the offset doesn't match or another chunk is being written
+     * @throws UploadTooLargeException If the chunk goes past the size of the upload
+     */
+    public long append(UploadSession session, long offset, InputStream input) throws IOException {
+        if (!session.lock.tryLock()) {
+            throw new IllegalStateException(": Another chunk of the upload is being written");
+        }
+
+        try {
+            if (!sessions.containsKey(session.getId())) {
+                throw new IllegalStateException(": Upload session has ended");
+            }
+            if (offset != session.getOffset()) {
+                throw new IllegalStateException(": Chunk must start at offset " + session.getOffset());
+            }
+
+            session.touch();
+            InputStream chunk = new LimitedInputStream(input, session.getSize() - offset);
+
+            // Write the chunk, counting every written buffer as received
+            try (FileChannel channel = FileChannel.open(session.getDataFile(), StandardOpenOption.WRITE)) {
+                byte[] bytes = new byte[BUFFER_SIZE];
+                long position = offset;
+
+                try {
+                    int read;
+                    while ((read = chunk.read(bytes)) != -1) {
+                        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        session.setOffset(position);
+                    }
+                }
+
+                // Keep the received bytes durable for resuming
+                finally {
+                    channel.force(false);
+                    session.touch();
+                }
+            }
+
+            return session.getOffset();
+        }
+
+        finally {
+            session.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Work adding the meme of the complete upload
+     */
+    @FunctionalInterface
+    public interface Completion<T> {
+
+        /**
+         * @param  dataFile Data file holding the whole image, still owned by the session (not to be moved or deleted)
+         * @return Result of the work
+         */
+        T complete(Path dataFile) throws IOException, SQLException;
+    }
+
+
+    /**
+     * Finishes the complete session. The completion is run under the lock of
+     * the session, and the session ends only if it returns; a failed
+     * completion keeps the data, so finishing can be retried.
+     *
+     * @param  <T> Type of the result
+     * @param  session Complete session
+     * @param  completion Work adding the meme of the upload
+     * @return Result of the completion
+     * @throws IllegalStateException If the upload isn't complete or a chunk is being written
+     */
+    public <T> T finish(UploadSession session, Completion<T> completion) throws IOException, SQLException {
+        if (!session.lock.tryLock()) {
+            throw new IllegalStateException(": Another chunk of the upload is being written");
+        }
+
+        try {
+            if (!session.isComplete()) {
+                throw new IllegalStateException(": Upload is incomplete, " + session.getOffset() + " of " + session.getSize() + " bytes received");
+            }
+            if (!sessions.containsKey(session.getId())) {
+                throw new IllegalStateException(": Upload session has ended");
+            }
+
+            T result = completion.complete(session.getDataFile());
+
+            // The meme is added, files left behind are only logged
+            remove(session);
+            try {
+                Files.deleteIfExists(session.getMetadataFile());
+                Files.deleteIfExists(session.getDataFile());
+            }
+
+            catch (IOException e) {
+                Log.error(ERROR_MESSAGE + "Files of the finished session not deleted: {}", e.getMessage());
+            }
+
+            return result;
+        }
+
+        finally {
+            session.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Cancels the session and deletes its files
+     *
+     * @param session Session of the upload
+     */
+    public void delete(UploadSession session) throws IOException {
+        session.lock.lock();
+
+        try {
+            remove(session);
+            Files.deleteIfExists(session.getMetadataFile());
+            Files.deleteIfExists(session.getDataFile());
+        }
+
+        finally {
+            session.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes the session from the store and frees its place among the sessions of the user
+     *
+     * @param session Session of the upload
+     */
+    private void remove(UploadSession session) {
+        if (sessions.remove(session.getId()) != null) {
+            userSessionCounts.get(session.getUsername()).decrementAndGet();
+        }
+    }
+
+
+
+
+    /**
+     * Gets the progress of the session
+     *
+     * @param  session Session of the upload
+     * @return Progress as JSON object
+     */
+    public JSONObject getProgress(UploadSession session) {
+        return session.toJSON(expiryMillis);
+    }
+
+
+    private boolean isExpired(UploadSession session, long now) {
+        return session.getLastActivity() + expiryMillis < now;
+    }
+
+
+    /**
+     * Deletes the sessions that have been idle too long. Sessions receiving a chunk are skipped.
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+
+        for (UploadSession session: sessions.values()) {
+            if (!isExpired(session, now) || !session.lock.tryLock()) {
+                continue;
+            }
+
+            try {
+                remove(session);
+                Files.deleteIfExists(session.getMetadataFile());
+                Files.deleteIfExists(session.getDataFile());
+                Log.info("Expired upload session {} removed", session.getId());
+            }
+
+            catch (IOException e) {
+                Log.error(ERROR_MESSAGE + "{}", e.getMessage());
+            }
+
+            finally {
+                session.lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package code.backend.upload;
+
+import java.io.IOException;
+
+
+
+/**
+ * Thrown when an upload exceeds its size limit. Raised while the bytes are
+ * arriving, so the rest of the upload is never read.
+ */
+public class UploadTooLargeException extends IOException {
+
+
+    private static final long serialVersionUID = 1L;
+
+
+
+    /**
+     * Creates the exception
+     *
+     * @param message Explanation of the exceeded limit
+     */
+    public UploadTooLargeException(String message) {
+        super(message);
+    }
+}
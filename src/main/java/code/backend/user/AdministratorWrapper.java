@@ -0,0 +1,73 @@
+package code.backend.user;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.router.RequestContext;
+
+
+
+/**
+ * Lets only the requests of the administrators through to the wrapped
+ * handler, the other users are answered with 403. Must follow the
+ * AuthenticationWrapper, which sets the user of the request.
+ *
+ * Administrators are named by the system property:
+ *   memes.administrators - comma separated usernames (default none, the routes serve no one)
+ */
+public class AdministratorWrapper implements HttpHandler {
+
+
+    private final Set<String> administrators;
+    private final HttpHandler nextHandler;
+
+    private static final Pattern SEPARATOR = Pattern.compile("\\s*,\\s*");
+
+
+
+    /**
+     * Creates administrator wrapper for the given HTTP handler
+     *
+     * @param administrators Usernames of the administrators
+     * @param nextHandler HTTP handler to be wrapped
+     */
+    public AdministratorWrapper(Set<String> administrators, HttpHandler nextHandler) {
+        this.administrators = administrators;
+        this.nextHandler = nextHandler;
+    }
+
+
+    /**
+     * Reads the administrators from the system property memes.administrators
+     *
+     * @return Usernames of the administrators
+     */
+    public static Set<String> readAdministrators() {
+        return SEPARATOR.splitAsStream(System.getProperty("memes.administrators", "").trim())
+            .filter(name -> !name.isEmpty())
+            .collect(Collectors.toUnmodifiableSet());
+    }
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String user = RequestContext.current().getUser();
+
+        if (user == null || !administrators.contains(user)) {
+            try (exchange) {
+                new HttpExchangeMethods(exchange, "[ERROR] - ADMINISTRATOR: ").errorResponse(403, "User isn't an administrator\n");
+            }
+
+            return;
+        }
+
+        nextHandler.handle(exchange);
+    }
+}
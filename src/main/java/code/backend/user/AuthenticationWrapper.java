@@ -0,0 +1,61 @@
+package code.backend.user;
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import code.backend.HttpExchangeMethods;
+import code.backend.router.RequestContext;
+import code.backend.session.SessionStore;
+
+
+
+/**
+ * Lets only the requests of logged users through to the wrapped handler. The
+ * user is kept in the context of the request, so the handler doesn't check
+ * the session again; the other requests are answered with 401.
+ */
+public class AuthenticationWrapper implements HttpHandler {
+
+
+    private final SessionStore sessions;
+    private final HttpHandler nextHandler;
+
+
+
+    /**
+     * Creates authentication wrapper for the given HTTP handler
+     *
+     * @param sessions Session ids of the logged users
+     * @param nextHandler HTTP handler to be wrapped
+     */
+    public AuthenticationWrapper(SessionStore sessions, HttpHandler nextHandler) {
+        this.sessions = sessions;
+        this.nextHandler = nextHandler;
+    }
+
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpExchangeMethods exchangeMethods = new HttpExchangeMethods(exchange, "[ERROR] - AUTHENTICATION: ");
+        String user;
+
+        try {
+            user = exchangeMethods.checkUserValidity(sessions);
+        }
+
+        // Missing or malformed session cookie
+        catch (RuntimeException e) {
+            try (exchange) {
+                exchangeMethods.errorResponse(401, "User isn't authenticated\n");
+            }
+
+            return;
+        }
+
+        RequestContext.current().setUser(user);
+        nextHandler.handle(exchange);
+    }
+}
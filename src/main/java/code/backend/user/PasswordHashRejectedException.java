@@ -0,0 +1,39 @@
+package code.backend.user;
+
+
+
+/**
+ * Thrown when a password isn't hashed because too many hashes are waiting
+ */
+public class PasswordHashRejectedException extends RuntimeException {
+
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+
+
+    /**
+     * Creates the exception
+     *
+     * @param message Explanation of the rejection
+     * @param retryAfter Seconds the client should wait before retrying
+     */
+    public PasswordHashRejectedException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+
+
+
+    /**
+     * Gets the time the client should wait
+     *
+     * @return Seconds for the Retry-After header
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
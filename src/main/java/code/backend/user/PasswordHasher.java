@@ -0,0 +1,278 @@
+package code.backend.user;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DrbgParameters;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.commons.codec.digest.Crypt;
+
+import code.backend.log.Log;
+
+
+
+/**
+ * Hashes and checks the passwords (SHA-512 crypt) on threads of its own, so
+ * a burst of logins takes at most those threads from the server. Hashes
+ * waiting for a thread are limited; over the limit, or when the wait runs
+ * out, the login is rejected at once instead of queueing behind the others.
+ *
+ * Salts come from one shared generator, reseeded every RESEED_SALTS salts.
+ *
+ * Configured by the system properties:
+ *   memes.passwordThreads    - hashing threads (default half of the processors, at least 1)
+ *   memes.passwordQueue      - hashes waiting for a thread (default 32)
+ *   memes.passwordWaitMillis - maximum wait for a hash (default 5000)
+ *   memes.passwordRounds     - rounds of the new hashes (default 5000), weaker hashes are upgraded on login
+ */
+public final class PasswordHasher {
+
+
+    private final ThreadPoolExecutor pool;
+    private final long maxWaitMillis;
+    private final LongAdder rejected = new LongAdder();
+
+    static final int ROUNDS = Integer.getInteger("memes.passwordRounds", 5000);
+
+    // Rounds of the hashes without the rounds= parameter
+    private static final int DEFAULT_ROUNDS = 5000;
+    private static final String PREFIX = "$6$";
+    private static final String ROUNDS_PREFIX = "$6$rounds=";
+
+    private static final SecureRandom RANDOM = createRandom();
+    private static final AtomicLong SALTS = new AtomicLong();
+    private static final long RESEED_SALTS = 4096;
+
+    private static final long RETRY_AFTER = 1;
+    private static final String ERROR_MESSAGE = "[ERROR] - PASSWORD: ";
+
+
+
+    /**
+     * Creates the hashing threads using the limits of the system properties
+     */
+    public PasswordHasher() {
+        this(
+            Integer.getInteger("memes.passwordThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            Integer.getInteger("memes.passwordQueue", 32),
+            Long.getLong("memes.passwordWaitMillis", 5000)
+        );
+    }
+
+
+    /**
+     * Creates the hashing threads
+     *
+     * @param threads Count of the hashing threads
+     * @param queueCapacity Hashes waiting for a thread
+     * @param maxWaitMillis Maximum wait for a hash
+     */
+    public PasswordHasher(int threads, int queueCapacity, long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+        this.pool = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            Thread.ofPlatform().name("password-hasher-", 0).daemon().factory()
+        );
+    }
+
+
+
+
+// ▛                   ▜
+//    Hashing methods
+// ▙                   ▟
+
+
+
+    /**
+     * Hashes the password with a new salt
+     *
+     * @param  password Password of the user
+     * @return Hash to be stored
+     * @throws PasswordHashRejectedException If too many hashes are waiting
+     */
+    public String hash(String password) {
+        return run(() -> hashNow(password));
+    }
+
+
+    /**
+     * Checks the password against the stored hash
+     *
+     * @param  password Given password
+     * @param  storedHash Hash stored for the user
+     * @return True if the password is right
+     * @throws PasswordHashRejectedException If too many hashes are waiting
+     */
+    public boolean verify(String password, String storedHash) {
+        return run(() -> MessageDigest.isEqual(
+            storedHash.getBytes(StandardCharsets.UTF_8),
+            Crypt.crypt(password, storedHash).getBytes(StandardCharsets.UTF_8)
+        ));
+    }
+
+
+    /**
+     * Checks if the hash is weaker than the new hashes
+     *
+     * @param  storedHash Hash stored for the user
+     * @return True if the hash should be replaced
+     */
+    public boolean needsUpgrade(String storedHash) {
+        return roundsOf(storedHash) < ROUNDS;
+    }
+
+
+    /**
+     * Hashes the password again when a thread is free, skipped if too many hashes are waiting
+     *
+     * @param password Password of the user
+     * @param store Receives the new hash
+     */
+    public void hashInBackground(String password, Consumer<String> store) {
+        try {
+            pool.execute(() -> store.accept(hashNow(password)));
+        }
+
+        catch (RejectedExecutionException e) {
+            // Next login upgrades the hash
+        }
+    }
+
+
+    /**
+     * Gets the count of the hashes waiting for a thread
+     *
+     * @return Count of the waiting hashes
+     */
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+
+    /**
+     * Gets the count of the hashes rejected
+     *
+     * @return Count of the rejected hashes
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+
+    /**
+     * Hashes the password on the calling thread, for the users created at startup
+     *
+     * @param  password Password of the user
+     * @return Hash to be stored
+     */
+    public static String hashNow(String password) {
+        byte[] bytes = new byte[12];
+        RANDOM.nextBytes(bytes);
+
+        if (SALTS.incrementAndGet() % RESEED_SALTS == 0) {
+            reseed();
+        }
+
+        // 16 characters of the crypt alphabet
+        String salt = Base64.getEncoder().encodeToString(bytes).replace('+', '.');
+        String parameters = (ROUNDS == DEFAULT_ROUNDS) ? PREFIX : ROUNDS_PREFIX + ROUNDS + "$";
+
+        return Crypt.crypt(password, parameters + salt);
+    }
+
+
+
+
+    private <T> T run(Callable<T> work) {
+        Future<T> result;
+
+        try {
+            result = pool.submit(work);
+        }
+
+        catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new PasswordHashRejectedException("Too many logins at once, try again later\n", RETRY_AFTER);
+        }
+
+        try {
+            return result.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        }
+
+        catch (TimeoutException e) {
+            result.cancel(false);
+            rejected.increment();
+            throw new PasswordHashRejectedException("Password check took too long, try again later\n", RETRY_AFTER);
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(false);
+            throw new PasswordHashRejectedException("Password check interrupted\n", RETRY_AFTER);
+        }
+
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+
+    private static int roundsOf(String storedHash) {
+        if (storedHash.startsWith(ROUNDS_PREFIX)) {
+            int end = storedHash.indexOf('$', ROUNDS_PREFIX.length());
+
+            try {
+                return Integer.parseInt(storedHash.substring(ROUNDS_PREFIX.length(), end));
+            }
+
+            catch (NumberFormatException | IndexOutOfBoundsException e) {
+                return 0;
+            }
+        }
+
+        // Other schemes are always upgraded
+        return storedHash.startsWith(PREFIX) ? DEFAULT_ROUNDS : 0;
+    }
+
+
+    private static SecureRandom createRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+        }
+
+        catch (NoSuchAlgorithmException | IllegalArgumentException e) {
+            Log.warn(ERROR_MESSAGE + "DRBG not available, salts use the default generator");
+            return new SecureRandom();
+        }
+    }
+
+
+    private static void reseed() {
+        try {
+            RANDOM.reseed();
+        }
+
+        catch (UnsupportedOperationException e) {
+            // Default generator reseeds itself
+        }
+    }
+}
@@ -8,12 +8,14 @@ import org.json.JSONObject;
 import com.sun.net.httpserver.BasicAuthenticator;
 
 import code.backend.Database;
+import code.backend.log.Log;
 
 
 public final class UserAuthenticator extends BasicAuthenticator {
 
 
     private final Database database;
+    private final PasswordHasher hasher;
     private static final String ERROR_MESSAGE = " - ATHENTICATION";
 
 
@@ -21,10 +23,12 @@ public final class UserAuthenticator extends BasicAuthenticator {
     * Creates authenticator for users
     *
     * @param database Database of the server
+    * @param hasher Hashing threads of the passwords
     */
-    public UserAuthenticator(Database database) {
+    public UserAuthenticator(Database database, PasswordHasher hasher) {
         super("datarecord");
         this.database = database;
+        this.hasher = hasher;
     }
 
     
@@ -34,15 +38,27 @@ public final class UserAuthenticator extends BasicAuthenticator {
     * @param  username User's name
     * @param  password User's password
     * @return Is given user authenticated
+    * @throws PasswordHashRejectedException If too many passwords are being checked
     */
     @Override
     public boolean checkCredentials(String username, String password) {
         try {
-            return database.isValidUser(username, password);
+            String storedHash = database.getPasswordHash(username);
+
+            if (!hasher.verify(password, storedHash)) {
+                return false;
+            }
+
+            // Rehash with the current cost, the login doesn't wait for it
+            if (hasher.needsUpgrade(storedHash)) {
+                hasher.hashInBackground(password, newHash -> upgradePassword(username, newHash));
+            }
+
+            return true;
         } 
         
         catch (SQLException | JSONException | IllegalArgumentException e) {
-            System.out.println(ERROR_MESSAGE+e.getMessage());
+            Log.error(ERROR_MESSAGE + "{}", e.getMessage());
             return false;
         }
     }
@@ -52,6 +68,7 @@ public final class UserAuthenticator extends BasicAuthenticator {
     * Adds user to the hashmap, if it's a new one
     *
     * @param  userObj User JSON object holding all credentials
+    * @throws PasswordHashRejectedException If too many passwords are being hashed
     */
     public void addUser(JSONObject userObj) throws SQLException {
 
@@ -61,6 +78,18 @@ public final class UserAuthenticator extends BasicAuthenticator {
         String password = user.getPassword();
 
         // Add user to user table of the database
-        database.addUser(username, password);
+        database.addUser(username, hasher.hash(password));
+    }
+
+
+
+    private void upgradePassword(String username, String passwordHash) {
+        try {
+            database.setPasswordHash(username, passwordHash);
+        }
+
+        catch (SQLException e) {
+            Log.error(ERROR_MESSAGE + "Password hash not upgraded: {}", e.getMessage());
+        }
     }
 }